@@ -99,17 +99,113 @@ CREATE TABLE IF NOT EXISTS card_assignments (
     end_date DATE
 );
 
+-- Partizionata per mese (fuso Europe/Rome): ogni query deve filtrare su timestamp
 CREATE TABLE IF NOT EXISTS access_logs (
-    id BIGSERIAL PRIMARY KEY NOT NULL,
+    id BIGSERIAL NOT NULL,
     employee_id BIGINT NOT NULL REFERENCES employees(id),
     card_id BIGINT NOT NULL REFERENCES cards(id),
     timestamp TIMESTAMP WITH TIME ZONE NOT NULL,
     type VARCHAR(10) NOT NULL,
     modified BOOLEAN NOT NULL DEFAULT FALSE,
     modified_at TIMESTAMP WITH TIME ZONE,
-    deleted BOOLEAN NOT NULL DEFAULT FALSE
+    deleted BOOLEAN NOT NULL DEFAULT FALSE,
+    PRIMARY KEY (id, timestamp)
+) PARTITION BY RANGE (timestamp);
+-- (timestamp, id) servono anche alla paginazione keyset
+CREATE INDEX idx_access_logs_timestamp ON access_logs(timestamp, id);
+CREATE INDEX idx_access_logs_employee_timestamp ON access_logs(employee_id, timestamp, id);
+
+-- Raccoglie le righe fuori dalle partizioni mensili, deve restare vuota:
+-- le righe di un mese finite qui sono spostate quando viene creata la sua partizione
+CREATE TABLE IF NOT EXISTS access_logs_default PARTITION OF access_logs DEFAULT;
+
+-- Crea la partizione del mese che contiene month_start, ritorna true se è stata creata.
+-- Con righe del mese nella partizione di default non si può creare la partizione direttamente:
+-- la default viene staccata, le righe spostate nella nuova partizione e la default riattaccata,
+-- tutto nella stessa transazione
+CREATE OR REPLACE FUNCTION create_access_logs_partition(month_start DATE) RETURNS BOOLEAN AS $$
+DECLARE
+    first_day DATE := DATE_TRUNC('month', month_start)::DATE;
+    partition_name TEXT := 'access_logs_' || TO_CHAR(first_day, 'YYYY_MM');
+    range_start TIMESTAMPTZ := first_day::TIMESTAMP AT TIME ZONE 'Europe/Rome';
+    range_end TIMESTAMPTZ := (first_day + INTERVAL '1 month')::TIMESTAMP AT TIME ZONE 'Europe/Rome';
+    moved BIGINT;
+BEGIN
+    IF to_regclass(partition_name) IS NOT NULL THEN
+        RETURN FALSE;
+    END IF;
+    IF NOT EXISTS (SELECT 1 FROM access_logs_default WHERE timestamp >= range_start AND timestamp < range_end) THEN
+        EXECUTE format('CREATE TABLE %I PARTITION OF access_logs FOR VALUES FROM (%L) TO (%L)',
+                       partition_name, range_start, range_end);
+        RETURN TRUE;
+    END IF;
+
+    ALTER TABLE access_logs DETACH PARTITION access_logs_default;
+    EXECUTE format('CREATE TABLE %I PARTITION OF access_logs FOR VALUES FROM (%L) TO (%L)',
+                   partition_name, range_start, range_end);
+    EXECUTE format('INSERT INTO %I SELECT * FROM access_logs_default WHERE timestamp >= %L AND timestamp < %L',
+                   partition_name, range_start, range_end);
+    GET DIAGNOSTICS moved = ROW_COUNT;
+    DELETE FROM access_logs_default WHERE timestamp >= range_start AND timestamp < range_end;
+    ALTER TABLE access_logs ATTACH PARTITION access_logs_default DEFAULT;
+    RAISE NOTICE 'Spostate % righe da access_logs_default in %', moved, partition_name;
+    RETURN TRUE;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Partizioni iniziali, le successive sono create dal job access_logs_partitions
+DO $$
+BEGIN
+    FOR i IN -1..3 LOOP
+        PERFORM create_access_logs_partition((CURRENT_DATE + make_interval(months => i))::DATE);
+    END LOOP;
+END;
+$$;
+
+-- Riepilogo giornaliero per dipendente, aggiornato ad ogni scrittura su access_logs
+CREATE TABLE IF NOT EXISTS daily_work_summary (
+    employee_id BIGINT NOT NULL REFERENCES employees(id),
+    company_id BIGINT NOT NULL REFERENCES companies(id),
+    work_date DATE NOT NULL,
+    worked_minutes INT NOT NULL DEFAULT 0,
+    first_in TIMESTAMP WITH TIME ZONE,
+    last_out TIMESTAMP WITH TIME ZONE,
+    pair_count INT NOT NULL DEFAULT 0,
+    log_count INT NOT NULL DEFAULT 0,
+    anomaly BOOLEAN NOT NULL DEFAULT FALSE,
+    updated_at TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT NOW(),
+    PRIMARY KEY (employee_id, work_date)
 );
-CREATE INDEX idx_access_logs_timestamp ON access_logs(timestamp);
+CREATE INDEX idx_daily_work_summary_company_date ON daily_work_summary(company_id, work_date);
+
+-- Indice delle anomalie sui giorni chiusi, popolato dal job access_anomalies
+-- e rivalutato per (dipendente, giorno) ad ogni modifica manuale delle letture
+CREATE TABLE IF NOT EXISTS access_anomalies (
+    id BIGSERIAL PRIMARY KEY,
+    employee_id BIGINT NOT NULL REFERENCES employees(id),
+    company_id BIGINT NOT NULL REFERENCES companies(id),
+    anomaly_date DATE NOT NULL,
+    type VARCHAR(40) NOT NULL,
+    description TEXT,
+    status VARCHAR(20) NOT NULL DEFAULT 'OPEN',
+    detected_at TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT NOW(),
+    evaluated_at TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT NOW(),
+    status_changed_at TIMESTAMP WITH TIME ZONE,
+    status_changed_by BIGINT,
+    CONSTRAINT uq_access_anomalies UNIQUE (employee_id, anomaly_date, type),
+    CONSTRAINT chk_access_anomalies_status CHECK (status IN ('OPEN', 'ACKNOWLEDGED', 'RESOLVED'))
+);
+CREATE INDEX idx_access_anomalies_company_date ON access_anomalies(company_id, anomaly_date);
+CREATE INDEX idx_access_anomalies_company_status ON access_anomalies(company_id, status, anomaly_date);
+
+-- Chiavi di idempotenza di letture badge e inserimenti manuali, con la risposta originale
+-- per rispondere ai retry senza scrivere di nuovo; ripulita dopo il TTL
+CREATE TABLE IF NOT EXISTS idempotency_keys (
+    scope_key VARCHAR(200) PRIMARY KEY,
+    response JSONB,
+    created_at TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT NOW()
+);
+CREATE INDEX idx_idempotency_keys_created ON idempotency_keys(created_at);
 
 CREATE TABLE holiday (
     id BIGSERIAL PRIMARY KEY,
@@ -189,9 +285,157 @@ INSERT INTO job_tracker (job_name, job_type, next_scheduled_run_date)
 VALUES
     ('monthly_accrual', 'MONTHLY', DATE_TRUNC('month', CURRENT_DATE + INTERVAL '1 month')),
     ('shift_generation', 'DAILY', CURRENT_DATE + INTERVAL '1 day'),
-    ('deadline_notification', 'DAILY', CURRENT_DATE + INTERVAL '1 day' + TIME '09:00:00')
+    ('deadline_notification', 'DAILY', CURRENT_DATE + INTERVAL '1 day' + TIME '09:00:00'),
+    ('access_logs_partitions', 'MONTHLY', DATE_TRUNC('month', CURRENT_DATE + INTERVAL '1 month')),
+    ('access_anomalies', 'DAILY', CURRENT_DATE)
 ON CONFLICT (job_name) DO NOTHING;
 
+-- Versione dei dati dei report per (azienda, mese), incrementata dai trigger su ogni scrittura
+-- che cambia un report: i report in cache restano validi finché la versione non cambia.
+-- month = 1970-01-01 vale per tutti i mesi dell'azienda (saldi, anagrafica),
+-- company_id = 0 per tutte le aziende (festivi)
+CREATE TABLE IF NOT EXISTS report_data_version (
+    company_id BIGINT NOT NULL,
+    month DATE NOT NULL,
+    version BIGINT NOT NULL DEFAULT 1,
+    PRIMARY KEY (company_id, month)
+);
+
+-- Incrementa la versione dei mesi da from_date a to_date
+CREATE OR REPLACE FUNCTION bump_report_data_version(p_company_id BIGINT, from_date DATE, to_date DATE) RETURNS VOID AS $$
+    INSERT INTO report_data_version (company_id, month)
+    SELECT p_company_id, m::DATE
+    FROM generate_series(DATE_TRUNC('month', from_date), DATE_TRUNC('month', to_date), INTERVAL '1 month') AS m
+    WHERE p_company_id IS NOT NULL
+    ON CONFLICT (company_id, month) DO UPDATE SET version = report_data_version.version + 1;
+$$ LANGUAGE sql;
+
+-- Timbrature: le scritture sono nel percorso caldo delle letture badge, quindi niente upsert su
+-- report_data_version (il lock della riga durerebbe fino al commit e metterebbe in coda tutti i
+-- group commit dell'azienda). Ogni statement aggiunge una riga per (azienda, mese) senza conflitti,
+-- che vale 1 nella versione del mese finché non è compattata in report_data_version.
+-- Si contano le righe e non il loro id: gli id non sono visibili in ordine di commit
+CREATE TABLE IF NOT EXISTS access_logs_report_changes (
+    id BIGSERIAL PRIMARY KEY,
+    company_id BIGINT NOT NULL,
+    month DATE NOT NULL
+);
+CREATE INDEX idx_access_logs_report_changes ON access_logs_report_changes(company_id, month);
+
+CREATE OR REPLACE FUNCTION bump_access_logs_report_version() RETURNS TRIGGER AS $$
+BEGIN
+    IF TG_OP IN ('INSERT', 'UPDATE') THEN
+        INSERT INTO access_logs_report_changes (company_id, month)
+        SELECT DISTINCT e.company_id, DATE_TRUNC('month', r.timestamp AT TIME ZONE 'Europe/Rome')::DATE
+        FROM new_rows r JOIN employees e ON e.id = r.employee_id;
+    END IF;
+    IF TG_OP IN ('UPDATE', 'DELETE') THEN
+        INSERT INTO access_logs_report_changes (company_id, month)
+        SELECT DISTINCT e.company_id, DATE_TRUNC('month', r.timestamp AT TIME ZONE 'Europe/Rome')::DATE
+        FROM old_rows r JOIN employees e ON e.id = r.employee_id;
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Sposta le righe in report_data_version, nello stesso statement: la versione di ogni mese non cambia
+CREATE OR REPLACE FUNCTION compact_access_logs_report_changes() RETURNS BIGINT AS $$
+    WITH removed AS (
+        DELETE FROM access_logs_report_changes RETURNING company_id, month
+    ), folded AS (
+        INSERT INTO report_data_version (company_id, month, version)
+        SELECT company_id, month, COUNT(*) FROM removed
+        GROUP BY company_id, month
+        ORDER BY company_id, month
+        ON CONFLICT (company_id, month) DO UPDATE SET version = report_data_version.version + EXCLUDED.version
+        RETURNING version
+    )
+    SELECT COUNT(*) FROM removed;
+$$ LANGUAGE sql;
+
+CREATE TRIGGER trg_access_logs_report_version_insert AFTER INSERT ON access_logs
+    REFERENCING NEW TABLE AS new_rows
+    FOR EACH STATEMENT EXECUTE FUNCTION bump_access_logs_report_version();
+CREATE TRIGGER trg_access_logs_report_version_update AFTER UPDATE ON access_logs
+    REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows
+    FOR EACH STATEMENT EXECUTE FUNCTION bump_access_logs_report_version();
+CREATE TRIGGER trg_access_logs_report_version_delete AFTER DELETE ON access_logs
+    REFERENCING OLD TABLE AS old_rows
+    FOR EACH STATEMENT EXECUTE FUNCTION bump_access_logs_report_version();
+
+-- Assenze e turni: i mesi coperti dalla riga, prima e dopo la modifica
+CREATE OR REPLACE FUNCTION bump_absence_report_version() RETURNS TRIGGER AS $$
+BEGIN
+    IF TG_OP <> 'DELETE' THEN
+        PERFORM bump_report_data_version((SELECT company_id FROM employees WHERE id = NEW.employee_id),
+                                         NEW.start_date, NEW.end_date);
+    END IF;
+    IF TG_OP <> 'INSERT' THEN
+        PERFORM bump_report_data_version((SELECT company_id FROM employees WHERE id = OLD.employee_id),
+                                         OLD.start_date, OLD.end_date);
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_absence_report_version AFTER INSERT OR UPDATE OR DELETE ON absence
+    FOR EACH ROW EXECUTE FUNCTION bump_absence_report_version();
+
+CREATE OR REPLACE FUNCTION bump_shift_assignments_report_version() RETURNS TRIGGER AS $$
+BEGIN
+    IF TG_OP <> 'DELETE' THEN
+        PERFORM bump_report_data_version((SELECT company_id FROM employees WHERE id = NEW.employee_id),
+                                         NEW.date, NEW.date);
+    END IF;
+    IF TG_OP <> 'INSERT' THEN
+        PERFORM bump_report_data_version((SELECT company_id FROM employees WHERE id = OLD.employee_id),
+                                         OLD.date, OLD.date);
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_shift_assignments_report_version AFTER INSERT OR UPDATE OR DELETE ON shift_assignments
+    FOR EACH ROW EXECUTE FUNCTION bump_shift_assignments_report_version();
+
+-- Saldi e anagrafica compaiono nei report di ogni mese: versione dell'azienda
+CREATE OR REPLACE FUNCTION bump_leave_balance_report_version() RETURNS TRIGGER AS $$
+BEGIN
+    PERFORM bump_report_data_version(
+            (SELECT company_id FROM employees WHERE id = CASE WHEN TG_OP = 'DELETE' THEN OLD.employee_id ELSE NEW.employee_id END),
+            DATE '1970-01-01', DATE '1970-01-01');
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_leave_balance_report_version AFTER INSERT OR UPDATE OR DELETE ON employee_leave_balance
+    FOR EACH ROW EXECUTE FUNCTION bump_leave_balance_report_version();
+
+CREATE OR REPLACE FUNCTION bump_employees_report_version() RETURNS TRIGGER AS $$
+BEGIN
+    PERFORM bump_report_data_version(CASE WHEN TG_OP = 'DELETE' THEN OLD.company_id ELSE NEW.company_id END,
+                                     DATE '1970-01-01', DATE '1970-01-01');
+    IF TG_OP = 'UPDATE' AND OLD.company_id IS DISTINCT FROM NEW.company_id THEN
+        PERFORM bump_report_data_version(OLD.company_id, DATE '1970-01-01', DATE '1970-01-01');
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_employees_report_version AFTER INSERT OR UPDATE OR DELETE ON employees
+    FOR EACH ROW EXECUTE FUNCTION bump_employees_report_version();
+
+-- Festivi: valgono per tutte le aziende
+CREATE OR REPLACE FUNCTION bump_holiday_report_version() RETURNS TRIGGER AS $$
+BEGIN
+    PERFORM bump_report_data_version(0, DATE '1970-01-01', DATE '1970-01-01');
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER trg_holiday_report_version AFTER INSERT OR UPDATE OR DELETE ON holiday
+    FOR EACH STATEMENT EXECUTE FUNCTION bump_holiday_report_version();
+
 -- Crea un ruolo ADMIN
 INSERT INTO roles (name) VALUES ('ADMIN');
 
@@ -79,6 +79,20 @@ public class EmployeeLeaveBalanceRepository {
         return jdbcTemplate.query(sql, rowMapper);
     }
 
+    /**
+     * Getting the leave balances of all the employees of a company
+     * @return list of leave balances
+     */
+    public List<EmployeeLeaveBalance> findByCompanyId(Long companyId) {
+        String sql = """
+                SELECT b.* FROM employee_leave_balance b
+                JOIN employees e ON b.employee_id = e.id
+                WHERE e.company_id = ?
+                ORDER BY b.employee_id
+                """;
+        return jdbcTemplate.query(sql, rowMapper, companyId);
+    }
+
     /**
      * Check if an employee has a leave balance record
      * @param employeeId the employee id
@@ -1,83 +1,216 @@
 package it.gls.dipendenti.access.controller;
 
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.micrometer.common.lang.Nullable;
 import it.gls.dipendenti.access.dto.AccessAnomalyDTO;
+import it.gls.dipendenti.access.dto.AccessAnomalyDTO.AnomalyStatus;
+import it.gls.dipendenti.access.dto.BadgeIngestStats;
+import it.gls.dipendenti.access.dto.BadgeReplayEvent;
+import it.gls.dipendenti.access.dto.BadgeReplayResult;
+import it.gls.dipendenti.access.dto.DetailedAccessLog;
+import it.gls.dipendenti.access.dto.ReaderRateStats;
+import it.gls.dipendenti.access.exception.AnomalyNotFoundException;
+import it.gls.dipendenti.access.exception.BadgeReadRejectedException;
 import it.gls.dipendenti.access.exception.CardNotAssignedException;
 import it.gls.dipendenti.access.exception.LogNotFoundException;
+import it.gls.dipendenti.access.exception.ReaderThrottledException;
 import it.gls.dipendenti.access.model.AccessLog;
+import it.gls.dipendenti.access.model.AccessType;
+import it.gls.dipendenti.access.service.AccessExportService;
 import it.gls.dipendenti.access.service.AccessService;
 import it.gls.dipendenti.hr.model.Employee;
 import it.gls.dipendenti.util.ErrorResponse;
 import it.gls.dipendenti.util.Page;
 import it.gls.dipendenti.util.TimeZoneUtils;
+import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.OffsetDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 
 @RestController
 @RequestMapping("/api/access-logs")
 public class AccessLogController {
 
+    private static final String READER_ID_HEADER = "X-Reader-Id";
+    private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
     private final AccessService accessService;
+    private final ObjectMapper objectMapper;
 
-    public AccessLogController(AccessService accessService) {
+    public AccessLogController(AccessService accessService, ObjectMapper objectMapper) {
         this.accessService = accessService;
+        this.objectMapper = objectMapper;
     }
 
+    /**
+     * Badge read from a turnstile. The admission control tells readers apart by address,
+     * the id sent in X-Reader-Id only labels them in the stats.
+     * A retry sent with the same Idempotency-Key gets the response of the first read.
+     */
     @PostMapping("/read")
-    public ResponseEntity<?> readCard(@RequestBody CardRequest cardRequest) {
-        AccessService.DetailedAccessLog log = accessService.readCard(cardRequest.cardUid());
+    public ResponseEntity<?> readCard(@RequestBody CardRequest cardRequest,
+                                      @RequestHeader(value = READER_ID_HEADER, required = false) String readerId,
+                                      @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+                                      HttpServletRequest request) {
+        DetailedAccessLog log = accessService.readCard(cardRequest.cardUid(), request.getRemoteAddr(),
+                readerLabel(readerId), idempotencyKey);
         if (log == null) {
             return ResponseEntity.status(HttpStatus.ACCEPTED)
                     .body("Card registered but not assigned to any employee");
         }
+        if (log.isJournaled()) {
+            // Saved locally, it will be recorded as soon as the db catches up
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(log);
+        }
         return ResponseEntity.status(HttpStatus.CREATED).body(log);
     }
 
+    /**
+     * Counters of the badge read endpoint since startup
+     */
+    @GetMapping("/read/stats")
+    public ResponseEntity<BadgeIngestStats> getIngestStats() {
+        return ResponseEntity.ok(accessService.getIngestStats());
+    }
+
+    /**
+     * Admission counters of every reader seen recently
+     */
+    @GetMapping("/read/readers")
+    public ResponseEntity<List<ReaderRateStats>> getReaderStats() {
+        return ResponseEntity.ok(accessService.getReaderStats());
+    }
+
+    /**
+     * Bulk replay of swipes buffered by a reader while offline, uploaded by HR or an admin.
+     * Accepts newline-delimited JSON events or a JSON array. The request goes through the
+     * admission control of the reader address first, and reading stops with a 400
+     * as soon as the body holds more events than a replay accepts.
+     */
+    @PostMapping(value = "/replay", consumes = {"application/x-ndjson", "application/json"})
+    public ResponseEntity<BadgeReplayResult> replay(InputStream body,
+                                                    @RequestHeader(value = READER_ID_HEADER, required = false) String readerId,
+                                                    HttpServletRequest request) throws IOException {
+        accessService.admitReader(request.getRemoteAddr(), readerLabel(readerId));
+        int maxEvents = accessService.maxReplayEvents();
+        List<BadgeReplayEvent> events = new ArrayList<>();
+        try (MappingIterator<BadgeReplayEvent> iterator = objectMapper.readerFor(BadgeReplayEvent.class).readValues(body)) {
+            while (iterator.hasNextValue()) {
+                if (events.size() == maxEvents)
+                    throw new IllegalArgumentException("Too many events, max is %d".formatted(maxEvents));
+                events.add(iterator.nextValue());
+            }
+        }
+        return ResponseEntity.ok(accessService.replay(events));
+    }
+
+    /**
+     * Manual log, a retry sent with the same Idempotency-Key gets the log created the first time
+     */
     @PostMapping
-    public ResponseEntity<AccessLog> addManual(@RequestBody AccessLog log) {
-        return ResponseEntity.ok(accessService.addManualLog(log));
+    public ResponseEntity<AccessLog> addManual(@RequestBody AccessLog log,
+                                               @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) {
+        return ResponseEntity.ok(accessService.addManualLog(log, idempotencyKey));
     }
 
 
 
+    /**
+     * Logs of a time range or of a day. With size the result is a keyset page,
+     * the next one is requested passing back its nextCursor.
+     */
     @GetMapping
-    public ResponseEntity<List<AccessLog>> getLogsInRange(
+    public ResponseEntity<?> getLogsInRange(
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime start,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime end,
-            @RequestParam(required = false) LocalDate date) {
+            @RequestParam(required = false) LocalDate date,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(required = false) Integer size) {
 
         if (start != null && end != null) {
             // ✅ Converti OffsetDateTime → Instant
-            return ResponseEntity.ok(accessService.getLogsInTimeRange(
-                    TimeZoneUtils.toInstant(start),
-                    TimeZoneUtils.toInstant(end)
-            ));
+            Instant startInstant = TimeZoneUtils.toInstant(start);
+            Instant endInstant = TimeZoneUtils.toInstant(end);
+            if (size != null)
+                return ResponseEntity.ok(accessService.getLogsInTimeRange(startInstant, endInstant, cursor, size));
+            return ResponseEntity.ok(accessService.getLogsInTimeRange(startInstant, endInstant));
         }
 
         LocalDate queryDate = date != null ? date : TimeZoneUtils.todayCompanyDate();
+        if (size != null)
+            return ResponseEntity.ok(accessService.getLogsForDate(queryDate, cursor, size));
         return ResponseEntity.ok(accessService.getLogsForDate(queryDate));
     }
 
+    /**
+     * Full export of a range for payroll and audits, as NDJSON or CSV.
+     * Rows are streamed from a db cursor while the response is written.
+     */
+    @GetMapping("/export")
+    public ResponseEntity<StreamingResponseBody> export(
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime start,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime end,
+            @RequestParam(required = false) Long employeeId,
+            @RequestParam(defaultValue = "false") boolean includeDeleted,
+            @RequestParam(defaultValue = "NDJSON") AccessExportService.ExportFormat format) {
+        StreamingResponseBody body = accessService.exportLogs(
+                TimeZoneUtils.toInstant(start), TimeZoneUtils.toInstant(end), employeeId, includeDeleted, format);
+        String fileName = "access-logs_%s_%s.%s".formatted(
+                TimeZoneUtils.toCompanyDate(start.toInstant()), TimeZoneUtils.toCompanyDate(end.toInstant()), format.extension());
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"")
+                .contentType(MediaType.parseMediaType(format.contentType()))
+                .body(body);
+    }
+
+    /**
+     * Live stream of the company's badge events and presence changes.
+     * Browsers send Last-Event-ID on reconnect, other clients can pass it as a parameter.
+     */
+    @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter stream(
+            @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId,
+            @RequestParam(value = "lastEventId", required = false) String lastEventIdParam) {
+        return accessService.subscribeEvents(lastEventId != null ? lastEventId : lastEventIdParam);
+    }
+
     @GetMapping("/detailed/all")
-    public ResponseEntity<List<AccessService.DetailedAccessLog>> getAllDetailedLogs(@RequestParam LocalDate date) {
-        return ResponseEntity.ok(accessService.getDetailedLogsForDate(date));
+    public ResponseEntity<List<DetailedAccessLog>> getAllDetailedLogs(
+            @RequestParam LocalDate date,
+            @RequestParam(required = false) Long groupId,
+            @RequestParam(required = false) AccessType type) {
+        return ResponseEntity.ok(accessService.getDetailedLogsForDate(date, groupId, type));
     }
 
     @GetMapping("/employee/{employeeId}")
-    public ResponseEntity<List<AccessLog>> getLogsByEmployee(
+    public ResponseEntity<?> getLogsByEmployee(
             @PathVariable Long employeeId,
             @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime start,
-            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime end) {
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime end,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(required = false) Integer size) {
+        if (size != null) {
+            return ResponseEntity.ok(accessService.getLogsInTimeRangeByEmployee(
+                    employeeId, start.toInstant(), end.toInstant(), cursor, size));
+        }
         List<AccessLog> logs = accessService.getLogsInTimeRangeByEmployee(employeeId, start.toInstant(), end.toInstant());
         return ResponseEntity.ok(logs);
     }
@@ -112,14 +245,39 @@ public class AccessLogController {
 
 
     @GetMapping("/anomalies")
-    public ResponseEntity<List<AccessAnomalyDTO>> getAllAnomalies(
+    public ResponseEntity<?> getAllAnomalies(
             @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate startDate,
-            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate endDate) {
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate endDate,
+            @RequestParam(required = false) AnomalyStatus status,
+            @RequestParam(required = false) Integer page,
+            @RequestParam(required = false) Integer size) {
 
-        List<AccessAnomalyDTO> anomalies = accessService.findAllAnomalies(startDate, endDate);
+        if (page != null && size != null) {
+            return ResponseEntity.ok(accessService.findAllAnomalies(startDate, endDate, status, page, size));
+        }
+        List<AccessAnomalyDTO> anomalies = accessService.findAllAnomalies(startDate, endDate, status);
         return ResponseEntity.ok(anomalies);
     }
 
+    /**
+     * Acknowledges, resolves or reopens an anomaly
+     */
+    @PutMapping("/anomalies/{id}/status")
+    public ResponseEntity<Void> updateAnomalyStatus(@PathVariable Long id, @RequestBody AnomalyStatusRequest request) {
+        accessService.updateAnomalyStatus(id, request.status());
+        return ResponseEntity.noContent().build();
+    }
+
+    /**
+     * Re-evaluates the anomaly index of the current company for a date range
+     */
+    @PostMapping("/anomalies/rebuild")
+    public ResponseEntity<AnomalyRebuildResponse> rebuildAnomalies(
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate startDate,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate endDate) {
+        return ResponseEntity.ok(new AnomalyRebuildResponse(accessService.rebuildAnomalies(startDate, endDate)));
+    }
+
     @GetMapping("/employee/{employeeId}/has-anomalies")
     public ResponseEntity<AnomalyCheckResponse> checkEmployeeAnomalies(
             @PathVariable Long employeeId,
@@ -130,11 +288,31 @@ public class AccessLogController {
         return ResponseEntity.ok(new AnomalyCheckResponse(hasAnomalies));
     }
 
+    /**
+     * Anomaly flags of many employees at once, the given ids plus the members of the group
+     */
+    @PostMapping("/anomalies/check")
+    public ResponseEntity<AnomalyBatchCheckResponse> checkAnomalies(@RequestBody AnomalyBatchCheckRequest request) {
+        return ResponseEntity.ok(new AnomalyBatchCheckResponse(accessService.hasAnomaliesInRange(
+                request.employeeIds(), request.groupId(), request.startDate(), request.endDate())));
+    }
+
+    /**
+     * Rebuilds the daily work summaries of the current company for a date range
+     */
+    @PostMapping("/summaries/rebuild")
+    public ResponseEntity<SummaryRebuildResponse> rebuildSummaries(
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate startDate,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate endDate) {
+        return ResponseEntity.ok(new SummaryRebuildResponse(accessService.rebuildWorkSummaries(startDate, endDate)));
+    }
+
     @GetMapping("/count")
-    public ResponseEntity<ActiveCount> getActiveCount() {
-        return ResponseEntity.ok(
-                new ActiveCount(accessService.getEmployeesWorking())
-        );
+    public ResponseEntity<ActiveCount> getActiveCount(@RequestParam(required = false) Long groupId) {
+        Long count = groupId == null
+                ? accessService.getEmployeesWorking()
+                : accessService.getGroupEmployeesWorking(groupId);
+        return ResponseEntity.ok(new ActiveCount(count));
     }
 
 
@@ -145,18 +323,47 @@ public class AccessLogController {
         return ResponseEntity.status(HttpStatus.NOT_FOUND).body(error);
     }
 
+    @ExceptionHandler(AnomalyNotFoundException.class)
+    public ResponseEntity<ErrorResponse> handleAnomalyNotFound(AnomalyNotFoundException ex) {
+        ErrorResponse error = new ErrorResponse("Anomaly not found", HttpStatus.NOT_FOUND.value());
+        return ResponseEntity.status(HttpStatus.NOT_FOUND).body(error);
+    }
+
     @ExceptionHandler(CardNotAssignedException.class)
     public ResponseEntity<ErrorResponse> handleCardNotAssigned(CardNotAssignedException ex) {
         ErrorResponse error = new ErrorResponse("Card not Assigned", HttpStatus.UNPROCESSABLE_ENTITY.value());
         return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY).body(error);
     }
 
+    @ExceptionHandler(ReaderThrottledException.class)
+    public ResponseEntity<ErrorResponse> handleReaderThrottled(ReaderThrottledException ex) {
+        ErrorResponse error = new ErrorResponse(ex.getMessage(), HttpStatus.TOO_MANY_REQUESTS.value());
+        long retryAfterSeconds = Math.max(1, (ex.getRetryAfterMillis() + 999) / 1000);
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, Long.toString(retryAfterSeconds))
+                .header("X-Retry-After-Ms", Long.toString(ex.getRetryAfterMillis()))
+                .body(error);
+    }
+
+    @ExceptionHandler(BadgeReadRejectedException.class)
+    public ResponseEntity<ErrorResponse> handleBadgeReadRejected(BadgeReadRejectedException ex) {
+        ErrorResponse error = new ErrorResponse(ex.getMessage(), HttpStatus.SERVICE_UNAVAILABLE.value());
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(error);
+    }
+
     @ExceptionHandler(IllegalArgumentException.class)
     public ResponseEntity<ErrorResponse> handleIllegalArgument(IllegalArgumentException ex) {
         ErrorResponse error = new ErrorResponse(ex.getMessage(), HttpStatus.BAD_REQUEST.value());
         return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(error);
     }
 
+    private static String readerLabel(String readerId) {
+        if (readerId == null || readerId.isBlank())
+            return null;
+        String trimmed = readerId.trim();
+        return trimmed.length() > 64 ? trimmed.substring(0, 64) : trimmed;
+    }
+
     public record CardRequest(
             String cardUid
     ) {}
@@ -164,4 +371,10 @@ public class AccessLogController {
     public record ActiveCount(Long count) {}
     public record WorkStatus(Boolean isWorking) {}
     public record AnomalyCheckResponse(boolean hasAnomalies) {}
+    public record AnomalyBatchCheckRequest(List<Long> employeeIds, Long groupId,
+                                           LocalDate startDate, LocalDate endDate) {}
+    public record AnomalyBatchCheckResponse(Map<Long, Boolean> hasAnomalies) {}
+    public record SummaryRebuildResponse(int days) {}
+    public record AnomalyStatusRequest(AnomalyStatus status) {}
+    public record AnomalyRebuildResponse(int anomalies) {}
 }
\ No newline at end of file
@@ -3,18 +3,33 @@ package it.gls.dipendenti.access.dto;
 import java.time.LocalDate;
 
 /**
- * DTO representing an access anomaly for an employee on a specific day
+ * DTO representing an access anomaly for an employee on a specific day.
+ * Id and status are set only once the anomaly has been stored in the index.
  */
 public record AccessAnomalyDTO(
+        Long id,
         Long employeeId,
         LocalDate date,
         AnomalyType type,
         String description,
-        String employeeName
+        String employeeName,
+        AnomalyStatus status
 ) {
+    public AccessAnomalyDTO(Long employeeId, LocalDate date, AnomalyType type, String description, String employeeName) {
+        this(null, employeeId, date, type, description, employeeName, AnomalyStatus.OPEN);
+    }
+
     public enum AnomalyType {
         MISSING_EXIT,
         MISSING_ENTRY,
-        ODD_NUMBER_LOGS
+        ODD_NUMBER_LOGS,
+        ABSENT_WITHOUT_JUSTIFICATION,
+        PRESENT_DURING_ABSENCE
+    }
+
+    public enum AnomalyStatus {
+        OPEN,
+        ACKNOWLEDGED,
+        RESOLVED
     }
-}
\ No newline at end of file
+}
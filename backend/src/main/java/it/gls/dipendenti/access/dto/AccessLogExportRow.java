@@ -0,0 +1,21 @@
+package it.gls.dipendenti.access.dto;
+
+import java.time.Instant;
+
+/**
+ * One exported log with employee and card already joined
+ */
+public record AccessLogExportRow(
+        Long id,
+        Long employeeId,
+        String employeeName,
+        String employeeSurname,
+        String taxCode,
+        Long cardId,
+        String cardUid,
+        Instant timestamp,
+        String type,
+        boolean modified,
+        Instant modifiedAt,
+        boolean deleted
+) {}
@@ -0,0 +1,19 @@
+package it.gls.dipendenti.access.dto;
+
+/**
+ * Counters of the badge read endpoint since startup
+ * @param suppressedReads repeated reads within the debounce window, answered with the first log
+ * @param throttledReads reads refused by the per-reader admission control
+ * @param journalEnabled whether reads go through the local journal
+ * @param journalPending reads journaled and not yet drained to the db
+ * @param ackP99Micros 99th percentile of the time to make a read durable in the journal
+ * @param commitP99Micros 99th percentile of the time to commit a read in the db
+ */
+public record BadgeIngestStats(
+        long suppressedReads,
+        long throttledReads,
+        boolean journalEnabled,
+        int journalPending,
+        long ackP99Micros,
+        long commitP99Micros
+) {}
@@ -0,0 +1,11 @@
+package it.gls.dipendenti.access.dto;
+
+import java.time.OffsetDateTime;
+
+/**
+ * A swipe buffered by a reader while offline, replayed with its original timestamp
+ */
+public record BadgeReplayEvent(
+        String cardUid,
+        OffsetDateTime timestamp
+) {}
@@ -0,0 +1,21 @@
+package it.gls.dipendenti.access.dto;
+
+/**
+ * Outcome of a bulk replay
+ * @param received events in the request
+ * @param inserted new logs written
+ * @param retyped stored logs whose IN/OUT changed after the merge, now marked as modified
+ * @param duplicates events with the timestamp of a stored log, deleted ones included
+ * @param unknownCards events of cards never seen before, registered but not logged
+ * @param unassigned events of cards without an owner at that date
+ * @param rejected events of deleted cards, with a future timestamp or of another company's employees
+ */
+public record BadgeReplayResult(
+        int received,
+        long inserted,
+        int retyped,
+        int duplicates,
+        int unknownCards,
+        int unassigned,
+        int rejected
+) {}
@@ -0,0 +1,30 @@
+package it.gls.dipendenti.access.dto;
+
+import java.time.Instant;
+
+/**
+ * Access log with the employee and card data shown by the dashboards
+ */
+public record DetailedAccessLog(
+        Long id,
+        Long employeeId,
+        String employeeName,
+        String employeeSurname,
+        Long cardId,
+        String cardUid,
+        Instant timestamp,
+        String type,
+        boolean modified,
+        boolean deleted
+) {
+    /**
+     * A read saved in the local journal but not yet in the db: only uid and timestamp are known
+     */
+    public static DetailedAccessLog journaled(String cardUid, Instant timestamp) {
+        return new DetailedAccessLog(null, null, null, null, null, cardUid, timestamp, null, false, false);
+    }
+
+    public boolean isJournaled() {
+        return id == null;
+    }
+}
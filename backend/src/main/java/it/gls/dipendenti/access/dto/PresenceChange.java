@@ -0,0 +1,13 @@
+package it.gls.dipendenti.access.dto;
+
+/**
+ * Presence event pushed to the dashboards
+ * @param employeeId employee who entered or left, null when the counters have been recounted
+ * @param atWork whether the employee is now at work
+ * @param atWorkCount employees of the company at work after the change
+ */
+public record PresenceChange(
+        Long employeeId,
+        boolean atWork,
+        long atWorkCount
+) {}
@@ -0,0 +1,21 @@
+package it.gls.dipendenti.access.dto;
+
+import java.time.Instant;
+
+/**
+ * Admission counters of one reader since it was first seen
+ * @param address remote address of the reader, "overflow" for the bucket shared when too many are tracked
+ * @param readerId last reader id sent from that address, null if it never sent one
+ * @param admitted reads let through
+ * @param throttled reads answered with 429
+ * @param availableBurst reads it could send right now without being throttled
+ * @param lastSeen time of its last read
+ */
+public record ReaderRateStats(
+        String address,
+        String readerId,
+        long admitted,
+        long throttled,
+        int availableBurst,
+        Instant lastSeen
+) {}
@@ -0,0 +1,8 @@
+package it.gls.dipendenti.access.exception;
+
+public class AnomalyNotFoundException extends RuntimeException {
+    public AnomalyNotFoundException(String message) {
+        super(message);
+    }
+    public AnomalyNotFoundException() {super("Anomaly not found");}
+}
@@ -0,0 +1,7 @@
+package it.gls.dipendenti.access.exception;
+
+public class BadgeReadRejectedException extends RuntimeException {
+    public BadgeReadRejectedException(String message) {
+        super(message);
+    }
+}
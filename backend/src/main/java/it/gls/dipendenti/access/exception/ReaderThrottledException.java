@@ -0,0 +1,14 @@
+package it.gls.dipendenti.access.exception;
+
+public class ReaderThrottledException extends RuntimeException {
+    private final long retryAfterMillis;
+
+    public ReaderThrottledException(String readerId, long retryAfterMillis) {
+        super("Too many reads from reader %s".formatted(readerId));
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
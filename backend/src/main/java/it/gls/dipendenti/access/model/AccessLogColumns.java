@@ -0,0 +1,112 @@
+package it.gls.dipendenti.access.model;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Column-wise list of access logs for range analytics.
+ * One primitive array per field instead of one {@link AccessLog} per row: about 25 bytes
+ * a log against the 100+ of a record with its boxed ids and {@code Instant}s, and a walk
+ * over the rows allocates nothing.
+ * Timestamps are epoch microseconds, the precision of the db, so minute arithmetic gives
+ * the same results as on {@code Instant}s.
+ */
+public final class AccessLogColumns {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int size;
+    private long[] ids;
+    private long[] employeeIds;
+    private long[] timestamps;
+    // 1 = IN, 0 = OUT
+    private byte[] types;
+    private final BitSet modified = new BitSet();
+
+    public AccessLogColumns() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public AccessLogColumns(int capacity) {
+        int initial = Math.max(capacity, 16);
+        ids = new long[initial];
+        employeeIds = new long[initial];
+        timestamps = new long[initial];
+        types = new byte[initial];
+    }
+
+    /**
+     * Appends a row, used by the repository while reading the result set of logs not deleted
+     */
+    public void add(long id, long employeeId, long epochMicros, AccessType type, boolean isModified) {
+        if (size == ids.length)
+            grow();
+        ids[size] = id;
+        employeeIds[size] = employeeId;
+        timestamps[size] = epochMicros;
+        types[size] = (byte) (type == AccessType.IN ? 1 : 0);
+        if (isModified)
+            modified.set(size);
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long id(int row) {
+        return ids[row];
+    }
+
+    public long employeeId(int row) {
+        return employeeIds[row];
+    }
+
+    public long epochMicros(int row) {
+        return timestamps[row];
+    }
+
+    public long epochSecond(int row) {
+        return Math.floorDiv(timestamps[row], 1_000_000L);
+    }
+
+    public boolean isIn(int row) {
+        return types[row] == 1;
+    }
+
+    public AccessType type(int row) {
+        return isIn(row) ? AccessType.IN : AccessType.OUT;
+    }
+
+    public boolean isModified(int row) {
+        return modified.get(row);
+    }
+
+    /**
+     * Timestamp of a row as an {@code Instant}, allocates: not for hot loops
+     */
+    public Instant timestamp(int row) {
+        long micros = timestamps[row];
+        return Instant.ofEpochSecond(Math.floorDiv(micros, 1_000_000L), Math.floorMod(micros, 1_000_000L) * 1000L);
+    }
+
+    /**
+     * Whole minutes between two rows, truncated like {@code ChronoUnit.MINUTES.between}
+     */
+    public long minutesBetween(int from, int to) {
+        return (timestamps[to] - timestamps[from]) / 60_000_000L;
+    }
+
+    private void grow() {
+        int capacity = ids.length + (ids.length >> 1);
+        ids = Arrays.copyOf(ids, capacity);
+        employeeIds = Arrays.copyOf(employeeIds, capacity);
+        timestamps = Arrays.copyOf(timestamps, capacity);
+        types = Arrays.copyOf(types, capacity);
+    }
+}
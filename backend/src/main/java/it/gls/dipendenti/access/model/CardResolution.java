@@ -0,0 +1,41 @@
+package it.gls.dipendenti.access.model;
+
+import it.gls.dipendenti.hr.model.Employee;
+
+/**
+ * Result of resolving a card uid to its owner.
+ * Only ASSIGNED resolutions carry an assignment and an employee.
+ */
+public record CardResolution(
+        Status status,
+        Card card,
+        CardAssignment assignment,
+        Employee employee
+) {
+
+    public enum Status {
+        ASSIGNED,
+        UNASSIGNED,
+        DELETED,
+        UNKNOWN
+    }
+
+    public static CardResolution unknown() {
+        return new CardResolution(Status.UNKNOWN, null, null, null);
+    }
+
+    public static CardResolution of(Card card, CardAssignment assignment, Employee employee) {
+        if (card.deleted())
+            return new CardResolution(Status.DELETED, card, null, null);
+        if (assignment == null)
+            return new CardResolution(Status.UNASSIGNED, card, null, null);
+        return new CardResolution(Status.ASSIGNED, card, assignment, employee);
+    }
+
+    /**
+     * Company the card belongs to, null if it is not assigned
+     */
+    public Long companyId() {
+        return employee != null ? employee.companyId() : null;
+    }
+}
@@ -0,0 +1,15 @@
+package it.gls.dipendenti.access.model;
+
+import java.time.Instant;
+import java.time.LocalDate;
+
+public record DailyWorkSummary(
+        Long employeeId,
+        LocalDate workDate,
+        int workedMinutes,
+        Instant firstIn,
+        Instant lastOut,
+        int pairCount,
+        int logCount,
+        boolean anomaly
+) {}
@@ -0,0 +1,11 @@
+package it.gls.dipendenti.access.model;
+
+import java.time.LocalDate;
+
+/**
+ * An employee on a company day
+ */
+public record EmployeeDay(
+        Long employeeId,
+        LocalDate day
+) {}
@@ -0,0 +1,12 @@
+package it.gls.dipendenti.access.model;
+
+import java.time.Instant;
+import java.time.LocalDate;
+
+public record EmployeePresence(
+        Long employeeId,
+        AccessType lastType,
+        Instant lastTimestamp,
+        LocalDate companyDay
+) {
+}
@@ -0,0 +1,39 @@
+package it.gls.dipendenti.access.model;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+/**
+ * Position in a list of logs ordered by timestamp and id, newest first.
+ * Travels to the client as an opaque url-safe token.
+ */
+public record LogCursor(Instant timestamp, Long id) {
+
+    public static LogCursor after(AccessLog log) {
+        return new LogCursor(log.timestamp(), log.id());
+    }
+
+    public String encode() {
+        String raw = timestamp + "|" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param token token returned as nextCursor, null or blank for the first page
+     * @return decoded cursor, null for the first page
+     * @throws IllegalArgumentException if the token is not a valid cursor
+     */
+    public static LogCursor decode(String token) {
+        if (token == null || token.isBlank())
+            return null;
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            int separator = raw.indexOf('|');
+            return new LogCursor(Instant.parse(raw.substring(0, separator)), Long.parseLong(raw.substring(separator + 1)));
+        } catch (IllegalArgumentException | DateTimeParseException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package it.gls.dipendenti.access.model;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Worked time of all the employees of a company in a date range, one slot per employee.
+ * Employees are sorted by id and looked up with a binary search; an employee without
+ * logs in the range has no slot and reads as zero.
+ * Worked days and days left open are kept as bitsets per employee, one bit per day of the range.
+ */
+public final class WorkedTimeTable {
+
+    private final LocalDate startDate;
+    private final int days;
+    private final int size;
+    private final long[] employeeIds;
+    private final int[] workedMinutes;
+    private final int[] pairs;
+    private final int[] openIntervals;
+    private final long[] workedDayBits;
+    private final long[] openDayBits;
+    private final int wordsPerEmployee;
+
+    /**
+     * Arrays are taken as they are, only the first {@code size} slots are used
+     */
+    public WorkedTimeTable(LocalDate startDate, int days, int size, long[] employeeIds,
+                           int[] workedMinutes, int[] pairs, int[] openIntervals,
+                           long[] workedDayBits, long[] openDayBits) {
+        this.startDate = startDate;
+        this.days = days;
+        this.size = size;
+        this.employeeIds = employeeIds;
+        this.workedMinutes = workedMinutes;
+        this.pairs = pairs;
+        this.openIntervals = openIntervals;
+        this.workedDayBits = workedDayBits;
+        this.openDayBits = openDayBits;
+        this.wordsPerEmployee = wordsPerEmployee(days);
+    }
+
+    public static int wordsPerEmployee(int days) {
+        return (days + 63) >>> 6;
+    }
+
+    public LocalDate startDate() {
+        return startDate;
+    }
+
+    public LocalDate endDate() {
+        return startDate.plusDays(days - 1L);
+    }
+
+    /**
+     * Number of employees with at least one log in the range
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(Long employeeId) {
+        return indexOf(employeeId) >= 0;
+    }
+
+    /**
+     * Minutes of the complete IN/OUT pairs, same rules as the daily summaries
+     */
+    public int workedMinutes(Long employeeId) {
+        int index = indexOf(employeeId);
+        return index >= 0 ? workedMinutes[index] : 0;
+    }
+
+    public double workedHours(Long employeeId) {
+        return workedMinutes(employeeId) / 60.0;
+    }
+
+    public int pairs(Long employeeId) {
+        int index = indexOf(employeeId);
+        return index >= 0 ? pairs[index] : 0;
+    }
+
+    /**
+     * Days closed with an odd number of logs, i.e. with an interval left open
+     */
+    public int openIntervals(Long employeeId) {
+        int index = indexOf(employeeId);
+        return index >= 0 ? openIntervals[index] : 0;
+    }
+
+    public int workedDayCount(Long employeeId) {
+        int index = indexOf(employeeId);
+        if (index < 0)
+            return 0;
+        int count = 0;
+        int base = index * wordsPerEmployee;
+        for (int w = 0; w < wordsPerEmployee; w++)
+            count += Long.bitCount(workedDayBits[base + w]);
+        return count;
+    }
+
+    /**
+     * Days of the range in which the employee has at least one log, in order
+     */
+    public List<LocalDate> workedDays(Long employeeId) {
+        return days(workedDayBits, indexOf(employeeId));
+    }
+
+    /**
+     * Days of the range closed with an odd number of logs, in order
+     */
+    public List<LocalDate> openDays(Long employeeId) {
+        return days(openDayBits, indexOf(employeeId));
+    }
+
+    private List<LocalDate> days(long[] bits, int index) {
+        if (index < 0)
+            return List.of();
+        List<LocalDate> result = new ArrayList<>();
+        int base = index * wordsPerEmployee;
+        for (int w = 0; w < wordsPerEmployee; w++) {
+            long word = bits[base + w];
+            while (word != 0) {
+                int bit = Long.numberOfTrailingZeros(word);
+                result.add(startDate.plusDays((w << 6) + bit));
+                word &= word - 1;
+            }
+        }
+        return result;
+    }
+
+    private int indexOf(Long employeeId) {
+        if (employeeId == null)
+            return -1;
+        return Arrays.binarySearch(employeeIds, 0, size, employeeId);
+    }
+}
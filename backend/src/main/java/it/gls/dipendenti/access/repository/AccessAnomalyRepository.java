@@ -0,0 +1,252 @@
+package it.gls.dipendenti.access.repository;
+
+import it.gls.dipendenti.access.dto.AccessAnomalyDTO;
+import it.gls.dipendenti.access.dto.AccessAnomalyDTO.AnomalyStatus;
+import it.gls.dipendenti.access.dto.AccessAnomalyDTO.AnomalyType;
+import it.gls.dipendenti.util.Page;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Repository;
+
+import java.sql.*;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * Persisted index of the anomalies found on closed days.
+ * Rows are keyed by (employee, day, type) and keep their status across re-evaluations;
+ * a re-evaluation marks the rows still detected and then drops the others.
+ */
+@Repository
+public class AccessAnomalyRepository {
+
+    private static final String SELECT = """
+        SELECT aa.id, aa.employee_id, aa.anomaly_date, aa.type, aa.description, aa.status,
+               e.name, e.surname
+        FROM access_anomalies aa
+        JOIN employees e ON aa.employee_id = e.id
+        """;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final RowMapper<AccessAnomalyDTO> rowMapper = new AccessAnomalyRowMapper();
+
+    public AccessAnomalyRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Inserts the detected anomalies or marks them as evaluated again, keeping their status.
+     * The evaluation time is the transaction start, see {@link #deleteNotEvaluatedInRange}.
+     * The company is taken from the employee.
+     * @param anomalies at most one per employee, day and type
+     */
+    public void upsertAll(List<AccessAnomalyDTO> anomalies) {
+        if (anomalies.isEmpty())
+            return;
+        String sql = """
+            INSERT INTO access_anomalies (employee_id, company_id, anomaly_date, type, description, detected_at, evaluated_at)
+            VALUES (?, (SELECT company_id FROM employees WHERE id = ?), ?, ?, ?, NOW(), NOW())
+            ON CONFLICT (employee_id, anomaly_date, type) DO UPDATE SET
+                description = EXCLUDED.description,
+                evaluated_at = NOW()
+            """;
+        jdbcTemplate.batchUpdate(sql, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                AccessAnomalyDTO anomaly = anomalies.get(i);
+                ps.setLong(1, anomaly.employeeId());
+                ps.setLong(2, anomaly.employeeId());
+                ps.setDate(3, Date.valueOf(anomaly.date()));
+                ps.setString(4, anomaly.type().name());
+                ps.setString(5, anomaly.description());
+            }
+
+            @Override
+            public int getBatchSize() {
+                return anomalies.size();
+            }
+        });
+    }
+
+    /**
+     * Removes the anomalies of a company in a date range that were not detected again
+     * by {@link #upsertAll} in the current transaction
+     * @return number of rows removed
+     */
+    public int deleteNotEvaluatedInRange(Long companyId, LocalDate startDate, LocalDate endDate) {
+        String sql = """
+            DELETE FROM access_anomalies
+            WHERE company_id = ? AND anomaly_date BETWEEN ? AND ? AND evaluated_at < NOW()
+            """;
+        return jdbcTemplate.update(sql, companyId, startDate, endDate);
+    }
+
+    /**
+     * Removes the anomalies of an employee on the given days that were not detected again
+     * by {@link #upsertAll} in the current transaction
+     * @return number of rows removed
+     */
+    public int deleteNotEvaluatedOnDays(Long employeeId, Collection<LocalDate> days) {
+        if (days.isEmpty())
+            return 0;
+        String sql = """
+            DELETE FROM access_anomalies
+            WHERE employee_id = ? AND anomaly_date = ANY(?) AND evaluated_at < NOW()
+            """;
+        return jdbcTemplate.execute((ConnectionCallback<Integer>) con -> {
+            try (PreparedStatement ps = con.prepareStatement(sql)) {
+                ps.setLong(1, employeeId);
+                ps.setArray(2, con.createArrayOf("date", days.stream().map(Date::valueOf).toArray()));
+                return ps.executeUpdate();
+            }
+        });
+    }
+
+    /**
+     * Anomalies of a company in a date range with pagination
+     * @param status only anomalies in this status, all if null
+     */
+    public Page<AccessAnomalyDTO> findByCompany(Long companyId, LocalDate startDate, LocalDate endDate,
+                                                AnomalyStatus status, int page, int size) {
+        if (page < 0 || size <= 0) {
+            throw new IllegalArgumentException("Invalid pagination parameters");
+        }
+        String sql = SELECT + """
+            WHERE aa.company_id = ? AND aa.anomaly_date BETWEEN ? AND ?
+              AND (?::varchar IS NULL OR aa.status = ?) AND e.deleted = false
+            ORDER BY aa.anomaly_date DESC, e.surname, e.name, aa.type
+            LIMIT ? OFFSET ?
+            """;
+        String statusName = status != null ? status.name() : null;
+        List<AccessAnomalyDTO> content = jdbcTemplate.query(sql, rowMapper,
+                companyId, startDate, endDate, statusName, statusName, size, page * size);
+        return new Page<>(content, page, size, countByCompany(companyId, startDate, endDate, status));
+    }
+
+    /**
+     * Anomalies of a company in a date range
+     * @param status only anomalies in this status, all if null
+     */
+    public List<AccessAnomalyDTO> findByCompany(Long companyId, LocalDate startDate, LocalDate endDate,
+                                                AnomalyStatus status) {
+        String sql = SELECT + """
+            WHERE aa.company_id = ? AND aa.anomaly_date BETWEEN ? AND ?
+              AND (?::varchar IS NULL OR aa.status = ?) AND e.deleted = false
+            ORDER BY aa.anomaly_date DESC, e.surname, e.name, aa.type
+            """;
+        String statusName = status != null ? status.name() : null;
+        return jdbcTemplate.query(sql, rowMapper, companyId, startDate, endDate, statusName, statusName);
+    }
+
+    public long countByCompany(Long companyId, LocalDate startDate, LocalDate endDate, AnomalyStatus status) {
+        String sql = """
+            SELECT COUNT(*) FROM access_anomalies aa
+            JOIN employees e ON aa.employee_id = e.id
+            WHERE aa.company_id = ? AND aa.anomaly_date BETWEEN ? AND ?
+              AND (?::varchar IS NULL OR aa.status = ?) AND e.deleted = false
+            """;
+        String statusName = status != null ? status.name() : null;
+        Long count = jdbcTemplate.queryForObject(sql, Long.class, companyId, startDate, endDate, statusName, statusName);
+        return count != null ? count : 0;
+    }
+
+    /**
+     * Whether an employee has anomalies of the given types not yet resolved in a date range
+     */
+    public boolean existsUnresolved(Long employeeId, LocalDate startDate, LocalDate endDate,
+                                    Collection<AnomalyType> types) {
+        String sql = """
+            SELECT EXISTS (
+                SELECT 1 FROM access_anomalies
+                WHERE employee_id = ? AND anomaly_date BETWEEN ? AND ?
+                  AND status <> 'RESOLVED' AND type = ANY(?)
+            )
+            """;
+        Boolean exists = jdbcTemplate.execute((ConnectionCallback<Boolean>) con -> {
+            try (PreparedStatement ps = con.prepareStatement(sql)) {
+                ps.setLong(1, employeeId);
+                ps.setDate(2, Date.valueOf(startDate));
+                ps.setDate(3, Date.valueOf(endDate));
+                ps.setArray(4, con.createArrayOf("varchar", types.stream().map(Enum::name).toArray()));
+                try (ResultSet rs = ps.executeQuery()) {
+                    return rs.next() && rs.getBoolean(1);
+                }
+            }
+        });
+        return Boolean.TRUE.equals(exists);
+    }
+
+    /**
+     * Same check as {@link #existsUnresolved} for many employees of a company in one query.
+     * Employees are the given ids plus the members of the group; ids of other companies
+     * and deleted employees are left out.
+     * @param employeeIds employees to check, may be empty
+     * @param groupId also check the members of this group, may be null
+     * @return flag of every checked employee, by ascending id
+     */
+    public Map<Long, Boolean> findUnresolvedFlags(Long companyId, Collection<Long> employeeIds, Long groupId,
+                                                  LocalDate startDate, LocalDate endDate,
+                                                  Collection<AnomalyType> types) {
+        String sql = """
+            SELECT e.id, EXISTS (
+                SELECT 1 FROM access_anomalies aa
+                WHERE aa.employee_id = e.id AND aa.anomaly_date BETWEEN ? AND ?
+                  AND aa.status <> 'RESOLVED' AND aa.type = ANY(?)
+            ) AS has_anomalies
+            FROM employees e
+            WHERE e.company_id = ? AND e.deleted = false
+              AND (e.id = ANY(?) OR (?::bigint IS NOT NULL AND EXISTS (
+                    SELECT 1 FROM group_members gm WHERE gm.group_id = ? AND gm.employee_id = e.id)))
+            ORDER BY e.id
+            """;
+        return jdbcTemplate.execute((ConnectionCallback<Map<Long, Boolean>>) con -> {
+            try (PreparedStatement ps = con.prepareStatement(sql)) {
+                ps.setDate(1, Date.valueOf(startDate));
+                ps.setDate(2, Date.valueOf(endDate));
+                ps.setArray(3, con.createArrayOf("varchar", types.stream().map(Enum::name).toArray()));
+                ps.setLong(4, companyId);
+                ps.setArray(5, con.createArrayOf("bigint", employeeIds.toArray()));
+                ps.setObject(6, groupId, Types.BIGINT);
+                ps.setObject(7, groupId, Types.BIGINT);
+                Map<Long, Boolean> flags = new LinkedHashMap<>();
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next())
+                        flags.put(rs.getLong(1), rs.getBoolean(2));
+                }
+                return flags;
+            }
+        });
+    }
+
+    /**
+     * Changes the status of an anomaly of the given company
+     * @param userId user making the change
+     * @return true if the anomaly has been found
+     */
+    public boolean updateStatus(Long id, Long companyId, AnomalyStatus status, Long userId) {
+        String sql = """
+            UPDATE access_anomalies
+            SET status = ?, status_changed_at = NOW(), status_changed_by = ?
+            WHERE id = ? AND company_id = ?
+            """;
+        return jdbcTemplate.update(sql, status.name(), userId, id, companyId) > 0;
+    }
+
+    private static class AccessAnomalyRowMapper implements RowMapper<AccessAnomalyDTO> {
+        @Override
+        public AccessAnomalyDTO mapRow(ResultSet rs, int rowNum) throws SQLException {
+            return new AccessAnomalyDTO(
+                    rs.getLong("id"),
+                    rs.getLong("employee_id"),
+                    rs.getDate("anomaly_date").toLocalDate(),
+                    AnomalyType.valueOf(rs.getString("type")),
+                    rs.getString("description"),
+                    "%s %s".formatted(rs.getString("name"), rs.getString("surname")),
+                    AnomalyStatus.valueOf(rs.getString("status"))
+            );
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package it.gls.dipendenti.access.repository;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.time.YearMonth;
+
+@Repository
+public class AccessPartitionRepository {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public AccessPartitionRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Creates the access_logs partition of a month if missing
+     * @param month month of the partition, bounds are in the company timezone
+     * @return true if the partition has been created
+     */
+    public boolean createMonthlyPartition(YearMonth month) {
+        String sql = "SELECT create_access_logs_partition(?)";
+        return Boolean.TRUE.equals(jdbcTemplate.queryForObject(sql, Boolean.class, month.atDay(1)));
+    }
+}
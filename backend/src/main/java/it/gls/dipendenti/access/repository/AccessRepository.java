@@ -1,25 +1,50 @@
 package it.gls.dipendenti.access.repository;
 
+import it.gls.dipendenti.access.dto.AccessLogExportRow;
+import it.gls.dipendenti.access.dto.DetailedAccessLog;
 import it.gls.dipendenti.access.model.AccessLog;
+import it.gls.dipendenti.access.model.AccessLogColumns;
 import it.gls.dipendenti.access.model.AccessType;
+import it.gls.dipendenti.access.model.EmployeeDay;
+import it.gls.dipendenti.access.model.LogCursor;
 import it.gls.dipendenti.util.TimeZoneUtils;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
 import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Repository;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.time.*;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
+import java.util.function.Consumer;
 
 import static java.time.ZoneOffset.UTC;
 
 @Repository
 public class AccessRepository {
 
+    private static final int STREAM_FETCH_SIZE = 1000;
+
     private final JdbcTemplate jdbcTemplate;
     private final RowMapper<AccessLog> rowMapper = new AccessRowMapper();
+    private final RowMapper<DetailedAccessLog> detailedRowMapper = (rs, rowNum) -> new DetailedAccessLog(
+            rs.getLong("id"),
+            rs.getLong("employee_id"),
+            rs.getString("name"),
+            rs.getString("surname"),
+            rs.getObject("card_id", Long.class),
+            rs.getString("uid") != null ? rs.getString("uid") : "SCONOSCIUTO",
+            TimeZoneUtils.fromTimestamp(rs.getTimestamp("timestamp")),
+            rs.getString("type"),
+            rs.getBoolean("modified"),
+            rs.getBoolean("deleted"));
 
     public AccessRepository(JdbcTemplate jdbcTemplate) {
         this.jdbcTemplate =jdbcTemplate;
@@ -40,6 +65,110 @@ public class AccessRepository {
                 accessLog.timestamp(), accessLog.type(), accessLog.modified(), accessLog.modifiedAt(), accessLog.deleted());
     }
 
+    /**
+     * Inserts many logs with a single JDBC batch
+     * @param accessLogs logs to insert
+     * @return inserted logs with new ids, in the same order
+     */
+    public List<AccessLog> addLogs(List<AccessLog> accessLogs) {
+        if (accessLogs.isEmpty())
+            return List.of();
+        String sql = """
+            INSERT INTO access_logs (employee_id, card_id, timestamp, type, modified, modified_at, deleted)
+            VALUES (?,?,?,?,?,?,?)""";
+
+        KeyHolder keyHolder = new GeneratedKeyHolder();
+        jdbcTemplate.batchUpdate(
+                con -> con.prepareStatement(sql, new String[]{"id"}),
+                new BatchPreparedStatementSetter() {
+                    @Override
+                    public void setValues(PreparedStatement ps, int i) throws SQLException {
+                        AccessLog log = accessLogs.get(i);
+                        ps.setLong(1, log.employeeId());
+                        ps.setLong(2, log.cardId());
+                        ps.setTimestamp(3, Timestamp.from(log.timestamp()));
+                        ps.setString(4, log.type().name());
+                        ps.setBoolean(5, log.modified());
+                        ps.setTimestamp(6, TimeZoneUtils.toTimestamp(log.modifiedAt()));
+                        ps.setBoolean(7, log.deleted());
+                    }
+
+                    @Override
+                    public int getBatchSize() {
+                        return accessLogs.size();
+                    }
+                },
+                keyHolder);
+
+        List<Map<String, Object>> keys = keyHolder.getKeyList();
+        List<AccessLog> saved = new ArrayList<>(accessLogs.size());
+        for (int i = 0; i < accessLogs.size(); i++) {
+            AccessLog log = accessLogs.get(i);
+            Long id = ((Number) keys.get(i).get("id")).longValue();
+            saved.add(new AccessLog(id, log.employeeId(), log.cardId(), log.timestamp(), log.type(),
+                    log.modified(), log.modifiedAt(), log.deleted()));
+        }
+        return saved;
+    }
+
+    /**
+     * Loads many logs with PostgreSQL COPY, used by bulk imports where ids are not needed
+     * @param accessLogs logs to insert
+     * @return number of rows loaded
+     */
+    public long copyLogs(List<AccessLog> accessLogs) {
+        if (accessLogs.isEmpty())
+            return 0;
+        String sql = "COPY access_logs (employee_id, card_id, timestamp, type, modified, deleted) FROM STDIN (FORMAT csv)";
+        return jdbcTemplate.execute((ConnectionCallback<Long>) con -> {
+            CopyIn copyIn = con.unwrap(PGConnection.class).getCopyAPI().copyIn(sql);
+            try {
+                StringBuilder row = new StringBuilder(64);
+                for (AccessLog log : accessLogs) {
+                    row.setLength(0);
+                    row.append(log.employeeId()).append(',')
+                            .append(log.cardId()).append(',')
+                            .append(log.timestamp()).append(',')
+                            .append(log.type().name()).append(',')
+                            .append(log.modified()).append(',')
+                            .append(log.deleted()).append('\n');
+                    byte[] bytes = row.toString().getBytes(StandardCharsets.UTF_8);
+                    copyIn.writeToCopy(bytes, 0, bytes.length);
+                }
+                return copyIn.endCopy();
+            } finally {
+                if (copyIn.isActive())
+                    copyIn.cancelCopy();
+            }
+        });
+    }
+
+    /**
+     * Changes the type of many logs with a single JDBC batch
+     * @param logs stored logs carrying their new type and modification flag
+     */
+    public void updateTypes(List<AccessLog> logs) {
+        if (logs.isEmpty())
+            return;
+        String sql = "UPDATE access_logs SET type = ?, modified = ?, modified_at = ? WHERE id = ? AND timestamp = ?";
+        jdbcTemplate.batchUpdate(sql, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                AccessLog log = logs.get(i);
+                ps.setString(1, log.type().name());
+                ps.setBoolean(2, log.modified());
+                ps.setTimestamp(3, TimeZoneUtils.toTimestamp(log.modifiedAt()));
+                ps.setLong(4, log.id());
+                ps.setTimestamp(5, Timestamp.from(log.timestamp()));
+            }
+
+            @Override
+            public int getBatchSize() {
+                return logs.size();
+            }
+        });
+    }
+
     // Get the last access log for an employee (not deleted)
     public Optional<AccessLog> getLastLogByEmployee(Long employeeId) {
         LocalDate today = TimeZoneUtils.todayCompanyDate();
@@ -55,17 +184,31 @@ public class AccessRepository {
         return jdbcTemplate.query(sql, rowMapper, employeeId, TimeZoneUtils.toTimestamp(dayStart), TimeZoneUtils.toTimestamp(dayEnd)).stream().findFirst();
     }
 
-    public boolean modifyLog(AccessLog accessLog) {
+    /**
+     * Updates a log, the previous timestamp lets the db prune the other partitions
+     * @param accessLog log with new values
+     * @param previousTimestamp timestamp currently stored
+     * @return true if the log has been updated
+     */
+    public boolean modifyLog(AccessLog accessLog, Instant previousTimestamp) {
         String sql = """
-                UPDATE access_logs SET timestamp = ?, type = ?, modified = ?, modified_at = ?, deleted = ? WHERE id = ?
+                UPDATE access_logs SET timestamp = ?, type = ?, modified = ?, modified_at = ?, deleted = ?
+                WHERE id = ? AND timestamp = ?
                 """;
         return jdbcTemplate.update(sql, Timestamp.from(accessLog.timestamp()), accessLog.type().name(), accessLog.modified(),
-                Timestamp.from(accessLog.modifiedAt()), accessLog.deleted(), accessLog.id()) > 0;
+                Timestamp.from(accessLog.modifiedAt()), accessLog.deleted(), accessLog.id(),
+                Timestamp.from(previousTimestamp)) > 0;
     }
 
-    public boolean deleteLog(Long logId) {
-        String sql = "UPDATE access_logs SET deleted = true WHERE id = ?";
-        return jdbcTemplate.update(sql, logId) > 0;
+    /**
+     * Soft deletes a log
+     * @param logId id of the log
+     * @param timestamp timestamp of the log, used for partition pruning
+     * @return true if the log has been deleted
+     */
+    public boolean deleteLog(Long logId, Instant timestamp) {
+        String sql = "UPDATE access_logs SET deleted = true WHERE id = ? AND timestamp = ?";
+        return jdbcTemplate.update(sql, logId, Timestamp.from(timestamp)) > 0;
     }
 
     public Optional<AccessLog> getById(Long logId) {
@@ -77,38 +220,249 @@ public class AccessRepository {
         return jdbcTemplate.query(sql, rowMapper, logId).stream().findFirst();
     }
 
-    // Based on previous access return the type of the next
-    public AccessType getNextType(Long employeeId, Instant now) {
-        // Converti l'istante corrente in data aziendale
-        LocalDate companyDate = TimeZoneUtils.toCompanyDate(now);
+    /**
+     * Last log of the day of every employee that badged on that day
+     * @param companyDate day in the company timezone
+     * @return one log per employee, the most recent one
+     */
+    public List<AccessLog> getLatestLogsForDay(LocalDate companyDate) {
+        String sql = """
+            SELECT DISTINCT ON (employee_id) id, employee_id, card_id, timestamp, type, modified, modified_at, deleted
+            FROM access_logs
+            WHERE timestamp >= ? AND timestamp <= ?
+              AND deleted = FALSE
+            ORDER BY employee_id, timestamp DESC
+        """;
+        return jdbcTemplate.query(sql, rowMapper,
+                TimeZoneUtils.toTimestamp(TimeZoneUtils.startOfDay(companyDate)),
+                TimeZoneUtils.toTimestamp(TimeZoneUtils.endOfDay(companyDate)));
+    }
+
 
-        // Range della giornata nel fuso aziendale
-        Instant dayStart = TimeZoneUtils.startOfDay(companyDate);
-        Instant dayEnd = TimeZoneUtils.endOfDay(companyDate);
 
+    /**
+     * Last log type of the day for many employees at once
+     * @param employeeIds employees to check
+     * @param companyDate day in the company timezone
+     * @return last type by employee id, employees without logs are missing
+     */
+    public Map<Long, AccessType> getLastTypes(Collection<Long> employeeIds, LocalDate companyDate) {
+        if (employeeIds.isEmpty())
+            return Map.of();
         String sql = """
-            SELECT type FROM access_logs
-            WHERE employee_id = ?
+            SELECT DISTINCT ON (employee_id) employee_id, type
+            FROM access_logs
+            WHERE employee_id = ANY(?)
               AND timestamp >= ?
               AND timestamp <= ?
               AND deleted = FALSE
-            ORDER BY timestamp DESC
-            LIMIT 1
+            ORDER BY employee_id, timestamp DESC
         """;
+        Map<Long, AccessType> lastTypes = new HashMap<>();
+        jdbcTemplate.query(sql,
+                ps -> {
+                    ps.setArray(1, ps.getConnection().createArrayOf("bigint", employeeIds.toArray()));
+                    ps.setTimestamp(2, TimeZoneUtils.toTimestamp(TimeZoneUtils.startOfDay(companyDate)));
+                    ps.setTimestamp(3, TimeZoneUtils.toTimestamp(TimeZoneUtils.endOfDay(companyDate)));
+                },
+                rs -> {
+                    lastTypes.put(rs.getLong("employee_id"), AccessType.valueOf(rs.getString("type")));
+                });
+        return lastTypes;
+    }
 
-        try {
-            String lastType = jdbcTemplate.queryForObject(sql, String.class,
-                    employeeId,
-                    TimeZoneUtils.toTimestamp(dayStart),
-                    TimeZoneUtils.toTimestamp(dayEnd)
-            );
-            return "IN".equalsIgnoreCase(lastType) ? AccessType.OUT : AccessType.IN;
-        } catch (EmptyResultDataAccessException e) {
-            return AccessType.IN;
+    /**
+     * Logs of many employees in a time range
+     * @param employeeIds employees to load
+     * @param startTime range start
+     * @param endTime range end
+     * @return not deleted logs ordered by employee and timestamp
+     */
+    public List<AccessLog> getLogsByEmployeesInRange(Collection<Long> employeeIds, Instant startTime, Instant endTime) {
+        return getLogsByEmployeesInRange(employeeIds, startTime, endTime, false);
+    }
+
+    /**
+     * Same as {@link #getLogsByEmployeesInRange(Collection, Instant, Instant)}
+     * @param includeDeleted whether deleted logs are returned
+     */
+    public List<AccessLog> getLogsByEmployeesInRange(Collection<Long> employeeIds, Instant startTime, Instant endTime,
+                                                     boolean includeDeleted) {
+        if (employeeIds.isEmpty())
+            return List.of();
+        String sql = """
+            SELECT id, employee_id, card_id, timestamp, type, modified, modified_at, deleted
+            FROM access_logs
+            WHERE employee_id = ANY(?)
+              AND timestamp >= ? AND timestamp <= ?
+              AND (? OR deleted = FALSE)
+            ORDER BY employee_id, timestamp, id
+        """;
+        return jdbcTemplate.query(sql,
+                ps -> {
+                    ps.setArray(1, ps.getConnection().createArrayOf("bigint", employeeIds.toArray()));
+                    ps.setTimestamp(2, TimeZoneUtils.toTimestamp(startTime));
+                    ps.setTimestamp(3, TimeZoneUtils.toTimestamp(endTime));
+                    ps.setBoolean(4, includeDeleted);
+                },
+                rowMapper);
+    }
+
+    /**
+     * Logs of many employee-days, loaded with one range query
+     * @param keys employee-days to load
+     * @return not deleted logs by employee-day, ordered by timestamp. Days without logs are missing
+     */
+    public Map<EmployeeDay, List<AccessLog>> getLogsByEmployeeDays(Set<EmployeeDay> keys) {
+        return getLogsByEmployeeDays(keys, false);
+    }
+
+    /**
+     * Same as {@link #getLogsByEmployeeDays(Set)}
+     * @param includeDeleted whether deleted logs are returned
+     */
+    public Map<EmployeeDay, List<AccessLog>> getLogsByEmployeeDays(Set<EmployeeDay> keys, boolean includeDeleted) {
+        if (keys.isEmpty())
+            return Map.of();
+        Set<Long> employeeIds = new HashSet<>();
+        LocalDate from = null, to = null;
+        for (EmployeeDay key : keys) {
+            employeeIds.add(key.employeeId());
+            if (from == null || key.day().isBefore(from))
+                from = key.day();
+            if (to == null || key.day().isAfter(to))
+                to = key.day();
+        }
+
+        Map<EmployeeDay, List<AccessLog>> logs = new HashMap<>();
+        for (AccessLog log : getLogsByEmployeesInRange(employeeIds,
+                TimeZoneUtils.startOfDay(from), TimeZoneUtils.endOfDay(to), includeDeleted)) {
+            EmployeeDay key = new EmployeeDay(log.employeeId(), TimeZoneUtils.toCompanyDate(log.timestamp()));
+            if (keys.contains(key))
+                logs.computeIfAbsent(key, k -> new ArrayList<>()).add(log);
         }
+        return logs;
+    }
+
+    /**
+     * Walks the logs of a company with a server-side cursor, ordered by employee and timestamp.
+     * Must run inside a transaction, otherwise the driver loads the whole result.
+     * @param companyId company
+     * @param startTime range start
+     * @param endTime range end
+     * @param consumer called for every not deleted log
+     */
+    public void streamLogsByEmployee(Long companyId, Instant startTime, Instant endTime, Consumer<AccessLog> consumer) {
+        String sql = """
+        SELECT al.id, al.employee_id, al.card_id, al.timestamp, al.type, al.modified, al.modified_at, al.deleted
+        FROM access_logs al
+        JOIN employees e ON al.employee_id = e.id
+        WHERE al.timestamp >= ? AND al.timestamp <= ?
+          AND e.company_id = ?
+          AND al.deleted = FALSE
+        ORDER BY al.employee_id, al.timestamp
+        """;
+        jdbcTemplate.query(
+                con -> {
+                    PreparedStatement ps = con.prepareStatement(sql);
+                    ps.setFetchSize(STREAM_FETCH_SIZE);
+                    ps.setTimestamp(1, TimeZoneUtils.toTimestamp(startTime));
+                    ps.setTimestamp(2, TimeZoneUtils.toTimestamp(endTime));
+                    ps.setLong(3, companyId);
+                    return ps;
+                },
+                rs -> {
+                    consumer.accept(rowMapper.mapRow(rs, rs.getRow()));
+                });
     }
 
+    /**
+     * Logs of a company in a time range in columns, ordered by employee and timestamp, deleted excluded.
+     * Read straight from the result set: timestamps come as epoch microseconds and types as
+     * booleans, so no {@code AccessLog}, {@code Timestamp} or {@code Instant} is created per row.
+     */
+    public AccessLogColumns getLogColumns(Long companyId, Instant startTime, Instant endTime) {
+        String sql = """
+        SELECT al.id, al.employee_id,
+               (EXTRACT(EPOCH FROM al.timestamp) * 1000000)::bigint AS epoch_micros,
+               al.type = 'IN' AS is_in, al.modified
+        FROM access_logs al
+        JOIN employees e ON al.employee_id = e.id
+        WHERE al.timestamp >= ? AND al.timestamp <= ?
+          AND e.company_id = ?
+          AND al.deleted = FALSE
+        ORDER BY al.employee_id, al.timestamp, al.id
+        """;
+        AccessLogColumns columns = new AccessLogColumns();
+        jdbcTemplate.query(
+                con -> {
+                    PreparedStatement ps = con.prepareStatement(sql);
+                    ps.setFetchSize(STREAM_FETCH_SIZE);
+                    ps.setTimestamp(1, TimeZoneUtils.toTimestamp(startTime));
+                    ps.setTimestamp(2, TimeZoneUtils.toTimestamp(endTime));
+                    ps.setLong(3, companyId);
+                    return ps;
+                },
+                rs -> {
+                    columns.add(rs.getLong(1), rs.getLong(2), rs.getLong(3),
+                            rs.getBoolean(4) ? AccessType.IN : AccessType.OUT, rs.getBoolean(5));
+                });
+        return columns;
+    }
 
+    /**
+     * Streams the logs of a company for an export, oldest first, with employee and card joined.
+     * Uses a server-side cursor: must run inside a transaction, heap use does not depend on the range.
+     * @param employeeId only the logs of this employee, may be null
+     * @param includeDeleted whether deleted logs are exported
+     * @return number of rows streamed
+     */
+    public long streamExportRows(Long companyId, Long employeeId, Instant startTime, Instant endTime,
+                                 boolean includeDeleted, Consumer<AccessLogExportRow> consumer) {
+        String sql = """
+        SELECT al.id, al.employee_id, e.name, e.surname, e.tax_code, al.card_id, c.uid,
+               al.timestamp, al.type, al.modified, al.modified_at, al.deleted
+        FROM access_logs al
+        JOIN employees e ON al.employee_id = e.id
+        JOIN cards c ON al.card_id = c.id
+        WHERE al.timestamp >= ? AND al.timestamp <= ?
+          AND e.company_id = ?
+          AND (?::bigint IS NULL OR al.employee_id = ?)
+          AND (? OR al.deleted = FALSE)
+        ORDER BY al.timestamp, al.id
+        """;
+        long[] count = new long[1];
+        jdbcTemplate.query(
+                con -> {
+                    PreparedStatement ps = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                    ps.setFetchSize(STREAM_FETCH_SIZE);
+                    ps.setTimestamp(1, TimeZoneUtils.toTimestamp(startTime));
+                    ps.setTimestamp(2, TimeZoneUtils.toTimestamp(endTime));
+                    ps.setLong(3, companyId);
+                    ps.setObject(4, employeeId, Types.BIGINT);
+                    ps.setObject(5, employeeId, Types.BIGINT);
+                    ps.setBoolean(6, includeDeleted);
+                    return ps;
+                },
+                rs -> {
+                    consumer.accept(new AccessLogExportRow(
+                            rs.getLong("id"),
+                            rs.getLong("employee_id"),
+                            rs.getString("name"),
+                            rs.getString("surname"),
+                            rs.getString("tax_code"),
+                            rs.getLong("card_id"),
+                            rs.getString("uid"),
+                            TimeZoneUtils.fromTimestamp(rs.getTimestamp("timestamp")),
+                            rs.getString("type"),
+                            rs.getBoolean("modified"),
+                            TimeZoneUtils.fromTimestamp(rs.getTimestamp("modified_at")),
+                            rs.getBoolean("deleted")
+                    ));
+                    count[0]++;
+                });
+        return count[0];
+    }
 
     /**
      * Get logs in a time range (timestamps in UTC)
@@ -191,17 +545,20 @@ public class AccessRepository {
      * @return list of dates with access logs
      */
     public List<LocalDate> getDistinctLogDates(Long employeeId, LocalDate startDate, LocalDate endDate) {
+        // Filter on the raw timestamp so the index and partition pruning apply
         String sql = """
-        SELECT DISTINCT DATE(timestamp AT TIME ZONE 'UTC' AT TIME ZONE 'Europe/Rome') as log_date
+        SELECT DISTINCT (timestamp AT TIME ZONE 'Europe/Rome')::date AS log_date
         FROM access_logs
         WHERE employee_id = ?
-          AND DATE(timestamp AT TIME ZONE 'UTC' AT TIME ZONE 'Europe/Rome') BETWEEN ? AND ?
+          AND timestamp >= ? AND timestamp <= ?
           AND deleted = FALSE
         ORDER BY log_date
         """;
         return jdbcTemplate.query(sql,
                 (rs, rowNum) -> rs.getDate("log_date").toLocalDate(),
-                employeeId, startDate, endDate);
+                employeeId,
+                TimeZoneUtils.toTimestamp(TimeZoneUtils.startOfDay(startDate)),
+                TimeZoneUtils.toTimestamp(TimeZoneUtils.endOfDay(endDate)));
     }
 
     /**
@@ -238,6 +595,98 @@ public class AccessRepository {
     }
 
 
+    /**
+     * Logs of a company day with employee and card data, deleted ones included like {@link #getLogsByDate}
+     * @param groupId only the logs of the group members, may be null
+     * @param type only logs of this type, may be null
+     */
+    public List<DetailedAccessLog> getDetailedLogsByDate(LocalDate date, Long companyId, Long groupId, AccessType type) {
+        String sql = """
+        SELECT al.id, al.employee_id, e.name, e.surname, al.card_id, c.uid,
+               al.timestamp, al.type, al.modified, al.deleted
+        FROM access_logs al
+        JOIN employees e ON al.employee_id = e.id
+        LEFT JOIN cards c ON al.card_id = c.id
+        WHERE al.timestamp >= ? AND al.timestamp <= ?
+          AND e.company_id = ?
+          AND (?::bigint IS NULL OR EXISTS (
+                SELECT 1 FROM group_members gm WHERE gm.group_id = ? AND gm.employee_id = al.employee_id))
+          AND (?::varchar IS NULL OR al.type = ?)
+        ORDER BY al.timestamp DESC
+        """;
+        String typeName = type != null ? type.name() : null;
+        return jdbcTemplate.query(sql, detailedRowMapper,
+                TimeZoneUtils.toTimestamp(TimeZoneUtils.startOfDay(date)),
+                TimeZoneUtils.toTimestamp(TimeZoneUtils.endOfDay(date)),
+                companyId, groupId, groupId, typeName, typeName);
+    }
+
+    /**
+     * Logs with employee and card data by id, deleted ones included
+     * @param logIds ids of the logs
+     * @param startTime lower bound of their timestamps, used for partition pruning
+     * @param endTime upper bound of their timestamps
+     */
+    public List<DetailedAccessLog> getDetailedLogsByIds(Collection<Long> logIds, Instant startTime, Instant endTime) {
+        if (logIds.isEmpty())
+            return List.of();
+        String sql = """
+        SELECT al.id, al.employee_id, e.name, e.surname, al.card_id, c.uid,
+               al.timestamp, al.type, al.modified, al.deleted
+        FROM access_logs al
+        JOIN employees e ON al.employee_id = e.id
+        LEFT JOIN cards c ON al.card_id = c.id
+        WHERE al.id = ANY(?)
+          AND al.timestamp >= ? AND al.timestamp <= ?
+        ORDER BY al.timestamp, al.id
+        """;
+        return jdbcTemplate.query(sql,
+                ps -> {
+                    ps.setArray(1, ps.getConnection().createArrayOf("bigint", logIds.toArray()));
+                    ps.setTimestamp(2, TimeZoneUtils.toTimestamp(startTime));
+                    ps.setTimestamp(3, TimeZoneUtils.toTimestamp(endTime));
+                },
+                detailedRowMapper);
+    }
+
+    /**
+     * One page of logs in a time range, newest first, with keyset pagination on (timestamp, id).
+     * The cost of a page does not depend on how deep it is.
+     * @param companyId company, used when employeeId is null
+     * @param employeeId only the logs of this employee, may be null
+     * @param includeDeleted whether deleted logs are returned
+     * @param after last log of the previous page, null for the first page
+     * @param limit max number of logs
+     */
+    public List<AccessLog> getLogsPage(Long companyId, Long employeeId, Instant startTime, Instant endTime,
+                                       boolean includeDeleted, LogCursor after, int limit) {
+        StringBuilder sql = new StringBuilder("""
+        SELECT al.id, al.employee_id, al.card_id, al.timestamp, al.type, al.modified, al.modified_at, al.deleted
+        FROM access_logs al
+        """);
+        List<Object> params = new ArrayList<>();
+        if (employeeId != null) {
+            sql.append("WHERE al.employee_id = ?\n");
+            params.add(employeeId);
+        } else {
+            sql.append("JOIN employees e ON al.employee_id = e.id\nWHERE e.company_id = ?\n");
+            params.add(companyId);
+        }
+        sql.append("AND al.timestamp >= ? AND al.timestamp <= ?\n");
+        params.add(TimeZoneUtils.toTimestamp(startTime));
+        params.add(TimeZoneUtils.toTimestamp(endTime));
+        if (!includeDeleted)
+            sql.append("AND al.deleted = false\n");
+        if (after != null) {
+            sql.append("AND (al.timestamp, al.id) < (?, ?)\n");
+            params.add(TimeZoneUtils.toTimestamp(after.timestamp()));
+            params.add(after.id());
+        }
+        sql.append("ORDER BY al.timestamp DESC, al.id DESC LIMIT ?");
+        params.add(limit);
+        return jdbcTemplate.query(sql.toString(), rowMapper, params.toArray());
+    }
+
     private final static class AccessRowMapper implements RowMapper<AccessLog> {
 
         @Override
@@ -7,6 +7,7 @@ import org.springframework.stereotype.Repository;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -90,6 +91,21 @@ public class CardAssignmentRepository {
     }
 
 
+    /**
+     * Returns the whole assignment history of many cards, ended assignments included
+     * @param cardIds ids of the cards
+     * @return assignments ordered by card and start date
+     */
+    public List<CardAssignment> getHistoryByCards(Collection<Long> cardIds) {
+        if (cardIds.isEmpty())
+            return List.of();
+        String sql = "SELECT id, employee_id, card_id, start_date, end_date " +
+                "FROM card_assignments WHERE card_id = ANY(?) ORDER BY card_id, start_date, id";
+        return jdbcTemplate.query(sql,
+                ps -> ps.setArray(1, ps.getConnection().createArrayOf("bigint", cardIds.toArray())),
+                rowMapper);
+    }
+
     /**
      * Find the active assignment of the card
      * @param cardId id of the card
@@ -101,6 +117,21 @@ public class CardAssignmentRepository {
         return jdbcTemplate.query(sql, rowMapper, cardId).stream().findFirst();
     }
 
+    /**
+     * Find the active assignments of many cards at once
+     * @param cardIds ids of the cards
+     * @return active assignments of the given cards
+     */
+    public List<CardAssignment> getActiveAssignmentsByCards(Collection<Long> cardIds) {
+        if (cardIds.isEmpty())
+            return List.of();
+        String sql = "SELECT id, employee_id, card_id, start_date, end_date " +
+                "FROM card_assignments WHERE card_id = ANY(?) AND end_date IS NULL";
+        return jdbcTemplate.query(sql,
+                ps -> ps.setArray(1, ps.getConnection().createArrayOf("bigint", cardIds.toArray())),
+                rowMapper);
+    }
+
     /**
      * Filters for last assignment record of every not deleted card and returns the count of cards without as end_date
      * @return cards with an active assignment
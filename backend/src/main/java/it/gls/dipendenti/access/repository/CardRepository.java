@@ -7,6 +7,7 @@ import org.springframework.stereotype.Repository;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -112,6 +113,20 @@ public class CardRepository {
         }
     }
 
+    /**
+     * Returns all the cards matching one of the given uids
+     * @param uids uids to search
+     * @return list of cards found
+     */
+    public List<Card> getCardsByUids(Collection<String> uids) {
+        if (uids.isEmpty())
+            return List.of();
+        String sql = "SELECT id, uid, deleted FROM cards WHERE uid = ANY(?)";
+        return jdbcTemplate.query(sql,
+                ps -> ps.setArray(1, ps.getConnection().createArrayOf("varchar", uids.toArray())),
+                rowMapper);
+    }
+
     public List<Card> getUnassignedCards() {
         String sql = """
             SELECT c.id, c.uid, c.deleted
@@ -0,0 +1,161 @@
+package it.gls.dipendenti.access.repository;
+
+import it.gls.dipendenti.access.model.DailyWorkSummary;
+import it.gls.dipendenti.access.model.EmployeeDay;
+import it.gls.dipendenti.util.TimeZoneUtils;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public class DailyWorkSummaryRepository {
+
+    private final JdbcTemplate jdbcTemplate;
+    private final RowMapper<DailyWorkSummary> rowMapper = new DailyWorkSummaryRowMapper();
+
+    public DailyWorkSummaryRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Inserts or replaces many day summaries with a single JDBC batch.
+     * The company is taken from the employee.
+     * @param summaries summaries to write
+     */
+    public void upsertAll(List<DailyWorkSummary> summaries) {
+        if (summaries.isEmpty())
+            return;
+        String sql = """
+            INSERT INTO daily_work_summary
+                (employee_id, company_id, work_date, worked_minutes, first_in, last_out, pair_count, log_count, anomaly, updated_at)
+            VALUES (?, (SELECT company_id FROM employees WHERE id = ?), ?, ?, ?, ?, ?, ?, ?, NOW())
+            ON CONFLICT (employee_id, work_date) DO UPDATE SET
+                company_id = EXCLUDED.company_id,
+                worked_minutes = EXCLUDED.worked_minutes,
+                first_in = EXCLUDED.first_in,
+                last_out = EXCLUDED.last_out,
+                pair_count = EXCLUDED.pair_count,
+                log_count = EXCLUDED.log_count,
+                anomaly = EXCLUDED.anomaly,
+                updated_at = NOW()
+            """;
+        jdbcTemplate.batchUpdate(sql, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                DailyWorkSummary summary = summaries.get(i);
+                ps.setLong(1, summary.employeeId());
+                ps.setLong(2, summary.employeeId());
+                ps.setDate(3, Date.valueOf(summary.workDate()));
+                ps.setInt(4, summary.workedMinutes());
+                ps.setTimestamp(5, TimeZoneUtils.toTimestamp(summary.firstIn()));
+                ps.setTimestamp(6, TimeZoneUtils.toTimestamp(summary.lastOut()));
+                ps.setInt(7, summary.pairCount());
+                ps.setInt(8, summary.logCount());
+                ps.setBoolean(9, summary.anomaly());
+            }
+
+            @Override
+            public int getBatchSize() {
+                return summaries.size();
+            }
+        });
+    }
+
+    /**
+     * Removes the summaries of days that have no logs anymore
+     * @param keys employee-days to remove
+     */
+    public void deleteDays(Collection<EmployeeDay> keys) {
+        if (keys.isEmpty())
+            return;
+        List<EmployeeDay> list = new ArrayList<>(keys);
+        String sql = "DELETE FROM daily_work_summary WHERE employee_id = ? AND work_date = ?";
+        jdbcTemplate.batchUpdate(sql, new BatchPreparedStatementSetter() {
+            @Override
+            public void setValues(PreparedStatement ps, int i) throws SQLException {
+                ps.setLong(1, list.get(i).employeeId());
+                ps.setDate(2, Date.valueOf(list.get(i).day()));
+            }
+
+            @Override
+            public int getBatchSize() {
+                return list.size();
+            }
+        });
+    }
+
+    /**
+     * Removes all summaries of a company in a date range, used before a rebuild
+     * @return number of rows removed
+     */
+    public int deleteRange(Long companyId, LocalDate startDate, LocalDate endDate) {
+        String sql = "DELETE FROM daily_work_summary WHERE company_id = ? AND work_date BETWEEN ? AND ?";
+        return jdbcTemplate.update(sql, companyId, startDate, endDate);
+    }
+
+    /**
+     * Total worked minutes of an employee in a date range
+     * @return minutes, 0 if there are no summaries
+     */
+    public int sumWorkedMinutes(Long employeeId, LocalDate startDate, LocalDate endDate) {
+        String sql = """
+            SELECT COALESCE(SUM(worked_minutes), 0) FROM daily_work_summary
+            WHERE employee_id = ? AND work_date BETWEEN ? AND ?
+            """;
+        Integer minutes = jdbcTemplate.queryForObject(sql, Integer.class, employeeId, startDate, endDate);
+        return minutes != null ? minutes : 0;
+    }
+
+    /**
+     * Days in which an employee has at least one log
+     * @return ordered list of days
+     */
+    public List<LocalDate> findWorkedDays(Long employeeId, LocalDate startDate, LocalDate endDate) {
+        String sql = """
+            SELECT work_date FROM daily_work_summary
+            WHERE employee_id = ? AND work_date BETWEEN ? AND ? AND log_count > 0
+            ORDER BY work_date
+            """;
+        return jdbcTemplate.query(sql, (rs, rowNum) -> rs.getDate("work_date").toLocalDate(),
+                employeeId, startDate, endDate);
+    }
+
+    /**
+     * Day summaries of an employee in a date range
+     * @return ordered list of summaries
+     */
+    public List<DailyWorkSummary> findByEmployeeAndRange(Long employeeId, LocalDate startDate, LocalDate endDate) {
+        String sql = """
+            SELECT * FROM daily_work_summary
+            WHERE employee_id = ? AND work_date BETWEEN ? AND ?
+            ORDER BY work_date
+            """;
+        return jdbcTemplate.query(sql, rowMapper, employeeId, startDate, endDate);
+    }
+
+    private static class DailyWorkSummaryRowMapper implements RowMapper<DailyWorkSummary> {
+        @Override
+        public DailyWorkSummary mapRow(ResultSet rs, int rowNum) throws SQLException {
+            return new DailyWorkSummary(
+                    rs.getLong("employee_id"),
+                    rs.getDate("work_date").toLocalDate(),
+                    rs.getInt("worked_minutes"),
+                    TimeZoneUtils.fromTimestamp(rs.getTimestamp("first_in")),
+                    TimeZoneUtils.fromTimestamp(rs.getTimestamp("last_out")),
+                    rs.getInt("pair_count"),
+                    rs.getInt("log_count"),
+                    rs.getBoolean("anomaly")
+            );
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package it.gls.dipendenti.access.repository;
+
+import it.gls.dipendenti.util.TimeZoneUtils;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * Responses recorded under an idempotency key, so a retry can be answered after a restart
+ * or by another instance
+ */
+@Repository
+public class IdempotencyKeyRepository {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public IdempotencyKeyRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Response recorded under a key after the given time
+     * @return JSON of the response, empty if the key is unknown or expired
+     */
+    public Optional<String> findResponse(String scopeKey, Instant notBefore) {
+        String sql = "SELECT response::text FROM idempotency_keys WHERE scope_key = ? AND created_at >= ?";
+        return jdbcTemplate.query(sql, (rs, rowNum) -> rs.getString(1), scopeKey,
+                TimeZoneUtils.toTimestamp(notBefore)).stream().findFirst();
+    }
+
+    /**
+     * Records the response of a key, the first one wins
+     */
+    public void save(String scopeKey, String response) {
+        String sql = """
+            INSERT INTO idempotency_keys (scope_key, response) VALUES (?, ?::jsonb)
+            ON CONFLICT (scope_key) DO NOTHING
+            """;
+        jdbcTemplate.update(sql, scopeKey, response);
+    }
+
+    /**
+     * Removes the keys recorded before the given time
+     * @return number of keys removed
+     */
+    public int deleteOlderThan(Instant before) {
+        return jdbcTemplate.update("DELETE FROM idempotency_keys WHERE created_at < ?", TimeZoneUtils.toTimestamp(before));
+    }
+}
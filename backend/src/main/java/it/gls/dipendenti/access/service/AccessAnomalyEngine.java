@@ -0,0 +1,284 @@
+package it.gls.dipendenti.access.service;
+
+import it.gls.dipendenti.absence.model.Absence;
+import it.gls.dipendenti.absence.model.AbsenceStatus;
+import it.gls.dipendenti.absence.model.Holiday;
+import it.gls.dipendenti.absence.repository.AbsenceRepository;
+import it.gls.dipendenti.absence.repository.HolidayRepository;
+import it.gls.dipendenti.access.dto.AccessAnomalyDTO;
+import it.gls.dipendenti.access.dto.AccessAnomalyDTO.AnomalyType;
+import it.gls.dipendenti.access.model.AccessLog;
+import it.gls.dipendenti.access.model.AccessType;
+import it.gls.dipendenti.access.repository.AccessRepository;
+import it.gls.dipendenti.hr.model.Employee;
+import it.gls.dipendenti.hr.repository.EmployeeRepository;
+import it.gls.dipendenti.shift.model.ShiftAssignment;
+import it.gls.dipendenti.shift.repository.ShiftAssignmentRepository;
+import it.gls.dipendenti.util.TimeZoneUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Single-pass anomaly detection for a whole company.
+ * Logs are walked once with a cursor ordered by employee and timestamp; employees,
+ * shifts, approved absences and holidays of the range are loaded up front with one query each.
+ * Anomalies are emitted per employee in date order as soon as a day is complete.
+ */
+@Component
+public class AccessAnomalyEngine {
+
+    private final AccessRepository accessRepository;
+    private final EmployeeRepository employeeRepository;
+    private final AbsenceRepository absenceRepository;
+    private final ShiftAssignmentRepository shiftAssignmentRepository;
+    private final HolidayRepository holidayRepository;
+
+    public AccessAnomalyEngine(AccessRepository accessRepository,
+                               EmployeeRepository employeeRepository,
+                               AbsenceRepository absenceRepository,
+                               ShiftAssignmentRepository shiftAssignmentRepository,
+                               HolidayRepository holidayRepository) {
+        this.accessRepository = accessRepository;
+        this.employeeRepository = employeeRepository;
+        this.absenceRepository = absenceRepository;
+        this.shiftAssignmentRepository = shiftAssignmentRepository;
+        this.holidayRepository = holidayRepository;
+    }
+
+    /**
+     * Detects the anomalies of a company in a date range
+     * @param companyId company
+     * @param startDate first day
+     * @param endDate last day, should be a closed day
+     * @param sink receives every anomaly as soon as it is found
+     */
+    @Transactional(readOnly = true)
+    public void detect(Long companyId, LocalDate startDate, LocalDate endDate, Consumer<AccessAnomalyDTO> sink) {
+        // Deleted employees are not reported
+        Map<Long, Employee> employees = employeeRepository.findAll(companyId).stream()
+                .collect(Collectors.toMap(Employee::id, Function.identity()));
+
+        Map<Long, List<LocalDate>> shiftDays = shiftDaysByEmployee(
+                shiftAssignmentRepository.findByDateRange(startDate, endDate, companyId));
+        Map<Long, List<Absence>> absences = approvedByEmployee(
+                absenceRepository.findByDateRange(startDate, endDate, companyId));
+
+        Walker walker = new Walker(employees, shiftDays, absences, holidaysIn(startDate, endDate), sink);
+        accessRepository.streamLogsByEmployee(companyId,
+                TimeZoneUtils.startOfDay(startDate), TimeZoneUtils.endOfDay(endDate), walker::accept);
+        walker.finish();
+    }
+
+    /**
+     * Detects the anomalies of a single employee in a date range, used to re-evaluate
+     * the days touched by a log edit
+     * @param employeeId employee
+     * @param startDate first day
+     * @param endDate last day, should be a closed day
+     * @param sink receives every anomaly as soon as it is found
+     */
+    @Transactional(readOnly = true)
+    public void detectEmployee(Long employeeId, LocalDate startDate, LocalDate endDate, Consumer<AccessAnomalyDTO> sink) {
+        Employee employee = employeeRepository.findById(employeeId).orElse(null);
+        if (employee == null || employee.deleted())
+            return;
+
+        Map<Long, List<LocalDate>> shiftDays = shiftDaysByEmployee(
+                shiftAssignmentRepository.findByEmployeeIdAndDateRange(employeeId, startDate, endDate));
+        Map<Long, List<Absence>> absences = approvedByEmployee(
+                absenceRepository.findByEmployeeIdAndDateRange(employeeId, startDate, endDate));
+
+        Walker walker = new Walker(Map.of(employeeId, employee), shiftDays, absences, holidaysIn(startDate, endDate), sink);
+        List<AccessLog> logs = accessRepository.getLogsInTimeRangeByEmployee(employeeId,
+                TimeZoneUtils.startOfDay(startDate), TimeZoneUtils.endOfDay(endDate));
+        // The repository returns them newest first
+        logs.reversed().forEach(walker::accept);
+        walker.finish();
+    }
+
+    private static Map<Long, List<LocalDate>> shiftDaysByEmployee(List<ShiftAssignment> shifts) {
+        Map<Long, List<LocalDate>> shiftDays = new HashMap<>();
+        for (ShiftAssignment shift : shifts)
+            shiftDays.computeIfAbsent(shift.employeeId(), id -> new ArrayList<>()).add(shift.date());
+        shiftDays.replaceAll((id, days) -> days.stream().distinct().sorted().toList());
+        return shiftDays;
+    }
+
+    private static Map<Long, List<Absence>> approvedByEmployee(List<Absence> absences) {
+        return absences.stream()
+                .filter(a -> a.status() == AbsenceStatus.APPROVED)
+                .collect(Collectors.groupingBy(Absence::employeeId));
+    }
+
+    private Set<LocalDate> holidaysIn(LocalDate startDate, LocalDate endDate) {
+        Set<LocalDate> holidays = new HashSet<>();
+        for (Holiday holiday : holidayRepository.findAll()) {
+            if (holiday.deleted())
+                continue;
+            for (int year = startDate.getYear(); year <= endDate.getYear(); year++) {
+                if (!holiday.recurring() && holiday.year() != year)
+                    continue;
+                LocalDate date;
+                try {
+                    date = LocalDate.of(year, holiday.month(), holiday.day());
+                } catch (DateTimeException e) {
+                    // 29 February on a non leap year
+                    continue;
+                }
+                if (!date.isBefore(startDate) && !date.isAfter(endDate))
+                    holidays.add(date);
+            }
+        }
+        return holidays;
+    }
+
+    /**
+     * State of the cursor walk: the current employee, their current day and the next shift day to check
+     */
+    private static final class Walker {
+
+        private final Map<Long, Employee> employees;
+        private final Map<Long, List<LocalDate>> shiftDays;
+        private final Map<Long, List<Absence>> absences;
+        private final Set<LocalDate> holidays;
+        private final Consumer<AccessAnomalyDTO> sink;
+        private final Set<Long> visited = new HashSet<>();
+
+        private Long employeeId;
+        private String employeeName;
+        private LocalDate day;
+        private final List<AccessLog> dayLogs = new ArrayList<>();
+        private int shiftCursor;
+
+        Walker(Map<Long, Employee> employees, Map<Long, List<LocalDate>> shiftDays,
+               Map<Long, List<Absence>> absences, Set<LocalDate> holidays, Consumer<AccessAnomalyDTO> sink) {
+            this.employees = employees;
+            this.shiftDays = shiftDays;
+            this.absences = absences;
+            this.holidays = holidays;
+            this.sink = sink;
+        }
+
+        void accept(AccessLog log) {
+            if (!employees.containsKey(log.employeeId()))
+                return;
+            LocalDate logDay = TimeZoneUtils.toCompanyDate(log.timestamp());
+            if (!log.employeeId().equals(employeeId)) {
+                closeEmployee();
+                openEmployee(log.employeeId());
+            } else if (!logDay.equals(day)) {
+                closeDay();
+            }
+            day = logDay;
+            dayLogs.add(log);
+        }
+
+        void finish() {
+            closeEmployee();
+            // Employees with shifts but no logs at all in the range
+            for (Long id : shiftDays.keySet()) {
+                if (!visited.contains(id) && employees.containsKey(id)) {
+                    openEmployee(id);
+                    closeEmployee();
+                }
+            }
+        }
+
+        private void openEmployee(Long id) {
+            employeeId = id;
+            visited.add(id);
+            Employee employee = employees.get(id);
+            employeeName = "%s %s".formatted(employee.name(), employee.surname());
+            shiftCursor = 0;
+            day = null;
+        }
+
+        private void closeEmployee() {
+            if (employeeId == null)
+                return;
+            closeDay();
+            emitAbsencesBefore(null);
+            employeeId = null;
+        }
+
+        private void closeDay() {
+            if (day == null || dayLogs.isEmpty())
+                return;
+            emitAbsencesBefore(day);
+            checkLogs();
+            if (isOnFullDayAbsence(day)) {
+                emit(AnomalyType.PRESENT_DURING_ABSENCE, "Letture presenti durante un'assenza approvata");
+            }
+            dayLogs.clear();
+        }
+
+        /**
+         * Shift days before the given day (all if null) without any log
+         */
+        private void emitAbsencesBefore(LocalDate limit) {
+            List<LocalDate> days = shiftDays.getOrDefault(employeeId, List.of());
+            while (shiftCursor < days.size() && (limit == null || !days.get(shiftCursor).isAfter(limit))) {
+                LocalDate shiftDay = days.get(shiftCursor++);
+                if (shiftDay.equals(limit) || holidays.contains(shiftDay) || isJustified(shiftDay))
+                    continue;
+                sink.accept(new AccessAnomalyDTO(employeeId, shiftDay, AnomalyType.ABSENT_WITHOUT_JUSTIFICATION,
+                        "Turno previsto senza letture né assenze", employeeName));
+            }
+        }
+
+        /**
+         * Same checks as before, on the day's logs in chronological order
+         */
+        private void checkLogs() {
+            if (dayLogs.size() % 2 != 0) {
+                if (dayLogs.getLast().type() == AccessType.IN) {
+                    emit(AnomalyType.MISSING_EXIT, "Manca la lettura in uscita");
+                } else {
+                    emit(AnomalyType.ODD_NUMBER_LOGS, "Numero di letture dispari");
+                }
+            }
+            for (int i = 0; i < dayLogs.size() - 1; i++) {
+                AccessLog current = dayLogs.get(i);
+                AccessLog next = dayLogs.get(i + 1);
+                if (current.type() == next.type()) {
+                    LocalTime currentTime = current.timestamp().atZone(TimeZoneUtils.COMPANY_ZONE).toLocalTime();
+                    LocalTime nextTime = next.timestamp().atZone(TimeZoneUtils.COMPANY_ZONE).toLocalTime();
+                    emit(current.type() == AccessType.IN ? AnomalyType.MISSING_EXIT : AnomalyType.MISSING_ENTRY,
+                            String.format("Letture uguali consecutive alle %s e alle %s", currentTime, nextTime));
+                }
+            }
+        }
+
+        private boolean isJustified(LocalDate date) {
+            for (Absence absence : absences.getOrDefault(employeeId, List.of())) {
+                if (!date.isBefore(absence.startDate()) && !date.isAfter(absence.endDate()))
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Absences without start and end time cover the whole day
+         */
+        private boolean isOnFullDayAbsence(LocalDate date) {
+            for (Absence absence : absences.getOrDefault(employeeId, List.of())) {
+                if ((absence.startTime() == null || absence.endTime() == null)
+                        && !date.isBefore(absence.startDate()) && !date.isAfter(absence.endDate()))
+                    return true;
+            }
+            return false;
+        }
+
+        private void emit(AnomalyType type, String description) {
+            sink.accept(new AccessAnomalyDTO(employeeId, day, type, description, employeeName));
+        }
+    }
+}
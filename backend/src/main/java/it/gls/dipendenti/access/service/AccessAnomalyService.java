@@ -0,0 +1,130 @@
+package it.gls.dipendenti.access.service;
+
+import it.gls.dipendenti.access.dto.AccessAnomalyDTO;
+import it.gls.dipendenti.access.dto.AccessAnomalyDTO.AnomalyType;
+import it.gls.dipendenti.access.model.EmployeeDay;
+import it.gls.dipendenti.access.repository.AccessAnomalyRepository;
+import it.gls.dipendenti.util.TimeZoneUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps access_anomalies in sync with the logs of closed days.
+ * A nightly job re-evaluates the recent days of every company, log edits re-evaluate
+ * only the employee-days they touched. Today is never indexed, it is still open.
+ */
+@Service
+public class AccessAnomalyService {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccessAnomalyService.class);
+
+    private final AccessAnomalyEngine engine;
+    private final AccessAnomalyRepository anomalyRepository;
+    private final int lookbackDays;
+
+    public AccessAnomalyService(AccessAnomalyEngine engine,
+                                AccessAnomalyRepository anomalyRepository,
+                                @Value("${access.anomalies.lookback-days:35}") int lookbackDays) {
+        this.engine = engine;
+        this.anomalyRepository = anomalyRepository;
+        this.lookbackDays = lookbackDays;
+    }
+
+    /**
+     * Re-evaluates the closed days of a company in a date range, days from today on are skipped
+     * @return number of anomalies in the range
+     */
+    @Transactional
+    public int rebuild(Long companyId, LocalDate startDate, LocalDate endDate) {
+        if (startDate == null || endDate == null)
+            throw new IllegalArgumentException("Start and end date are required");
+        if (endDate.isBefore(startDate))
+            throw new IllegalArgumentException("Start date cannot be after end date");
+
+        LocalDate yesterday = TimeZoneUtils.todayCompanyDate().minusDays(1);
+        if (endDate.isAfter(yesterday))
+            endDate = yesterday;
+        if (startDate.isAfter(endDate))
+            return 0;
+
+        List<AccessAnomalyDTO> detected = new ArrayList<>();
+        engine.detect(companyId, startDate, endDate, detected::add);
+        List<AccessAnomalyDTO> anomalies = merge(detected);
+
+        anomalyRepository.upsertAll(anomalies);
+        int removed = anomalyRepository.deleteNotEvaluatedInRange(companyId, startDate, endDate);
+        logger.info("Indexed {} anomalies for company {} from {} to {}, {} no longer present",
+                anomalies.size(), companyId, startDate, endDate, removed);
+        return anomalies.size();
+    }
+
+    /**
+     * Re-evaluates the last days of a company, up to yesterday. Used by the nightly job,
+     * the lookback catches absences approved after the fact.
+     */
+    @Transactional
+    public int rebuildRecent(Long companyId) {
+        LocalDate yesterday = TimeZoneUtils.todayCompanyDate().minusDays(1);
+        return rebuild(companyId, yesterday.minusDays(lookbackDays - 1L), yesterday);
+    }
+
+    /**
+     * Re-evaluates the given employee-days in the current transaction
+     * @param keys employee-days touched by a write, open days are ignored
+     */
+    public void refresh(Set<EmployeeDay> keys) {
+        LocalDate today = TimeZoneUtils.todayCompanyDate();
+        Map<Long, Set<LocalDate>> daysByEmployee = keys.stream()
+                .filter(key -> key.day().isBefore(today))
+                .collect(Collectors.groupingBy(EmployeeDay::employeeId,
+                        Collectors.mapping(EmployeeDay::day, Collectors.toSet())));
+
+        for (Map.Entry<Long, Set<LocalDate>> entry : daysByEmployee.entrySet()) {
+            Set<LocalDate> days = entry.getValue();
+            List<AccessAnomalyDTO> detected = new ArrayList<>();
+            engine.detectEmployee(entry.getKey(), Collections.min(days), Collections.max(days), anomaly -> {
+                if (days.contains(anomaly.date()))
+                    detected.add(anomaly);
+            });
+            anomalyRepository.upsertAll(merge(detected));
+            anomalyRepository.deleteNotEvaluatedOnDays(entry.getKey(), days);
+        }
+    }
+
+    /**
+     * Re-evaluates one employee-day for each given timestamp
+     * @param employeeId employee
+     * @param timestamps timestamps whose days have been touched, nulls are ignored
+     */
+    public void refresh(Long employeeId, Instant... timestamps) {
+        Set<EmployeeDay> keys = Arrays.stream(timestamps)
+                .filter(Objects::nonNull)
+                .map(ts -> new EmployeeDay(employeeId, TimeZoneUtils.toCompanyDate(ts)))
+                .collect(Collectors.toSet());
+        refresh(keys);
+    }
+
+    /**
+     * The index keeps one row per employee, day and type: descriptions of the same
+     * anomaly found more than once in a day are joined
+     */
+    private static List<AccessAnomalyDTO> merge(List<AccessAnomalyDTO> detected) {
+        Map<Key, AccessAnomalyDTO> merged = new LinkedHashMap<>();
+        for (AccessAnomalyDTO anomaly : detected) {
+            merged.merge(new Key(anomaly.employeeId(), anomaly.date(), anomaly.type()), anomaly,
+                    (first, other) -> new AccessAnomalyDTO(first.employeeId(), first.date(), first.type(),
+                            first.description() + "; " + other.description(), first.employeeName()));
+        }
+        return new ArrayList<>(merged.values());
+    }
+
+    private record Key(Long employeeId, LocalDate date, AnomalyType type) {}
+}
@@ -0,0 +1,257 @@
+package it.gls.dipendenti.access.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.gls.dipendenti.util.TransactionUtils;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-company Server-Sent Events channel of committed badge events and presence changes.
+ * <p>
+ * Idle subscribers hold no thread: an {@link SseEmitter} is just an async response.
+ * Each subscriber has its own outbox drained on a virtual thread, so a slow client never
+ * blocks the publisher or the other subscribers; a client falling too far behind is dropped
+ * and reconnects with its last event id.
+ * <p>
+ * Every company keeps the last events in memory. On reconnect the events after the
+ * Last-Event-ID are replayed; if they are gone, or the id comes from a previous run,
+ * a {@code resync} event tells the client to reload its snapshot.
+ */
+@Component
+public class AccessEventHub {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccessEventHub.class);
+
+    public static final String EVENT_ACCESS = "access";
+    public static final String EVENT_ACCESS_UPDATED = "access-updated";
+    public static final String EVENT_ACCESS_DELETED = "access-deleted";
+    public static final String EVENT_PRESENCE = "presence";
+    public static final String EVENT_RESYNC = "resync";
+
+    // Ids look like <run>-<sequence>, ids from another run cannot be replayed
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+
+    private final ConcurrentHashMap<Long, Channel> channels = new ConcurrentHashMap<>();
+    private final ExecutorService sender = Executors.newVirtualThreadPerTaskExecutor();
+    private final ObjectMapper objectMapper;
+    private final long timeoutMillis;
+    private final int replaySize;
+    private final int maxPending;
+
+    public AccessEventHub(ObjectMapper objectMapper,
+                          @Value("${access.events.timeout-ms:1800000}") long timeoutMillis,
+                          @Value("${access.events.replay-size:2000}") int replaySize,
+                          @Value("${access.events.max-pending:1000}") int maxPending) {
+        this.objectMapper = objectMapper;
+        this.timeoutMillis = timeoutMillis;
+        this.replaySize = replaySize;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Opens a stream on the events of a company
+     * @param companyId company of the subscriber
+     * @param lastEventId id of the last event received before a reconnect, may be null
+     * @return emitter to be returned by the controller
+     */
+    public SseEmitter subscribe(Long companyId, String lastEventId) {
+        SseEmitter emitter = new SseEmitter(timeoutMillis);
+        Channel channel = channels.computeIfAbsent(companyId, id -> new Channel());
+        Subscriber subscriber = new Subscriber(channel, emitter);
+        emitter.onCompletion(subscriber::detach);
+        emitter.onTimeout(subscriber::close);
+        emitter.onError(e -> subscriber.close());
+        channel.join(subscriber, lastEventId);
+        return emitter;
+    }
+
+    /**
+     * Publishes an event to the subscribers of a company once the current transaction commits
+     */
+    public void publishAfterCommit(Long companyId, String name, Object payload) {
+        TransactionUtils.afterCommit(() -> publish(companyId, name, payload));
+    }
+
+    /**
+     * Publishes an event to the subscribers of a company. Never blocks on the clients.
+     */
+    public void publish(Long companyId, String name, Object payload) {
+        if (companyId == null)
+            return;
+        String data;
+        try {
+            data = objectMapper.writeValueAsString(payload);
+        } catch (JsonProcessingException e) {
+            logger.error("Cannot serialize {} event for company {}", name, companyId, e);
+            return;
+        }
+        channels.computeIfAbsent(companyId, id -> new Channel()).append(name, data);
+    }
+
+    public int subscriberCount() {
+        return channels.values().stream().mapToInt(channel -> channel.subscribers.size()).sum();
+    }
+
+    /**
+     * Keeps idle connections open through proxies and detects clients that went away
+     */
+    @Scheduled(fixedRateString = "${access.events.heartbeat-ms:25000}")
+    public void heartbeat() {
+        for (Channel channel : channels.values())
+            channel.subscribers.forEach(subscriber -> subscriber.enqueue(Event.HEARTBEAT));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        channels.values().forEach(channel -> channel.subscribers.forEach(Subscriber::close));
+        sender.shutdown();
+    }
+
+    private record Event(long sequence, String id, String name, String data) {
+        static final Event HEARTBEAT = new Event(-1, null, null, null);
+
+        SseEmitter.SseEventBuilder toSse() {
+            if (name == null)
+                return SseEmitter.event().comment("ping");
+            SseEmitter.SseEventBuilder builder = SseEmitter.event().name(name).data(data);
+            return id != null ? builder.id(id) : builder;
+        }
+    }
+
+    /**
+     * Events and subscribers of one company. History and fan-out are updated under the
+     * channel lock, so a subscriber joining with a replay never misses or repeats an event.
+     */
+    private final class Channel {
+        private final Deque<Event> history = new ArrayDeque<>();
+        private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+        private long sequence;
+
+        synchronized void append(String name, String data) {
+            long next = ++sequence;
+            Event event = new Event(next, runId + "-" + next, name, data);
+            history.addLast(event);
+            if (history.size() > replaySize)
+                history.removeFirst();
+            subscribers.forEach(subscriber -> subscriber.enqueue(event));
+        }
+
+        synchronized void join(Subscriber subscriber, String lastEventId) {
+            if (lastEventId != null && !lastEventId.isBlank()) {
+                Long last = parseSequence(lastEventId);
+                Event oldest = history.peekFirst();
+                if (last == null || last > sequence || (oldest != null && last < oldest.sequence() - 1)) {
+                    subscriber.enqueue(new Event(sequence, runId + "-" + sequence, EVENT_RESYNC, "{}"));
+                } else {
+                    for (Event event : history) {
+                        if (event.sequence() > last)
+                            subscriber.enqueue(event);
+                    }
+                }
+            }
+            subscribers.add(subscriber);
+        }
+
+        private Long parseSequence(String lastEventId) {
+            int dash = lastEventId.lastIndexOf('-');
+            if (dash < 0 || !lastEventId.substring(0, dash).equals(runId))
+                return null;
+            try {
+                return Long.parseLong(lastEventId.substring(dash + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * One open stream with its outbox. At most one drain runs at a time, so events keep their order.
+     */
+    private final class Subscriber {
+        private final Channel channel;
+        private final SseEmitter emitter;
+        private final Queue<Event> outbox = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private volatile boolean closed;
+
+        Subscriber(Channel channel, SseEmitter emitter) {
+            this.channel = channel;
+            this.emitter = emitter;
+        }
+
+        void enqueue(Event event) {
+            if (closed)
+                return;
+            if (pending.incrementAndGet() > maxPending) {
+                // Too far behind, it will reconnect and replay from its last event id
+                close();
+                return;
+            }
+            outbox.add(event);
+            scheduleDrain();
+        }
+
+        private void scheduleDrain() {
+            if (!draining.compareAndSet(false, true))
+                return;
+            try {
+                sender.execute(this::drain);
+            } catch (RuntimeException e) {
+                // Executor shut down
+                draining.set(false);
+            }
+        }
+
+        private void drain() {
+            try {
+                Event event;
+                while (!closed && (event = outbox.poll()) != null) {
+                    pending.decrementAndGet();
+                    emitter.send(event.toSse());
+                }
+            } catch (IOException | IllegalStateException e) {
+                close();
+            } finally {
+                draining.set(false);
+            }
+            if (!closed && !outbox.isEmpty())
+                scheduleDrain();
+        }
+
+        void detach() {
+            closed = true;
+            channel.subscribers.remove(this);
+            outbox.clear();
+        }
+
+        void close() {
+            if (closed)
+                return;
+            detach();
+            try {
+                emitter.complete();
+            } catch (IllegalStateException ignored) {
+                // Already completed
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package it.gls.dipendenti.access.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import it.gls.dipendenti.access.dto.AccessLogExportRow;
+import it.gls.dipendenti.access.repository.AccessRepository;
+import it.gls.dipendenti.util.TimeZoneUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Streams access logs to payroll and auditors straight from a server-side cursor.
+ * Rows are written as they are fetched, so heap use does not depend on the range.
+ */
+@Service
+public class AccessExportService {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccessExportService.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final DateTimeFormatter CSV_TIMESTAMP = DateTimeFormatter.ISO_OFFSET_DATE_TIME
+            .withZone(TimeZoneUtils.COMPANY_ZONE);
+
+    public enum ExportFormat {
+        NDJSON("application/x-ndjson", "ndjson"),
+        CSV("text/csv", "csv");
+
+        private final String contentType;
+        private final String extension;
+
+        ExportFormat(String contentType, String extension) {
+            this.contentType = contentType;
+            this.extension = extension;
+        }
+
+        public String contentType() {
+            return contentType;
+        }
+
+        public String extension() {
+            return extension;
+        }
+    }
+
+    private final AccessRepository accessRepository;
+    private final TransactionTemplate readOnlyTransaction;
+    private final ObjectWriter rowWriter;
+
+    public AccessExportService(AccessRepository accessRepository,
+                               PlatformTransactionManager transactionManager,
+                               ObjectMapper objectMapper) {
+        this.accessRepository = accessRepository;
+        // The PostgreSQL driver uses a cursor only outside autocommit
+        this.readOnlyTransaction = new TransactionTemplate(transactionManager);
+        this.readOnlyTransaction.setReadOnly(true);
+        this.rowWriter = objectMapper.writerFor(AccessLogExportRow.class)
+                .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    }
+
+    /**
+     * Builds the body of an export. The query runs when the body is written, on the async thread.
+     * @param companyId company, resolved by the caller since the security context is not propagated
+     * @param employeeId only the logs of this employee, may be null
+     * @param includeDeleted whether deleted logs are exported
+     */
+    public StreamingResponseBody export(Long companyId, Long employeeId, Instant startTime, Instant endTime,
+                                        boolean includeDeleted, ExportFormat format) {
+        if (startTime == null || endTime == null)
+            throw new IllegalArgumentException("Start and end are required");
+        if (endTime.isBefore(startTime))
+            throw new IllegalArgumentException("Start time cannot be after end time");
+
+        return out -> {
+            long started = System.nanoTime();
+            Long rows = readOnlyTransaction.execute(status -> {
+                try {
+                    return format == ExportFormat.CSV
+                            ? writeCsv(out, companyId, employeeId, startTime, endTime, includeDeleted)
+                            : writeNdjson(out, companyId, employeeId, startTime, endTime, includeDeleted);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            logger.info("Exported {} access logs of company {} as {} in {} ms", rows, companyId, format,
+                    (System.nanoTime() - started) / 1_000_000);
+        };
+    }
+
+    private long writeNdjson(OutputStream out, Long companyId, Long employeeId, Instant startTime, Instant endTime,
+                             boolean includeDeleted) throws IOException {
+        try (JsonGenerator generator = rowWriter.createGenerator(new BufferedOutputStream(out, BUFFER_SIZE))) {
+            long rows = accessRepository.streamExportRows(companyId, employeeId, startTime, endTime, includeDeleted,
+                    row -> {
+                        try {
+                            rowWriter.writeValue(generator, row);
+                            generator.writeRaw('\n');
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+            generator.flush();
+            return rows;
+        }
+    }
+
+    private long writeCsv(OutputStream out, Long companyId, Long employeeId, Instant startTime, Instant endTime,
+                          boolean includeDeleted) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+        writer.write("id,employee_id,name,surname,tax_code,card_id,card_uid,timestamp,type,modified,modified_at,deleted\r\n");
+        long rows = accessRepository.streamExportRows(companyId, employeeId, startTime, endTime, includeDeleted,
+                row -> {
+                    try {
+                        writer.write(Long.toString(row.id()));
+                        writer.write(',');
+                        writer.write(Long.toString(row.employeeId()));
+                        writer.write(',');
+                        writeCsvField(writer, row.employeeName());
+                        writer.write(',');
+                        writeCsvField(writer, row.employeeSurname());
+                        writer.write(',');
+                        writeCsvField(writer, row.taxCode());
+                        writer.write(',');
+                        writer.write(Long.toString(row.cardId()));
+                        writer.write(',');
+                        writeCsvField(writer, row.cardUid());
+                        writer.write(',');
+                        writer.write(CSV_TIMESTAMP.format(row.timestamp()));
+                        writer.write(',');
+                        writer.write(row.type());
+                        writer.write(',');
+                        writer.write(Boolean.toString(row.modified()));
+                        writer.write(',');
+                        if (row.modifiedAt() != null)
+                            writer.write(CSV_TIMESTAMP.format(row.modifiedAt()));
+                        writer.write(',');
+                        writer.write(Boolean.toString(row.deleted()));
+                        writer.write("\r\n");
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+        writer.flush();
+        return rows;
+    }
+
+    /**
+     * RFC 4180 quoting, only when needed
+     */
+    private static void writeCsvField(Writer writer, String value) throws IOException {
+        if (value == null)
+            return;
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+}
@@ -0,0 +1,44 @@
+package it.gls.dipendenti.access.service;
+
+import it.gls.dipendenti.access.repository.AccessPartitionRepository;
+import it.gls.dipendenti.util.TimeZoneUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.YearMonth;
+
+@Service
+public class AccessPartitionService {
+
+    private static final Logger logger = LoggerFactory.getLogger(AccessPartitionService.class);
+
+    private final AccessPartitionRepository partitionRepository;
+    private final int monthsAhead;
+
+    public AccessPartitionService(AccessPartitionRepository partitionRepository,
+                                  @Value("${access.partitions.months-ahead:3}") int monthsAhead) {
+        this.partitionRepository = partitionRepository;
+        this.monthsAhead = monthsAhead;
+    }
+
+    /**
+     * Makes sure access_logs has a partition for the current month and the next ones,
+     * so inserts never fall into the default partition. Rows of a month that already fell there
+     * are moved into its partition when it is created
+     * @return number of partitions created
+     */
+    public int ensureFuturePartitions() {
+        YearMonth current = YearMonth.from(TimeZoneUtils.todayCompanyDate());
+        int created = 0;
+        for (int i = 0; i <= monthsAhead; i++) {
+            YearMonth month = current.plusMonths(i);
+            if (partitionRepository.createMonthlyPartition(month)) {
+                logger.info("Created access_logs partition for {}", month);
+                created++;
+            }
+        }
+        return created;
+    }
+}
@@ -1,114 +1,194 @@
 package it.gls.dipendenti.access.service;
 
 import it.gls.dipendenti.access.dto.AccessAnomalyDTO;
+import it.gls.dipendenti.access.dto.BadgeIngestStats;
+import it.gls.dipendenti.access.dto.BadgeReplayEvent;
+import it.gls.dipendenti.access.dto.BadgeReplayResult;
+import it.gls.dipendenti.access.dto.DetailedAccessLog;
+import it.gls.dipendenti.access.dto.ReaderRateStats;
 import it.gls.dipendenti.access.exception.CardNotFoundException;
 import it.gls.dipendenti.access.exception.LogNotFoundException;
+import it.gls.dipendenti.access.exception.ReaderThrottledException;
 import it.gls.dipendenti.access.model.AccessLog;
 import it.gls.dipendenti.access.model.AccessType;
 import it.gls.dipendenti.access.model.Card;
-import it.gls.dipendenti.access.model.CardAssignment;
+import it.gls.dipendenti.access.model.LogCursor;
+import it.gls.dipendenti.access.model.WorkedTimeTable;
+import it.gls.dipendenti.access.dto.AccessAnomalyDTO.AnomalyStatus;
+import it.gls.dipendenti.access.dto.AccessAnomalyDTO.AnomalyType;
+import it.gls.dipendenti.access.exception.AnomalyNotFoundException;
+import it.gls.dipendenti.access.repository.AccessAnomalyRepository;
 import it.gls.dipendenti.access.repository.AccessRepository;
-import it.gls.dipendenti.access.repository.CardAssignmentRepository;
 import it.gls.dipendenti.access.repository.CardRepository;
 import it.gls.dipendenti.auth.model.CustomUserDetails;
 import it.gls.dipendenti.auth.model.User;
 import it.gls.dipendenti.hr.exception.EmployeeNotFoundException;
 import it.gls.dipendenti.hr.model.Employee;
 import it.gls.dipendenti.hr.repository.EmployeeRepository;
+import it.gls.dipendenti.util.CursorPage;
 import it.gls.dipendenti.util.Page;
 import it.gls.dipendenti.util.TimeZoneUtils;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import org.springframework.web.servlet.view.document.AbstractXlsView;
 
 import javax.security.auth.login.LoginException;
 import java.sql.Timestamp;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
-import java.time.temporal.ChronoUnit;
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 @Service
 public class AccessService {
 
     private final AccessRepository accessRepository;
-    private final CardService cardService;
     private final CardRepository cardRepository;
     private final CardAssignmentService assignmentService;
     private final EmployeeRepository employeeRepository;
+    private final BadgeReadPipeline badgeReadPipeline;
+    private final PresenceRegistry presenceRegistry;
+    private final DailyWorkSummaryService summaryService;
+    private final AccessAnomalyService anomalyService;
+    private final AccessAnomalyRepository anomalyRepository;
+    private final AccessEventHub eventHub;
+    private final AccessExportService exportService;
+    private final WorkedTimeEngine workedTimeEngine;
+    private final BadgeDebouncer debouncer;
+    private final BadgeJournal journal;
+    private final ReaderAdmissionControl admissionControl;
+    private final IdempotencyService idempotencyService;
+    private final BadgeReplayService replayService;
+    private final TransactionTemplate transactionTemplate;
     private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("dd/MM/yyyy");
 
     public AccessService(AccessRepository accessRepository,
-                         CardService cardService,
                          CardAssignmentService assignmentService,
                          EmployeeRepository employeeRepository,
-                         CardRepository cardRepository) {
+                         CardRepository cardRepository,
+                         BadgeReadPipeline badgeReadPipeline,
+                         PresenceRegistry presenceRegistry,
+                         DailyWorkSummaryService summaryService,
+                         AccessAnomalyService anomalyService,
+                         AccessAnomalyRepository anomalyRepository,
+                         AccessEventHub eventHub,
+                         AccessExportService exportService,
+                         WorkedTimeEngine workedTimeEngine,
+                         BadgeDebouncer debouncer,
+                         BadgeJournal journal,
+                         ReaderAdmissionControl admissionControl,
+                         IdempotencyService idempotencyService,
+                         BadgeReplayService replayService,
+                         PlatformTransactionManager transactionManager) {
         this.accessRepository = accessRepository;
-        this.cardService = cardService;
         this.assignmentService = assignmentService;
         this.employeeRepository = employeeRepository;
         this.cardRepository = cardRepository;
+        this.badgeReadPipeline = badgeReadPipeline;
+        this.presenceRegistry = presenceRegistry;
+        this.summaryService = summaryService;
+        this.anomalyService = anomalyService;
+        this.anomalyRepository = anomalyRepository;
+        this.eventHub = eventHub;
+        this.exportService = exportService;
+        this.workedTimeEngine = workedTimeEngine;
+        this.debouncer = debouncer;
+        this.journal = journal;
+        this.admissionControl = admissionControl;
+        this.idempotencyService = idempotencyService;
+        this.replayService = replayService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
     }
 
-    @Transactional
+    /**
+     * Registers a badge read through the local journal, if enabled, and the group-commit pipeline.
+     * A repeated read of the same card within the debounce window returns the log of the first one.
+     * @param cardUid uid read by the turnstile
+     * @return created log, a journaled log if the db did not commit it in time,
+     *         null if the card was unknown and has just been registered or is not assigned
+     */
     public DetailedAccessLog readCard(String cardUid) {
         if (cardUid == null || cardUid.isBlank()) {
             throw new IllegalArgumentException("Invalid card UID");
         }
+        return debouncer.read(cardUid, journal.isEnabled() ? journal::read : badgeReadPipeline::read);
+    }
 
-        Card card = cardService.getByUid(cardUid);
-        if (card == null) {
-            cardService.createCard(new Card(null, cardUid, false));
-            return null;
-        }
-        if (card.deleted()) {
-            throw new IllegalArgumentException("Card is deleted");
-        }
-
-        CardAssignment assignment = assignmentService.getCardAssignment(card.id());
-        if (assignment == null) return null;
+    /**
+     * Same as {@link #readCard(String)} after taking a token from the bucket of the reader
+     * @param readerAddress remote address of the turnstile
+     * @param readerId id sent by the turnstile, may be null
+     * @throws ReaderThrottledException if the reader is sending too many reads
+     */
+    public DetailedAccessLog readCard(String cardUid, String readerAddress, String readerId) {
+        admissionControl.admit(readerAddress, readerId);
+        return readCard(cardUid);
+    }
 
-        Employee emp = employeeRepository.findById(assignment.employeeId()).orElse(null);
+    /**
+     * Same as {@link #readCard(String, String, String)}, a retry with the same key from the same reader
+     * returns the log of the first read without registering it again
+     * @param idempotencyKey key chosen by the reader for this read, null if it does not send one
+     */
+    public DetailedAccessLog readCard(String cardUid, String readerAddress, String readerId, String idempotencyKey) {
+        return idempotencyService.execute("read:" + readerAddress, idempotencyKey, DetailedAccessLog.class,
+                () -> readCard(cardUid, readerAddress, readerId));
+    }
 
-        // ✅ Usa TimeZoneUtils per coerenza
-        Instant now = TimeZoneUtils.nowInstant();
-        AccessType newType = accessRepository.getNextType(assignment.employeeId(), now);
+    /**
+     * Max number of events accepted by {@link #replay}, the controller stops reading the body past it
+     */
+    public int maxReplayEvents() {
+        return replayService.maxEvents();
+    }
 
-        AccessLog log = accessRepository.addLog(
-                new AccessLog(null, assignment.employeeId(), card.id(),
-                        now, newType, false, null, false)
-        );
+    /**
+     * Takes a token from the bucket of a reader before a replay body is read
+     * @throws ReaderThrottledException if the reader is sending too many requests
+     */
+    public void admitReader(String readerAddress, String readerId) {
+        admissionControl.admit(readerAddress, readerId);
+    }
 
+    /**
+     * Replays swipes buffered by a reader while offline into the logs of the current company
+     * @param events swipes in any order
+     */
+    public BadgeReplayResult replay(List<BadgeReplayEvent> events) {
+        return replayService.replay(events, getCurrentUserCompanyId());
+    }
 
-        return new DetailedAccessLog(
-                log.id(),
-                log.employeeId(),
-                emp != null ? emp.name() : "SCONOSCIUTO",
-                emp != null ? emp.surname() : "",
-                card.id(),
-                card.uid(),
-                log.timestamp(),
-                log.type().name(),
-                log.modified(),
-                log.deleted()
-        );
+    public BadgeIngestStats getIngestStats() {
+        return new BadgeIngestStats(
+                debouncer.suppressedReads(),
+                admissionControl.throttledReads(),
+                journal.isEnabled(),
+                journal.pendingCount(),
+                journal.ackLatency().percentile(0.99),
+                journal.commitLatency().percentile(0.99));
+    }
 
+    public List<ReaderRateStats> getReaderStats() {
+        return admissionControl.readerStats();
     }
 
-    @Transactional
     public AccessLog addManualLog(AccessLog log) {
+        return inExclusiveTransaction(() -> insertManualLog(log));
+    }
+
+    private AccessLog insertManualLog(AccessLog log) {
         Employee employee = employeeRepository.findById(log.employeeId()).orElse(null);
         if (employee == null)
             throw new EmployeeNotFoundException();
         Card card = cardRepository.getCardById(
                 assignmentService.getEmployeeAssignments(employee.id()).getFirst().cardId()).orElseThrow(CardNotFoundException::new);
-        return accessRepository.addLog(
+        AccessLog saved = accessRepository.addLog(
                 new AccessLog(
                         null,
                         employee.id(),
@@ -120,12 +200,37 @@ public class AccessService {
                         false
                 )
         );
+        summaryService.refresh(employee.id(), saved.timestamp());
+        anomalyService.refresh(employee.id(), saved.timestamp());
+        presenceRegistry.refreshAfterCommit(employee.id());
+        eventHub.publishAfterCommit(employee.companyId(), AccessEventHub.EVENT_ACCESS, new DetailedAccessLog(
+                saved.id(), employee.id(), employee.name(), employee.surname(), card.id(), card.uid(),
+                saved.timestamp(), saved.type().name(), saved.modified(), saved.deleted()));
+        return saved;
+    }
+
+    /**
+     * Same as {@link #addManualLog(AccessLog)}, a retry with the same key from the same user
+     * returns the log created by the first request
+     * @param idempotencyKey key chosen by the client, null if it does not send one
+     */
+    public AccessLog addManualLog(AccessLog log, String idempotencyKey) {
+        String scope = "manual:" + getCurrentUser().getUserId();
+        // The key is recorded in the same transaction, so it must commit before the pipeline is released
+        return badgeReadPipeline.exclusive(() -> idempotencyService.executeInTransaction(scope, idempotencyKey,
+                AccessLog.class, () -> addManualLog(log)));
     }
 
-    @Transactional
     public void modifyLog(AccessLog accessLog) {
         if (accessLog.id() == null)
             throw new IllegalArgumentException("Log id is null");
+        inExclusiveTransaction(() -> {
+            updateLog(accessLog);
+            return null;
+        });
+    }
+
+    private void updateLog(AccessLog accessLog) {
         AccessLog oldLog = accessRepository.getById(accessLog.id()).orElseThrow(LogNotFoundException::new);
         if(!accessLog.employeeId().equals(oldLog.employeeId()))
             throw new IllegalArgumentException("Cannot change employee id");
@@ -140,27 +245,71 @@ public class AccessService {
                         true,
                         Instant.now(),
                         accessLog.deleted()
-                )
+                ),
+                oldLog.timestamp()
         )) {
             throw new LogNotFoundException();
         }
-
+        summaryService.refresh(oldLog.employeeId(), oldLog.timestamp(), accessLog.timestamp());
+        anomalyService.refresh(oldLog.employeeId(), oldLog.timestamp(), accessLog.timestamp());
+        presenceRegistry.refreshAfterCommit(oldLog.employeeId());
+        publishDetailedAfterCommit(AccessEventHub.EVENT_ACCESS_UPDATED, accessLog.id(), accessLog.timestamp());
     }
 
     /**
-     * Number of employees at work
+     * Number of employees at work, read from the live presence counters
      * @return number of employees at work
      */
     public Long getEmployeesWorking() {
-        return accessRepository.getEmployeesAtWork(getCurrentUserCompanyId());
+        return presenceRegistry.countAtWork(getCurrentUserCompanyId());
+    }
+
+    /**
+     * Number of members of a group at work, read from the live presence counters
+     * @param groupId group id
+     * @return number of group members at work
+     */
+    public Long getGroupEmployeesWorking(Long groupId) {
+        if (groupId == null)
+            throw new IllegalArgumentException("Group id is null");
+        return presenceRegistry.countGroupAtWork(groupId);
     }
 
-    @Transactional
     public void deleteLog(Long logId) {
         if (logId == null)
             throw new IllegalArgumentException("Log id is null");
-        if(!accessRepository.deleteLog(logId))
+        inExclusiveTransaction(() -> {
+            removeLog(logId);
+            return null;
+        });
+    }
+
+    private void removeLog(Long logId) {
+        AccessLog oldLog = accessRepository.getById(logId).orElseThrow(LogNotFoundException::new);
+        if(!accessRepository.deleteLog(logId, oldLog.timestamp()))
             throw new LogNotFoundException();
+        summaryService.refresh(oldLog.employeeId(), oldLog.timestamp());
+        anomalyService.refresh(oldLog.employeeId(), oldLog.timestamp());
+        presenceRegistry.refreshAfterCommit(oldLog.employeeId());
+        publishDetailedAfterCommit(AccessEventHub.EVENT_ACCESS_DELETED, logId, oldLog.timestamp());
+    }
+
+    /**
+     * Runs a write on access logs in its own transaction between two group commits of the {@link BadgeReadPipeline}.
+     * Presence is refreshed on commit, before the next batch decides IN/OUT from it.
+     */
+    private <T> T inExclusiveTransaction(Supplier<T> action) {
+        return badgeReadPipeline.exclusive(() -> transactionTemplate.execute(status -> action.get()));
+    }
+
+    /**
+     * Publishes a log as stored in this transaction, with the same payload as every other access event
+     */
+    private void publishDetailedAfterCommit(String eventName, Long logId, Instant timestamp) {
+        LocalDate day = TimeZoneUtils.toCompanyDate(timestamp);
+        accessRepository.getDetailedLogsByIds(List.of(logId), TimeZoneUtils.startOfDay(day), TimeZoneUtils.endOfDay(day)).stream()
+                .findFirst()
+                .ifPresent(log -> eventHub.publishAfterCommit(getCurrentUserCompanyId(), eventName, log));
     }
 
     public List<AccessLog> getLogsInTimeRange(Instant startTime, Instant endTime) {
@@ -182,28 +331,72 @@ public class AccessService {
         return accessRepository.getLogsByDate(date, getCurrentUserCompanyId());
     }
 
-    public List<DetailedAccessLog> getDetailedLogsForDate(LocalDate date) {
-        List<AccessLog> logs = accessRepository.getLogsByDate(date, getCurrentUserCompanyId());
-        List<DetailedAccessLog> detailedLogs = new ArrayList<>();
-        for (AccessLog log : logs) {
-            Employee emp = employeeRepository.findById(log.employeeId()).orElse(null);
-            Card card = cardRepository.getCardById(log.cardId()).orElse(null);
-            detailedLogs.add(
-                    new DetailedAccessLog(
-                            log.id(),
-                            log.employeeId(),
-                            emp != null ? emp.name() : "SCONOSCIUTO",
-                            emp != null ? emp.surname() : "",
-                            card != null ? card.id() : null,
-                            card != null ? card.uid() : "SCONOSCIUTO",
-                            log.timestamp(),
-                            log.type().name(),
-                            log.modified(),
-                            log.deleted()
-                    )
-            );
-        }
-        return detailedLogs;
+    /**
+     * Export of the current company's logs, streamed from a db cursor
+     * @param employeeId only the logs of this employee, may be null
+     */
+    public StreamingResponseBody exportLogs(Instant startTime, Instant endTime, Long employeeId,
+                                            boolean includeDeleted, AccessExportService.ExportFormat format) {
+        return exportService.export(getCurrentUserCompanyId(), employeeId, startTime, endTime, includeDeleted, format);
+    }
+
+    // ======== KEYSET PAGES ===========
+
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    /**
+     * One page of the company's logs in a time range, newest first
+     * @param cursor nextCursor of the previous page, null for the first page
+     * @param size page size, at most 1000
+     */
+    public CursorPage<AccessLog> getLogsInTimeRange(Instant startTime, Instant endTime, String cursor, int size) {
+        if (endTime.isBefore(startTime))
+            throw new IllegalArgumentException("Start time cannot be after end time");
+        return logsPage(getCurrentUserCompanyId(), null, startTime, endTime, false, cursor, size);
+    }
+
+    /**
+     * One page of an employee's logs in a time range, newest first
+     */
+    public CursorPage<AccessLog> getLogsInTimeRangeByEmployee(Long employeeId, Instant startTime, Instant endTime,
+                                                              String cursor, int size) {
+        if (endTime.isBefore(startTime))
+            throw new IllegalArgumentException("Start time cannot be after end time");
+        if (employeeId == null)
+            throw new IllegalArgumentException("Employee id is null");
+        return logsPage(null, employeeId, startTime, endTime, false, cursor, size);
+    }
+
+    /**
+     * One page of the company's logs of a day, deleted ones included like {@link #getLogsForDate}
+     */
+    public CursorPage<AccessLog> getLogsForDate(LocalDate date, String cursor, int size) {
+        if (date == null) throw new IllegalArgumentException("Date is null");
+        return logsPage(getCurrentUserCompanyId(), null, TimeZoneUtils.startOfDay(date), TimeZoneUtils.endOfDay(date),
+                true, cursor, size);
+    }
+
+    private CursorPage<AccessLog> logsPage(Long companyId, Long employeeId, Instant startTime, Instant endTime,
+                                           boolean includeDeleted, String cursor, int size) {
+        if (size <= 0 || size > MAX_PAGE_SIZE)
+            throw new IllegalArgumentException("Page size must be between 1 and " + MAX_PAGE_SIZE);
+        // One extra row tells whether there is a next page
+        List<AccessLog> logs = accessRepository.getLogsPage(companyId, employeeId, startTime, endTime,
+                includeDeleted, LogCursor.decode(cursor), size + 1);
+        if (logs.size() <= size)
+            return new CursorPage<>(logs, size, null);
+        List<AccessLog> content = logs.subList(0, size);
+        return new CursorPage<>(content, size, LogCursor.after(content.getLast()).encode());
+    }
+
+    /**
+     * Logs of a day with employee and card data, read with a single query
+     * @param groupId only the logs of the group members, may be null
+     * @param type only logs of this type, may be null
+     */
+    public List<DetailedAccessLog> getDetailedLogsForDate(LocalDate date, Long groupId, AccessType type) {
+        if (date == null) throw new IllegalArgumentException("Date is null");
+        return accessRepository.getDetailedLogsByDate(date, getCurrentUserCompanyId(), groupId, type);
     }
 
     public List<AccessLog> getEmployeeLogsForDate(Long employeeId, LocalDate date) {
@@ -219,7 +412,7 @@ public class AccessService {
             throw new IllegalArgumentException("End date is null");
         if (employeeId == null)
             throw new IllegalArgumentException("Employee id is null");
-        return accessRepository.getDistinctLogDates(employeeId, startDate, endDate);
+        return summaryService.getWorkedDays(employeeId, startDate, endDate);
     }
 
     /**
@@ -229,275 +422,164 @@ public class AccessService {
      * @return total working hours
      */
     public int calculateMonthlyWorkingHours(Long employeeId, YearMonth yearMonth) {
-        LocalDate startDate = yearMonth.atDay(1);
-        LocalDate endDate = yearMonth.atEndOfMonth();
-
-        List<AccessLog> logs = accessRepository.getLogsInTimeRangeByEmployee(
-                employeeId,
-                TimeZoneUtils.startOfDay(startDate),
-                TimeZoneUtils.endOfDay(endDate)
-        );
-
-        // Group logs by date
-        Map<LocalDate, List<AccessLog>> logsByDate = logs.stream()
-                .collect(Collectors.groupingBy(log ->
-                        TimeZoneUtils.toCompanyDate(log.timestamp())
-                ));
-
-        int totalHours = 0;
-
-        for (Map.Entry<LocalDate, List<AccessLog>> entry : logsByDate.entrySet()) {
-            List<AccessLog> dayLogs = entry.getValue().stream()
-                    .sorted(Comparator.comparing(AccessLog::timestamp))
-                    .toList();
-
-            // Calculate hours for pairs of IN/OUT
-            for (int i = 0; i < dayLogs.size() - 1; i += 2) {
-                if (dayLogs.get(i).type() == AccessType.IN &&
-                        dayLogs.get(i + 1).type() == AccessType.OUT) {
-                    long hours = ChronoUnit.HOURS.between(
-                            dayLogs.get(i).timestamp(),
-                            dayLogs.get(i + 1).timestamp()
-                    );
-                    totalHours += hours;
-                }
-            }
-        }
-
-        return totalHours;
+        return calculateWorkedMinutes(employeeId, yearMonth.atDay(1), yearMonth.atEndOfMonth()) / 60;
     }
 
-
-    // ======== ANOMALIES ===========
-
-    // TODO Trovare dipendenti assenti senza un assenza o al lavoro con un assenza
     /**
-     * Find anomalies for all employees in a date range
-     * @param startDate start date
-     * @param endDate end date
-     * @return list of anomalies grouped by employee
+     * Worked minutes of an employee in a date range, summed from the daily summaries
+     * @param employeeId employee id
+     * @param startDate first day
+     * @param endDate last day
+     * @return total worked minutes
      */
-    public List<AccessAnomalyDTO> findAllAnomalies(LocalDate startDate, LocalDate endDate) {
-        if (startDate == null || endDate == null) {
-            throw new IllegalArgumentException("Start date and end date cannot be null");
-        }
-        if (endDate.isBefore(startDate)) {
-            throw new IllegalArgumentException("End date cannot be before start date");
-        }
-
-        LocalDate today = LocalDate.now(TimeZoneUtils.COMPANY_ZONE);
-
-        if (!endDate.isBefore(today)) {
-            endDate = today.minusDays(1);
-        }
-
-        if (startDate.isAfter(endDate)) {
-            return new ArrayList<>();
-        }
-
-        Instant startInstant = startDate.atStartOfDay(TimeZoneUtils.COMPANY_ZONE).toInstant();
-        Instant endInstant = endDate.plusDays(1).atStartOfDay(TimeZoneUtils.COMPANY_ZONE).toInstant().minusNanos(1);
-
-        var logs = accessRepository.getLogsInTimeRange(startInstant, endInstant, getCurrentUserCompanyId());
-
-        // Raggruppa per dipendente e data
-        var anomalies = new ArrayList<AccessAnomalyDTO>();
-        var groupedByEmployeeAndDate = groupLogsByEmployeeAndDate(logs);
-
-        groupedByEmployeeAndDate.forEach((key, logsForDay) -> {
-            Long empId = key.employeeId();
-            LocalDate date = key.date();
-            anomalies.addAll(detectAnomaliesForDay(empId, date, logsForDay));
-        });
-
-        return anomalies;
+    public int calculateWorkedMinutes(Long employeeId, LocalDate startDate, LocalDate endDate) {
+        if (employeeId == null)
+            throw new IllegalArgumentException("Employee id is null");
+        if (endDate.isBefore(startDate))
+            throw new IllegalArgumentException("Start date cannot be after end date");
+        return summaryService.getWorkedMinutes(employeeId, startDate, endDate);
     }
 
-
-
     /**
-     * Helper to group logs by employee and date
+     * Worked time of every employee of the current company in a date range, computed
+     * from the raw logs in a single scan. Meant for reports and stats over many employees.
+     * @param startDate first day
+     * @param endDate last day
+     * @return worked minutes, pairs, open intervals and worked days by employee
      */
-    private java.util.Map<EmployeeDateKey, List<AccessLog>> groupLogsByEmployeeAndDate(List<AccessLog> logs) {
-        var grouped = new java.util.HashMap<EmployeeDateKey, List<AccessLog>>();
-
-        for (AccessLog log : logs) {
-            LocalDate date = log.timestamp().atZone(TimeZoneUtils.COMPANY_ZONE).toLocalDate();
-            EmployeeDateKey key = new EmployeeDateKey(log.employeeId(), date);
-
-            grouped.computeIfAbsent(key, k -> new ArrayList<>()).add(log);
-        }
-
-        return grouped;
+    public WorkedTimeTable getCompanyWorkedTime(LocalDate startDate, LocalDate endDate) {
+        return getCompanyWorkedTime(getCurrentUserCompanyId(), startDate, endDate);
     }
 
-    private record EmployeeDateKey(Long employeeId, LocalDate date) {}
+    /**
+     * Same as {@link #getCompanyWorkedTime(LocalDate, LocalDate)} for an explicit company,
+     * for callers running outside the request thread
+     */
+    public WorkedTimeTable getCompanyWorkedTime(Long companyId, LocalDate startDate, LocalDate endDate) {
+        if (companyId == null)
+            throw new IllegalArgumentException("Company id is null");
+        return workedTimeEngine.compute(companyId, startDate, endDate);
+    }
 
     /**
-     * Detect anomalies for a specific day
+     * Rebuilds the daily work summaries of the current company from the raw logs
+     * @param startDate first day
+     * @param endDate last day
+     * @return number of day summaries written
      */
-    private List<AccessAnomalyDTO> detectAnomaliesForDay(Long employeeId, LocalDate date, List<AccessLog> logs) {
-        List<AccessAnomalyDTO> anomalies = new ArrayList<>();
-        Employee employee = employeeRepository.findById(employeeId).orElse(null);
+    public int rebuildWorkSummaries(LocalDate startDate, LocalDate endDate) {
+        return summaryService.rebuild(getCurrentUserCompanyId(), startDate, endDate);
+    }
 
-        // Se il dipendente è stato eliminato non ritorno l'anomalia
-        if (employee != null && employee.deleted())
-            return List.of();
 
-        String employeeName = employee != null ? "%s %s".formatted(employee.name(), employee.surname()) : "SCONOSCIUTO";
+    /**
+     * Opens the event stream of the current company
+     * @param lastEventId last event received before a reconnect, may be null
+     */
+    public SseEmitter subscribeEvents(String lastEventId) {
+        return eventHub.subscribe(getCurrentUserCompanyId(), lastEventId);
+    }
 
-        if (logs.isEmpty()) {
-            return anomalies;
-        }
+    // ======== ANOMALIES ===========
 
-        if (logs.size() % 2 != 0) {
-            AccessLog lastLog = logs.stream()
-                    .max(Comparator.comparing(AccessLog::timestamp))
-                    .orElse(null);
-
-            if (lastLog.type() == AccessType.IN) {
-                anomalies.add(new AccessAnomalyDTO(
-                        employeeId,
-                        date,
-                        AccessAnomalyDTO.AnomalyType.MISSING_EXIT,
-                        "Manca la lettura in uscita",
-                        employeeName
-                ));
-            } else {
-                anomalies.add(new AccessAnomalyDTO(
-                        employeeId,
-                        date,
-                        AccessAnomalyDTO.AnomalyType.ODD_NUMBER_LOGS,
-                        "Numero di letture dispari",
-                        employeeName
-                ));
-            }
-        }
+    /**
+     * Anomaly types that make the worked time of a day unreliable
+     */
+    private static final Set<AnomalyType> LOG_ANOMALY_TYPES =
+            EnumSet.of(AnomalyType.MISSING_EXIT, AnomalyType.MISSING_ENTRY, AnomalyType.ODD_NUMBER_LOGS);
 
-        for (int i = 0; i < logs.size() - 1; i++) {
-            AccessLog current = logs.get(i);
-            AccessLog next = logs.get(i + 1);
-
-            if (current.type() == next.type()) {
-                // Converti in ora locale Roma per il messaggio
-                var currentTime = current.timestamp().atZone(TimeZoneUtils.COMPANY_ZONE).toLocalTime();
-                var nextTime = next.timestamp().atZone(TimeZoneUtils.COMPANY_ZONE).toLocalTime();
-
-                anomalies.add(new AccessAnomalyDTO(
-                        employeeId,
-                        date,
-                        current.type() == AccessType.IN ?
-                                AccessAnomalyDTO.AnomalyType.MISSING_EXIT :
-                                AccessAnomalyDTO.AnomalyType.MISSING_ENTRY,
-                        String.format("Letture uguali consecutive alle %s e alle %s", currentTime, nextTime),
-                        employeeName
-                ));
-            }
-        }
+    /**
+     * Find anomalies for all employees in a date range, read from the anomaly index
+     * @param startDate start date
+     * @param endDate end date
+     * @param status only anomalies in this status, all if null
+     * @return list of anomalies, newest day first
+     */
+    public List<AccessAnomalyDTO> findAllAnomalies(LocalDate startDate, LocalDate endDate, AnomalyStatus status) {
+        validateRange(startDate, endDate);
+        return anomalyRepository.findByCompany(getCurrentUserCompanyId(), startDate, endDate, status);
+    }
 
-        return anomalies;
+    /**
+     * Same as {@link #findAllAnomalies} with pagination
+     */
+    public Page<AccessAnomalyDTO> findAllAnomalies(LocalDate startDate, LocalDate endDate, AnomalyStatus status,
+                                                   int page, int size) {
+        validateRange(startDate, endDate);
+        return anomalyRepository.findByCompany(getCurrentUserCompanyId(), startDate, endDate, status, page, size);
     }
 
     /**
-     * Check if employee has any anomalies in a date range
-     * @param employeeId employee id
-     * @param startDate start date
-     * @param endDate end date
-     * @return true if anomalies exist
+     * Check if employee has log anomalies not yet resolved in a date range
      */
     public boolean hasAnomaliesInRange(Long employeeId, LocalDate startDate, LocalDate endDate) {
-        if (employeeId == null || startDate == null || endDate == null) {
+        if (employeeId == null)
             throw new IllegalArgumentException("Parameters cannot be null");
-        }
-
-        if (endDate.isBefore(startDate)) {
-            throw new IllegalArgumentException("End date cannot be before start date");
-        }
-
-        LocalDate today = LocalDate.now(TimeZoneUtils.COMPANY_ZONE);
-        if (!endDate.isBefore(today)) {
-            endDate = today.minusDays(1);
-        }
-
-        if (startDate.isAfter(endDate)) {
-            return false;
-        }
-
-        Instant startInstant = TimeZoneUtils.startOfDay(startDate);
-        Instant endInstant = TimeZoneUtils.endOfDay(endDate);
-
-        List<AccessLog> logs = accessRepository.getLogsInTimeRangeByEmployee(
-                employeeId, startInstant, endInstant
-        );
-
-        // Group by date
-        Map<LocalDate, List<AccessLog>> logsByDate = logs.stream()
-                .collect(Collectors.groupingBy(log ->
-                        TimeZoneUtils.toCompanyDate(log.timestamp())
-                ));
-
-        // Check each day for anomalies
-        for (List<AccessLog> dayLogs : logsByDate.values()) {
-            if (hasAnomaliesForDay(dayLogs)) {
-                return true;
-            }
-        }
+        validateRange(startDate, endDate);
+        return anomalyRepository.existsUnresolved(employeeId, startDate, endDate, LOG_ANOMALY_TYPES);
+    }
 
-        return false;
+    /**
+     * Same as {@link #hasAnomaliesInRange} for many employees of the current company in one query,
+     * used by the employee list instead of one request per row
+     * @param employeeIds employees to check, may be null or empty if a group is given
+     * @param groupId also check the members of this group, may be null
+     * @return flag of every checked employee of the company, by ascending id
+     */
+    public Map<Long, Boolean> hasAnomaliesInRange(Collection<Long> employeeIds, Long groupId,
+                                                  LocalDate startDate, LocalDate endDate) {
+        validateRange(startDate, endDate);
+        Set<Long> ids = employeeIds != null
+                ? employeeIds.stream().filter(Objects::nonNull).collect(Collectors.toSet())
+                : Set.of();
+        if (ids.isEmpty() && groupId == null)
+            throw new IllegalArgumentException("Employee ids or group id are required");
+        if (ids.size() > MAX_PAGE_SIZE)
+            throw new IllegalArgumentException("At most " + MAX_PAGE_SIZE + " employees can be checked at once");
+        return anomalyRepository.findUnresolvedFlags(getCurrentUserCompanyId(), ids, groupId,
+                startDate, endDate, LOG_ANOMALY_TYPES);
     }
 
     /**
-     * Helper to detect anomalies in a single day's logs
+     * Moves an anomaly of the current company along the HR queue
+     * @param anomalyId anomaly id
+     * @param status new status
      */
-    private boolean hasAnomaliesForDay(List<AccessLog> logs) {
-        if (logs.isEmpty()) {
-            return false;
-        }
+    public void updateAnomalyStatus(Long anomalyId, AnomalyStatus status) {
+        if (anomalyId == null || status == null)
+            throw new IllegalArgumentException("Anomaly id and status are required");
+        CustomUserDetails user = getCurrentUser();
+        if (!anomalyRepository.updateStatus(anomalyId, user.getCompanyId(), status, user.getUserId()))
+            throw new AnomalyNotFoundException();
+    }
 
-        // Sort by timestamp
-        logs = logs.stream()
-                .sorted(Comparator.comparing(AccessLog::timestamp))
-                .toList();
+    /**
+     * Re-evaluates the anomaly index of the current company for a date range
+     * @return number of anomalies in the range
+     */
+    public int rebuildAnomalies(LocalDate startDate, LocalDate endDate) {
+        return anomalyService.rebuild(getCurrentUserCompanyId(), startDate, endDate);
+    }
 
-        // Odd number of logs
-        if (logs.size() % 2 != 0) {
-            return true;
+    private void validateRange(LocalDate startDate, LocalDate endDate) {
+        if (startDate == null || endDate == null) {
+            throw new IllegalArgumentException("Start date and end date cannot be null");
         }
-
-        // Check for consecutive same types
-        for (int i = 0; i < logs.size() - 1; i++) {
-            if (logs.get(i).type() == logs.get(i + 1).type()) {
-                return true;
-            }
+        if (endDate.isBefore(startDate)) {
+            throw new IllegalArgumentException("End date cannot be before start date");
         }
-
-        return false;
     }
 
     public boolean isAtWork(Long employeeId) {
-        AccessLog log = accessRepository.getLastLogByEmployee(employeeId).orElse(null);
-        if (log != null) {
-            return log.type() == AccessType.IN;
-        }
-        return false;
+        return presenceRegistry.isAtWork(employeeId);
     }
 
     private Long getCurrentUserCompanyId() {
+        return getCurrentUser().getCompanyId();
+    }
+
+    private CustomUserDetails getCurrentUser() {
         Authentication auth = SecurityContextHolder.getContext().getAuthentication();
-        CustomUserDetails userDetails = (CustomUserDetails) auth.getPrincipal();
-        return userDetails.getCompanyId();
-    }
-
-    public record DetailedAccessLog(
-            Long id,
-            Long employeeId,
-            String employeeName,
-            String employeeSurname,
-            Long cardId,
-            String cardUid,
-            Instant timestamp,
-            String type,
-            boolean modified,
-            boolean deleted
-    ) {}
+        return (CustomUserDetails) auth.getPrincipal();
+    }
 }
@@ -0,0 +1,102 @@
+package it.gls.dipendenti.access.service;
+
+import it.gls.dipendenti.access.dto.DetailedAccessLog;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Collapses repeated reads of the same card within a short window (double taps) into the first one.
+ * <p>
+ * The first read of a card opens a window holding the future of its log; reads of the same
+ * card until the window expires get that same log and insert nothing. Windows are claimed with
+ * {@code putIfAbsent}/{@code replace} on a concurrent map, so of two concurrent reads of a card
+ * exactly one goes to the pipeline and the other waits for its result.
+ * A read that fails releases its window, so the next tap is not suppressed.
+ */
+@Component
+public class BadgeDebouncer {
+
+    private final ConcurrentHashMap<String, Window> windows = new ConcurrentHashMap<>();
+    private final LongAdder suppressed = new LongAdder();
+    private final long windowNanos;
+    private final long responseTimeoutMillis;
+
+    public BadgeDebouncer(@Value("${access.ingest.debounce-seconds:5}") long windowSeconds,
+                          @Value("${access.ingest.response-timeout-ms:5000}") long responseTimeoutMillis) {
+        this.windowNanos = TimeUnit.SECONDS.toNanos(windowSeconds);
+        this.responseTimeoutMillis = responseTimeoutMillis;
+    }
+
+    /**
+     * Reads a card unless it has been read within the window
+     * @param cardUid uid read by the turnstile
+     * @param reader performs the actual read, called at most once per window
+     * @return log of the first read of the window
+     */
+    public DetailedAccessLog read(String cardUid, Function<String, DetailedAccessLog> reader) {
+        if (windowNanos <= 0)
+            return reader.apply(cardUid);
+
+        while (true) {
+            long now = System.nanoTime();
+            Window current = windows.get(cardUid);
+            if (current != null && current.isOpen(now)) {
+                suppressed.increment();
+                return BadgeReadPipeline.await(current.result, responseTimeoutMillis);
+            }
+
+            Window mine = new Window(now);
+            boolean claimed = current == null
+                    ? windows.putIfAbsent(cardUid, mine) == null
+                    : windows.replace(cardUid, current, mine);
+            if (!claimed)
+                continue;
+
+            try {
+                DetailedAccessLog log = reader.apply(cardUid);
+                mine.result.complete(log);
+                return log;
+            } catch (RuntimeException e) {
+                windows.remove(cardUid, mine);
+                mine.result.completeExceptionally(e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Number of reads answered with the log of a previous read since startup
+     */
+    public long suppressedReads() {
+        return suppressed.sum();
+    }
+
+    /**
+     * Drops the expired windows, the map holds only the cards read in the last seconds
+     */
+    @Scheduled(fixedDelay = 60_000)
+    public void evictExpired() {
+        long now = System.nanoTime();
+        windows.values().removeIf(window -> !window.isOpen(now));
+    }
+
+    private final class Window {
+        private final long openedAt;
+        private final CompletableFuture<DetailedAccessLog> result = new CompletableFuture<>();
+
+        Window(long openedAt) {
+            this.openedAt = openedAt;
+        }
+
+        boolean isOpen(long now) {
+            return now - openedAt < windowNanos && !result.isCompletedExceptionally();
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package it.gls.dipendenti.access.service;
+
+import it.gls.dipendenti.access.dto.BadgeReplayEvent;
+import it.gls.dipendenti.access.dto.BadgeReplayResult;
+import it.gls.dipendenti.access.dto.DetailedAccessLog;
+import it.gls.dipendenti.access.exception.BadgeReadRejectedException;
+import it.gls.dipendenti.util.LatencyHistogram;
+import it.gls.dipendenti.util.TimeZoneUtils;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Write-ahead journal of badge reads on local disk, so a slow or unavailable database
+ * does not block the turnstiles.
+ * <p>
+ * Every read is appended to a memory-mapped segment file and made durable before anything
+ * else; concurrent readers share one {@code force}, so fsyncs are batched under load.
+ * The read then goes through the {@link BadgeReadPipeline} as usual: if it commits within
+ * {@code commit-wait-ms} the log is returned, otherwise the read is acknowledged as journaled.
+ * <p>
+ * A drainer thread of its own walks the journal in order and records through
+ * {@link BadgeReplayService#recordMissing} the reads the pipeline could not commit, including
+ * those recovered from the segments after a restart. Reads already stored for the same card and
+ * timestamp are skipped and stored logs are never changed, so draining is idempotent.
+ * The drained position is kept in a checkpoint file and fully drained segments are deleted.
+ */
+@Component
+public class BadgeJournal {
+
+    private static final Logger logger = LoggerFactory.getLogger(BadgeJournal.class);
+
+    // seq(8) epochSecond(8) nano(4) uidLength(2) uid(64) padding(6) crc(4)
+    private static final int RECORD_SIZE = 96;
+    private static final int MAX_UID_BYTES = 64;
+    private static final int UID_OFFSET = 22;
+    private static final int CRC_OFFSET = RECORD_SIZE - 4;
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT = "checkpoint";
+
+    private final BadgeReadPipeline pipeline;
+    private final BadgeReplayService replayService;
+    private final boolean enabled;
+    private final Path directory;
+    private final int segmentRecords;
+    private final boolean fsync;
+    private final long commitWaitMillis;
+    private final long drainIntervalMillis;
+    private final int drainBatch;
+    private final long drainTimeoutMillis;
+
+    private final LatencyHistogram ackLatency = new LatencyHistogram();
+    private final LatencyHistogram commitLatency = new LatencyHistogram();
+    // Entries not yet drained, in sequence order
+    private final Queue<Entry> pending = new ConcurrentLinkedQueue<>();
+
+    private final Object appendLock = new Object();
+    private final Object forceLock = new Object();
+    // Wakes the drainer on close
+    private final Object drainSignal = new Object();
+    private MappedByteBuffer segment;
+    private int segmentPosition;
+    private long lastSeq;
+    private volatile long durableSeq;
+    private volatile long checkpoint;
+    private volatile boolean running;
+    private Thread drainer;
+
+    public BadgeJournal(BadgeReadPipeline pipeline,
+                        BadgeReplayService replayService,
+                        @Value("${access.journal.enabled:true}") boolean enabled,
+                        @Value("${access.journal.directory:./data/badge-journal}") String directory,
+                        @Value("${access.journal.segment-records:65536}") int segmentRecords,
+                        @Value("${access.journal.fsync:true}") boolean fsync,
+                        @Value("${access.journal.commit-wait-ms:1000}") long commitWaitMillis,
+                        @Value("${access.journal.drain-interval-ms:1000}") long drainIntervalMillis,
+                        @Value("${access.journal.drain-batch:500}") int drainBatch,
+                        @Value("${access.journal.drain-timeout-ms:60000}") long drainTimeoutMillis) {
+        this.pipeline = pipeline;
+        this.replayService = replayService;
+        this.enabled = enabled;
+        this.directory = Path.of(directory);
+        this.segmentRecords = segmentRecords;
+        this.fsync = fsync;
+        this.commitWaitMillis = commitWaitMillis;
+        this.drainIntervalMillis = drainIntervalMillis;
+        this.drainBatch = drainBatch;
+        this.drainTimeoutMillis = drainTimeoutMillis;
+    }
+
+    @PostConstruct
+    public void open() throws IOException {
+        if (!enabled)
+            return;
+        Files.createDirectories(directory);
+        checkpoint = readCheckpoint();
+        lastSeq = checkpoint;
+
+        List<Path> segments = listSegments();
+        for (Path path : segments)
+            recover(path, path.equals(segments.getLast()));
+        if (segment == null)
+            roll();
+        durableSeq = lastSeq;
+
+        if (!pending.isEmpty())
+            logger.warn("Badge journal: {} reads recovered from a previous run will be replayed", pending.size());
+
+        running = true;
+        drainer = Thread.ofPlatform().name("badge-journal-drain").daemon().start(this::drainLoop);
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException {
+        if (!enabled)
+            return;
+        running = false;
+        if (drainer != null) {
+            synchronized (drainSignal) {
+                drainSignal.notifyAll();
+            }
+            drainer.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        if (segment != null)
+            segment.force();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Journals a badge read, then tries to commit it through the pipeline
+     * @param cardUid uid read by the turnstile
+     * @return created log; a journaled log if the db did not commit it in time, see {@link DetailedAccessLog#isJournaled};
+     *         null if the card was unknown and has just been registered or is not assigned
+     */
+    public DetailedAccessLog read(String cardUid) {
+        long started = System.nanoTime();
+        // Same precision as the db, so the drainer recognises reads already stored
+        Entry entry = append(cardUid, TimeZoneUtils.nowInstant().truncatedTo(ChronoUnit.MICROS));
+        awaitDurable(entry.seq);
+        ackLatency.recordNanos(System.nanoTime() - started);
+
+        long submitted = System.nanoTime();
+        try {
+            pipeline.submit(cardUid, entry.timestamp).whenComplete((log, e) -> {
+                if (e != null) {
+                    entry.result.completeExceptionally(e);
+                } else {
+                    commitLatency.recordNanos(System.nanoTime() - submitted);
+                    entry.result.complete(log);
+                }
+            });
+        } catch (BadgeReadRejectedException e) {
+            // Queue full, the drainer will replay it
+            entry.result.completeExceptionally(e);
+            return DetailedAccessLog.journaled(cardUid, entry.timestamp);
+        }
+
+        try {
+            return BadgeReadPipeline.await(entry.result, commitWaitMillis);
+        } catch (RuntimeException e) {
+            if (isRejection(e))
+                throw e;
+            // Slow or failing db: the read is safe in the journal
+            return DetailedAccessLog.journaled(cardUid, entry.timestamp);
+        }
+    }
+
+    /**
+     * Records in order the journaled reads the pipeline did not commit and advances the checkpoint.
+     * Stops at the first read still waiting in the pipeline, so nothing is written twice,
+     * unless it has been waiting longer than {@code drain-timeout-ms}: then it is recorded as failed.
+     */
+    public synchronized void drain() {
+        if (!enabled)
+            return;
+        while (true) {
+            List<Entry> batch = new ArrayList<>();
+            List<BadgeReplayEvent> toReplay = new ArrayList<>();
+            long timedOut = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+            for (Entry entry : pending) {
+                if (batch.size() >= drainBatch)
+                    break;
+                if (!entry.result.isDone()) {
+                    if (entry.appendedAt - timedOut > 0)
+                        break;
+                    // Lost in the pipeline: recording it is safe, stored reads are skipped
+                    entry.result.completeExceptionally(new BadgeReadRejectedException(
+                            "Badge read not committed within %d ms".formatted(drainTimeoutMillis)));
+                }
+                batch.add(entry);
+                if (entry.result.isCompletedExceptionally() && !isRejection(entry.result.exceptionNow()))
+                    toReplay.add(new BadgeReplayEvent(entry.cardUid,
+                            TimeZoneUtils.toCompanyOffsetDateTime(entry.timestamp)));
+            }
+            if (batch.isEmpty())
+                return;
+
+            if (!toReplay.isEmpty()) {
+                try {
+                    BadgeReplayResult result = replayService.recordMissing(toReplay);
+                    logger.info("Badge journal: drained {} reads, {} inserted, {} already stored",
+                            toReplay.size(), result.inserted(), result.duplicates());
+                } catch (RuntimeException e) {
+                    logger.warn("Badge journal: drain of {} reads failed, will retry: {}", toReplay.size(), e.getMessage());
+                    return;
+                }
+            }
+
+            long drainedUpTo = batch.getLast().seq;
+            for (int i = 0; i < batch.size(); i++)
+                pending.poll();
+            try {
+                writeCheckpoint(drainedUpTo);
+                deleteDrainedSegments();
+            } catch (IOException e) {
+                logger.error("Badge journal: cannot write checkpoint {}", drainedUpTo, e);
+                return;
+            }
+        }
+    }
+
+    private void drainLoop() {
+        while (running) {
+            try {
+                synchronized (drainSignal) {
+                    drainSignal.wait(drainIntervalMillis);
+                }
+                if (running)
+                    drain();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.error("Unexpected error in badge journal drain loop", e);
+            }
+        }
+    }
+
+    /**
+     * Reads journaled and not yet drained
+     */
+    public int pendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Time from the request to the read being durable in the journal
+     */
+    public LatencyHistogram ackLatency() {
+        return ackLatency;
+    }
+
+    /**
+     * Time from the hand-off to the pipeline to the commit of the read in the db
+     */
+    public LatencyHistogram commitLatency() {
+        return commitLatency;
+    }
+
+    // ============= SEGMENTS =============
+
+    private Entry append(String cardUid, Instant timestamp) {
+        byte[] uid = cardUid.getBytes(StandardCharsets.UTF_8);
+        if (uid.length > MAX_UID_BYTES)
+            throw new IllegalArgumentException("Card UID too long");
+
+        synchronized (appendLock) {
+            if (segmentPosition == segmentRecords) {
+                try {
+                    roll();
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Cannot open a new badge journal segment", e);
+                }
+            }
+            long seq = lastSeq + 1;
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            record.putLong(seq)
+                    .putLong(timestamp.getEpochSecond())
+                    .putInt(timestamp.getNano())
+                    .putShort((short) uid.length)
+                    .put(uid);
+            record.putInt(CRC_OFFSET, crc(record.array()));
+            segment.put(segmentPosition * RECORD_SIZE, record.array());
+            segmentPosition++;
+            lastSeq = seq;
+
+            Entry entry = new Entry(seq, cardUid, timestamp);
+            pending.add(entry);
+            return entry;
+        }
+    }
+
+    /**
+     * Forces the segment up to the given sequence. Readers arriving while a force is
+     * running wait for it and are usually covered by the next one: one fsync per group.
+     */
+    private void awaitDurable(long seq) {
+        if (!fsync)
+            return;
+        synchronized (forceLock) {
+            if (durableSeq >= seq)
+                return;
+            long target;
+            MappedByteBuffer current;
+            synchronized (appendLock) {
+                target = lastSeq;
+                current = segment;
+            }
+            // A roll forces the previous segment, the current one holds everything after it
+            current.force();
+            durableSeq = target;
+        }
+    }
+
+    /**
+     * Closes the current segment and maps a new one starting at the next sequence
+     */
+    private void roll() throws IOException {
+        if (segment != null)
+            segment.force();
+        Path path = directory.resolve(segmentName(lastSeq + 1));
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) segmentRecords * RECORD_SIZE);
+        }
+        segmentPosition = 0;
+    }
+
+    /**
+     * Loads the valid records of a segment. The last segment stays mapped for appending,
+     * from its first invalid record on (a torn write of the previous run), which is cleared.
+     */
+    private void recover(Path path, boolean last) throws IOException {
+        long size = (long) segmentRecords * RECORD_SIZE;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+            byte[] record = new byte[RECORD_SIZE];
+            int position = 0;
+            int records = mapped.capacity() / RECORD_SIZE;
+            while (position < records) {
+                mapped.get(position * RECORD_SIZE, record);
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                long seq = buffer.getLong(0);
+                if (seq == 0 || buffer.getInt(CRC_OFFSET) != crc(record))
+                    break;
+                if (seq > checkpoint) {
+                    Instant timestamp = Instant.ofEpochSecond(buffer.getLong(8), buffer.getInt(16));
+                    String uid = new String(record, UID_OFFSET, buffer.getShort(20), StandardCharsets.UTF_8);
+                    Entry entry = new Entry(seq, uid, timestamp);
+                    // Never handed to the pipeline in this run
+                    entry.result.completeExceptionally(new BadgeReadRejectedException("Recovered from journal"));
+                    pending.add(entry);
+                }
+                lastSeq = Math.max(lastSeq, seq);
+                position++;
+            }
+            if (last && position < segmentRecords) {
+                mapped.put(position * RECORD_SIZE, new byte[(records - position) * RECORD_SIZE]);
+                mapped.force();
+                segment = mapped;
+                segmentPosition = position;
+            }
+        }
+    }
+
+    private void deleteDrainedSegments() throws IOException {
+        List<Path> segments = listSegments();
+        // A segment is drained when the next one starts at or before the checkpoint + 1
+        for (int i = 0; i < segments.size() - 1; i++) {
+            if (firstSeq(segments.get(i + 1)) - 1 <= checkpoint)
+                Files.deleteIfExists(segments.get(i));
+        }
+    }
+
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> {
+                        String name = path.getFileName().toString();
+                        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+                    })
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private long readCheckpoint() throws IOException {
+        Path path = directory.resolve(CHECKPOINT);
+        if (!Files.exists(path))
+            return 0;
+        return Long.parseLong(Files.readString(path).trim());
+    }
+
+    private void writeCheckpoint(long seq) throws IOException {
+        Path tmp = directory.resolve(CHECKPOINT + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(Long.toString(seq).getBytes(StandardCharsets.US_ASCII)));
+            channel.force(true);
+        }
+        Files.move(tmp, directory.resolve(CHECKPOINT), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        checkpoint = seq;
+    }
+
+    private static String segmentName(long firstSeq) {
+        return "%s%020d%s".formatted(SEGMENT_PREFIX, firstSeq, SEGMENT_SUFFIX);
+    }
+
+    private static long firstSeq(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static int crc(byte[] record) {
+        CRC32C crc = new CRC32C();
+        crc.update(record, 0, CRC_OFFSET);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Failures that a replay would reproduce: the read is refused, not lost
+     */
+    private static boolean isRejection(Throwable e) {
+        return e instanceof IllegalArgumentException;
+    }
+
+    private static final class Entry {
+        private final long seq;
+        private final String cardUid;
+        private final Instant timestamp;
+        private final CompletableFuture<DetailedAccessLog> result = new CompletableFuture<>();
+        private final long appendedAt = System.nanoTime();
+
+        Entry(long seq, String cardUid, Instant timestamp) {
+            this.seq = seq;
+            this.cardUid = cardUid;
+            this.timestamp = timestamp;
+        }
+    }
+}
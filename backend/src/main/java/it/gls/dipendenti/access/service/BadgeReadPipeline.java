@@ -0,0 +1,379 @@
+package it.gls.dipendenti.access.service;
+
+import it.gls.dipendenti.access.dto.DetailedAccessLog;
+import it.gls.dipendenti.access.exception.BadgeReadRejectedException;
+import it.gls.dipendenti.access.model.AccessLog;
+import it.gls.dipendenti.access.model.AccessType;
+import it.gls.dipendenti.access.model.Card;
+import it.gls.dipendenti.access.model.CardAssignment;
+import it.gls.dipendenti.access.model.CardResolution;
+import it.gls.dipendenti.access.model.EmployeeDay;
+import it.gls.dipendenti.access.repository.AccessRepository;
+import it.gls.dipendenti.access.repository.CardAssignmentRepository;
+import it.gls.dipendenti.access.repository.CardRepository;
+import it.gls.dipendenti.hr.model.Employee;
+import it.gls.dipendenti.hr.repository.EmployeeRepository;
+import it.gls.dipendenti.util.TimeZoneUtils;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Group-commit pipeline for badge reads.
+ * Reads are queued, resolved in micro-batches through the {@link CardResolutionCache}
+ * (misses with set-based queries) and written with one JDBC batch per transaction.
+ * IN/OUT is decided from the {@link PresenceRegistry}.
+ * Every caller waits only for its own result; committed logs are pushed through the {@link AccessEventHub}.
+ * The other writers of today's logs (replays of today, manual logs, edits and deletes) run their
+ * transaction through {@link #exclusive}, so they never interleave with a group commit.
+ */
+@Component
+public class BadgeReadPipeline {
+
+    private static final Logger logger = LoggerFactory.getLogger(BadgeReadPipeline.class);
+
+    private final AccessRepository accessRepository;
+    private final CardRepository cardRepository;
+    private final CardAssignmentRepository assignmentRepository;
+    private final EmployeeRepository employeeRepository;
+    private final PresenceRegistry presenceRegistry;
+    private final CardResolutionCache resolutionCache;
+    private final DailyWorkSummaryService summaryService;
+    private final AccessEventHub eventHub;
+    private final TransactionTemplate transactionTemplate;
+
+    // Held by every group commit until presence is updated
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final BlockingQueue<PendingRead> queue;
+    private final int batchSize;
+    private final long maxDelayNanos;
+    private final long responseTimeoutMillis;
+
+    private volatile boolean running;
+    private Thread worker;
+
+    public BadgeReadPipeline(AccessRepository accessRepository,
+                             CardRepository cardRepository,
+                             CardAssignmentRepository assignmentRepository,
+                             EmployeeRepository employeeRepository,
+                             PresenceRegistry presenceRegistry,
+                             CardResolutionCache resolutionCache,
+                             DailyWorkSummaryService summaryService,
+                             AccessEventHub eventHub,
+                             PlatformTransactionManager transactionManager,
+                             @Value("${access.ingest.batch-size:200}") int batchSize,
+                             @Value("${access.ingest.max-delay-ms:10}") long maxDelayMillis,
+                             @Value("${access.ingest.queue-capacity:10000}") int queueCapacity,
+                             @Value("${access.ingest.response-timeout-ms:5000}") long responseTimeoutMillis) {
+        this.accessRepository = accessRepository;
+        this.cardRepository = cardRepository;
+        this.assignmentRepository = assignmentRepository;
+        this.employeeRepository = employeeRepository;
+        this.presenceRegistry = presenceRegistry;
+        this.resolutionCache = resolutionCache;
+        this.summaryService = summaryService;
+        this.eventHub = eventHub;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.batchSize = batchSize;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.responseTimeoutMillis = responseTimeoutMillis;
+    }
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        worker = Thread.ofPlatform().name("badge-ingest").daemon().start(this::drainLoop);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        worker.join(TimeUnit.SECONDS.toMillis(10));
+    }
+
+    /**
+     * Queues a badge read and waits for the group commit that contains it
+     * @param cardUid uid read by the turnstile
+     * @return created log, null if the card was unknown and has just been registered or is not assigned
+     */
+    public DetailedAccessLog read(String cardUid) {
+        return await(submit(cardUid, TimeZoneUtils.nowInstant()), responseTimeoutMillis);
+    }
+
+    /**
+     * Queues a badge read without waiting for it
+     * @param cardUid uid read by the turnstile
+     * @param timestamp time of the read
+     * @return completed once the group commit containing the read is committed or failed
+     */
+    public CompletableFuture<DetailedAccessLog> submit(String cardUid, Instant timestamp) {
+        PendingRead read = new PendingRead(cardUid, timestamp, new CompletableFuture<>());
+        if (!running || !queue.offer(read))
+            throw new BadgeReadRejectedException("Badge ingestion queue is full");
+        return read.result();
+    }
+
+    /**
+     * Runs an action between two group commits. Meant for writes on today's logs that change
+     * the IN/OUT sequence: the action must update the presence registry before returning,
+     * so the next batch decides from the new state.
+     */
+    public <T> T exclusive(Supplier<T> action) {
+        commitLock.lock();
+        try {
+            return action.get();
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the result of a read, rethrowing its failure as it is
+     */
+    static DetailedAccessLog await(CompletableFuture<DetailedAccessLog> result, long timeoutMillis) {
+        try {
+            return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException)
+                throw runtimeException;
+            throw new IllegalStateException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new BadgeReadRejectedException("Badge read not committed within %d ms".formatted(timeoutMillis));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BadgeReadRejectedException("Interrupted while waiting for badge read");
+        }
+    }
+
+    // ============= BATCHING =============
+
+    private void drainLoop() {
+        List<PendingRead> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingRead first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                queue.drainTo(batch, batchSize - batch.size());
+
+                // Wait a little for more reads only if the batch is not full yet
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < batchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        break;
+                    PendingRead next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+
+                commit(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.error("Unexpected error in badge ingestion loop", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void commit(List<PendingRead> batch) {
+        List<Runnable> completions = new ArrayList<>(batch.size());
+        Map<String, CardResolution> loaded = new HashMap<>();
+        long generation = resolutionCache.generation();
+        commitLock.lock();
+        try {
+            List<AccessLog> saved;
+            try {
+                saved = transactionTemplate.execute(status -> process(batch, loaded, completions));
+            } catch (RuntimeException e) {
+                logger.error("Group commit of {} badge reads failed", batch.size(), e);
+                batch.forEach(read -> read.result().completeExceptionally(e));
+                return;
+            }
+            // The logs are stored from here on: a failure below must not keep the callers waiting
+            try {
+                // Resolutions are published only once the cards registered by this batch are committed
+                loaded.forEach((uid, resolution) -> resolutionCache.put(uid, resolution, generation));
+            } catch (RuntimeException e) {
+                logger.error("Card resolutions of a committed batch not cached", e);
+            }
+            try {
+                // Presence is updated before the next batch is resolved
+                saved.forEach(presenceRegistry::record);
+            } catch (RuntimeException e) {
+                logger.error("Presence not updated after committing {} badge reads", saved.size(), e);
+            }
+        } finally {
+            commitLock.unlock();
+        }
+        // Callers are released only once the transaction is committed, each one even if another's event fails
+        for (Runnable completion : completions) {
+            try {
+                completion.run();
+            } catch (RuntimeException e) {
+                logger.error("Cannot publish a committed badge read", e);
+            }
+        }
+    }
+
+    /**
+     * Resolves a whole batch, from the cache or with set-based queries, and inserts its logs in one JDBC batch
+     * @param loaded filled with the resolutions read from the db, to be cached after commit
+     */
+    private List<AccessLog> process(List<PendingRead> batch, Map<String, CardResolution> loaded, List<Runnable> completions) {
+        Map<String, CardResolution> resolutions = new HashMap<>();
+        Set<String> misses = new HashSet<>();
+        for (PendingRead read : batch) {
+            CardResolution cached = resolutionCache.get(read.cardUid());
+            if (cached != null) {
+                resolutions.put(read.cardUid(), cached);
+            } else {
+                misses.add(read.cardUid());
+            }
+        }
+        if (!misses.isEmpty()) {
+            loaded.putAll(loadResolutions(misses));
+            resolutions.putAll(loaded);
+        }
+
+        Set<Long> employeeIds = resolutions.values().stream()
+                .filter(r -> r.status() == CardResolution.Status.ASSIGNED)
+                .map(r -> r.assignment().employeeId())
+                .collect(Collectors.toSet());
+
+        // Last type per employee and company day, updated while walking the batch
+        Map<LocalDate, Map<Long, AccessType>> lastTypesByDay = new HashMap<>();
+
+        List<AccessLog> toInsert = new ArrayList<>();
+        List<ResolvedRead> resolved = new ArrayList<>();
+
+        for (PendingRead read : batch) {
+            CardResolution resolution = resolutions.get(read.cardUid());
+            switch (resolution.status()) {
+                case UNKNOWN -> {
+                    // Unknown card: register it once and answer with no log
+                    Card card = cardRepository.save(new Card(null, read.cardUid(), false));
+                    CardResolution registered = CardResolution.of(card, null, null);
+                    resolutions.put(read.cardUid(), registered);
+                    loaded.put(read.cardUid(), registered);
+                    completions.add(() -> read.result().complete(null));
+                }
+                case DELETED -> completions.add(() -> read.result().completeExceptionally(
+                        new IllegalArgumentException("Card is deleted")));
+                // As before the pipeline: no log and no error, the turnstile gets a 202
+                case UNASSIGNED -> completions.add(() -> read.result().complete(null));
+                case ASSIGNED -> {
+                    Long employeeId = resolution.assignment().employeeId();
+                    LocalDate day = TimeZoneUtils.toCompanyDate(read.timestamp());
+                    Map<Long, AccessType> lastTypes = lastTypesByDay.computeIfAbsent(day,
+                            d -> loadLastTypes(employeeIds, d));
+                    AccessType newType = lastTypes.get(employeeId) == AccessType.IN ? AccessType.OUT : AccessType.IN;
+                    lastTypes.put(employeeId, newType);
+
+                    toInsert.add(new AccessLog(null, employeeId, resolution.card().id(),
+                            read.timestamp(), newType, false, null, false));
+                    resolved.add(new ResolvedRead(read, resolution.card(), resolution.employee()));
+                }
+            }
+        }
+
+        List<AccessLog> saved = accessRepository.addLogs(toInsert);
+        summaryService.refresh(saved.stream()
+                .map(log -> new EmployeeDay(log.employeeId(), TimeZoneUtils.toCompanyDate(log.timestamp())))
+                .collect(Collectors.toSet()));
+        for (int i = 0; i < saved.size(); i++) {
+            AccessLog log = saved.get(i);
+            ResolvedRead r = resolved.get(i);
+            DetailedAccessLog detailed = toDetailed(log, r.card(), r.employee());
+            Long companyId = r.employee() != null ? r.employee().companyId() : null;
+            completions.add(() -> {
+                r.read().result().complete(detailed);
+                eventHub.publish(companyId, AccessEventHub.EVENT_ACCESS, detailed);
+            });
+        }
+        return saved;
+    }
+
+    /**
+     * Loads card, active assignment and employee of the given uids with three queries
+     */
+    private Map<String, CardResolution> loadResolutions(Set<String> uids) {
+        Map<String, Card> cardsByUid = cardRepository.getCardsByUids(uids).stream()
+                .collect(Collectors.toMap(Card::uid, Function.identity()));
+
+        List<Long> cardIds = cardsByUid.values().stream().map(Card::id).toList();
+        Map<Long, CardAssignment> assignmentsByCard = new HashMap<>();
+        for (CardAssignment assignment : assignmentRepository.getActiveAssignmentsByCards(cardIds))
+            assignmentsByCard.putIfAbsent(assignment.cardId(), assignment);
+
+        Set<Long> employeeIds = assignmentsByCard.values().stream()
+                .map(CardAssignment::employeeId).collect(Collectors.toSet());
+        Map<Long, Employee> employeesById = employeeRepository.findByIds(employeeIds).stream()
+                .collect(Collectors.toMap(Employee::id, Function.identity()));
+
+        Map<String, CardResolution> resolutions = new HashMap<>();
+        for (String uid : uids) {
+            Card card = cardsByUid.get(uid);
+            if (card == null) {
+                resolutions.put(uid, CardResolution.unknown());
+                continue;
+            }
+            CardAssignment assignment = assignmentsByCard.get(card.id());
+            Employee employee = assignment != null ? employeesById.get(assignment.employeeId()) : null;
+            resolutions.put(uid, CardResolution.of(card, assignment, employee));
+        }
+        return resolutions;
+    }
+
+    private Map<Long, AccessType> loadLastTypes(Set<Long> employeeIds, LocalDate day) {
+        if (!presenceRegistry.covers(day))
+            return new HashMap<>(accessRepository.getLastTypes(employeeIds, day));
+        Map<Long, AccessType> lastTypes = new HashMap<>();
+        for (Long employeeId : employeeIds) {
+            AccessType lastType = presenceRegistry.lastType(employeeId, day);
+            if (lastType != null)
+                lastTypes.put(employeeId, lastType);
+        }
+        return lastTypes;
+    }
+
+    private DetailedAccessLog toDetailed(AccessLog log, Card card, Employee emp) {
+        return new DetailedAccessLog(
+                log.id(),
+                log.employeeId(),
+                emp != null ? emp.name() : "SCONOSCIUTO",
+                emp != null ? emp.surname() : "",
+                card.id(),
+                card.uid(),
+                log.timestamp(),
+                log.type().name(),
+                log.modified(),
+                log.deleted()
+        );
+    }
+
+    private record PendingRead(String cardUid, Instant timestamp, CompletableFuture<DetailedAccessLog> result) {}
+
+    private record ResolvedRead(PendingRead read, Card card, Employee employee) {}
+}
@@ -0,0 +1,406 @@
+package it.gls.dipendenti.access.service;
+
+import it.gls.dipendenti.access.dto.BadgeReplayEvent;
+import it.gls.dipendenti.access.dto.BadgeReplayResult;
+import it.gls.dipendenti.access.dto.DetailedAccessLog;
+import it.gls.dipendenti.access.model.AccessLog;
+import it.gls.dipendenti.access.model.AccessType;
+import it.gls.dipendenti.access.model.Card;
+import it.gls.dipendenti.access.model.CardAssignment;
+import it.gls.dipendenti.access.model.EmployeeDay;
+import it.gls.dipendenti.access.repository.AccessRepository;
+import it.gls.dipendenti.access.repository.CardAssignmentRepository;
+import it.gls.dipendenti.access.repository.CardRepository;
+import it.gls.dipendenti.hr.model.Employee;
+import it.gls.dipendenti.hr.repository.EmployeeRepository;
+import it.gls.dipendenti.util.TimeZoneUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Bulk import of swipes buffered by readers while offline.
+ * Every swipe is attributed to the owner of the card at its own date, then the IN/OUT
+ * sequence of each touched employee-day is rebuilt merging stored and replayed logs.
+ * <p>
+ * Logs corrected by hand are fixed points: their type is kept and the sequence resumes after them.
+ * A swipe with the timestamp of a stored log, deleted ones included, is a duplicate, so resending
+ * a buffer never brings back what HR deleted. Stored logs whose type changes are marked as modified.
+ * <p>
+ * Past days are written in one transaction, new logs loaded with COPY. Today's days are written
+ * in another one between two group commits of the {@link BadgeReadPipeline}, so the live IN/OUT
+ * decisions taken from the {@link PresenceRegistry} always see the rebuilt sequence.
+ * <p>
+ * {@link #recordMissing} is the insert-only variant used by the {@link BadgeJournal}: stored logs
+ * are never changed, a read is skipped if its card has a log with the same timestamp and
+ * otherwise takes the type following the log before it.
+ */
+@Service
+public class BadgeReplayService {
+
+    private static final Comparator<AccessLog> LOG_ORDER = Comparator
+            .comparing(AccessLog::timestamp)
+            // Stored logs before replayed ones at the same instant, then by id
+            .thenComparing(log -> log.id() == null)
+            .thenComparing(AccessLog::id, Comparator.nullsLast(Comparator.naturalOrder()));
+
+    private final AccessRepository accessRepository;
+    private final CardRepository cardRepository;
+    private final CardAssignmentRepository assignmentRepository;
+    private final EmployeeRepository employeeRepository;
+    private final BadgeReadPipeline pipeline;
+    private final PresenceRegistry presenceRegistry;
+    private final CardResolutionCache resolutionCache;
+    private final DailyWorkSummaryService summaryService;
+    private final AccessAnomalyService anomalyService;
+    private final AccessEventHub eventHub;
+    private final TransactionTemplate transactionTemplate;
+    private final int maxEvents;
+    private final int maxPublishedEvents;
+
+    public BadgeReplayService(AccessRepository accessRepository,
+                              CardRepository cardRepository,
+                              CardAssignmentRepository assignmentRepository,
+                              EmployeeRepository employeeRepository,
+                              BadgeReadPipeline pipeline,
+                              PresenceRegistry presenceRegistry,
+                              CardResolutionCache resolutionCache,
+                              DailyWorkSummaryService summaryService,
+                              AccessAnomalyService anomalyService,
+                              AccessEventHub eventHub,
+                              PlatformTransactionManager transactionManager,
+                              @Value("${access.replay.max-events:200000}") int maxEvents,
+                              @Value("${access.replay.max-published-events:500}") int maxPublishedEvents) {
+        this.accessRepository = accessRepository;
+        this.cardRepository = cardRepository;
+        this.assignmentRepository = assignmentRepository;
+        this.employeeRepository = employeeRepository;
+        this.pipeline = pipeline;
+        this.presenceRegistry = presenceRegistry;
+        this.resolutionCache = resolutionCache;
+        this.summaryService = summaryService;
+        this.anomalyService = anomalyService;
+        this.eventHub = eventHub;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.maxEvents = maxEvents;
+        this.maxPublishedEvents = maxPublishedEvents;
+    }
+
+    /**
+     * Max number of events of a single replay
+     */
+    public int maxEvents() {
+        return maxEvents;
+    }
+
+    /**
+     * Replays a batch of offline swipes. Card registration, past days and today's days are
+     * committed separately: if a step fails the buffer can be sent again, what is already
+     * stored is skipped as duplicate.
+     * @param events swipes in any order
+     * @param companyId company of the caller, swipes of other companies' employees are rejected
+     * @return counters of what has been done with the events
+     */
+    public BadgeReplayResult replay(List<BadgeReplayEvent> events, Long companyId) {
+        if (companyId == null)
+            throw new IllegalArgumentException("Company id is null");
+        if (events != null && events.size() > maxEvents)
+            throw new IllegalArgumentException("Too many events, max is %d".formatted(maxEvents));
+        return run(events, companyId, true);
+    }
+
+    /**
+     * Records the journaled reads that never reached the db, leaving every stored log as it is
+     * @param events reads in any order
+     * @return counters of what has been done with the reads, retyped is always 0
+     */
+    public BadgeReplayResult recordMissing(List<BadgeReplayEvent> events) {
+        return run(events, null, false);
+    }
+
+    private BadgeReplayResult run(List<BadgeReplayEvent> events, Long companyId, boolean rebuild) {
+        if (events == null || events.isEmpty())
+            throw new IllegalArgumentException("No events to replay");
+        for (BadgeReplayEvent event : events) {
+            if (event.cardUid() == null || event.cardUid().isBlank() || event.timestamp() == null)
+                throw new IllegalArgumentException("Every event needs a card uid and a timestamp");
+        }
+
+        Counters counters = new Counters();
+        Resolved resolved = transactionTemplate.execute(status -> resolve(events, companyId, counters));
+
+        LocalDate today = TimeZoneUtils.todayCompanyDate();
+        Map<EmployeeDay, List<AccessLog>> past = new HashMap<>();
+        Map<EmployeeDay, List<AccessLog>> current = new HashMap<>();
+        resolved.logs().forEach((key, logs) -> (key.day().equals(today) ? current : past).put(key, logs));
+
+        if (!past.isEmpty())
+            transactionTemplate.executeWithoutResult(status -> merge(past, resolved, rebuild, false, counters));
+        if (!current.isEmpty())
+            pipeline.exclusive(() -> transactionTemplate.execute(status -> {
+                merge(current, resolved, rebuild, true, counters);
+                return null;
+            }));
+
+        return new BadgeReplayResult(events.size(), counters.inserted, counters.retyped, counters.duplicates,
+                counters.unknownCards, counters.unassigned, counters.rejected);
+    }
+
+    /**
+     * Registers the unknown cards and attributes every swipe to the owner of its card on its day
+     */
+    private Resolved resolve(List<BadgeReplayEvent> events, Long companyId, Counters counters) {
+        Set<String> uids = events.stream().map(BadgeReplayEvent::cardUid).collect(Collectors.toSet());
+        Map<String, Card> cardsByUid = cardRepository.getCardsByUids(uids).stream()
+                .collect(Collectors.toMap(Card::uid, Function.identity()));
+
+        Set<String> registered = new HashSet<>();
+        for (String uid : uids) {
+            if (!cardsByUid.containsKey(uid)) {
+                // Same as a live read: unknown cards are registered so they can be assigned
+                cardRepository.save(new Card(null, uid, false));
+                resolutionCache.invalidateUidAfterCommit(uid);
+                registered.add(uid);
+            }
+        }
+
+        List<Long> cardIds = cardsByUid.values().stream().map(Card::id).toList();
+        Map<Long, List<CardAssignment>> historyByCard = assignmentRepository.getHistoryByCards(cardIds).stream()
+                .collect(Collectors.groupingBy(CardAssignment::cardId));
+        Set<Long> ownerIds = historyByCard.values().stream().flatMap(List::stream)
+                .map(CardAssignment::employeeId).collect(Collectors.toSet());
+        Map<Long, Employee> employees = employeeRepository.findByIds(ownerIds).stream()
+                .collect(Collectors.toMap(Employee::id, Function.identity()));
+
+        // Resolve the owner of every swipe as of its date
+        Instant now = TimeZoneUtils.nowInstant();
+        Map<EmployeeDay, List<AccessLog>> logs = new HashMap<>();
+        for (BadgeReplayEvent event : events) {
+            if (registered.contains(event.cardUid())) {
+                counters.unknownCards++;
+                continue;
+            }
+            Card card = cardsByUid.get(event.cardUid());
+            // Stored timestamps have microsecond precision
+            Instant timestamp = event.timestamp().toInstant().truncatedTo(ChronoUnit.MICROS);
+            if (card.deleted() || timestamp.isAfter(now)) {
+                counters.rejected++;
+                continue;
+            }
+            LocalDate day = TimeZoneUtils.toCompanyDate(timestamp);
+            CardAssignment owner = ownerAt(historyByCard.getOrDefault(card.id(), List.of()), day);
+            if (owner == null) {
+                counters.unassigned++;
+                continue;
+            }
+            Employee employee = employees.get(owner.employeeId());
+            if (companyId != null && (employee == null || !companyId.equals(employee.companyId()))) {
+                counters.rejected++;
+                continue;
+            }
+            logs.computeIfAbsent(new EmployeeDay(owner.employeeId(), day), k -> new ArrayList<>())
+                    .add(new AccessLog(null, owner.employeeId(), card.id(), timestamp, AccessType.IN, false, null, false));
+        }
+        return new Resolved(logs, employees);
+    }
+
+    /**
+     * Merges the replayed logs into the stored ones of every day and writes the result
+     * @param rebuild whether the IN/OUT sequence of the days is rebuilt, or the new logs only are inserted
+     * @param today whether the days are today's: new logs get their ids, presence and dashboards are updated
+     */
+    private void merge(Map<EmployeeDay, List<AccessLog>> replayed, Resolved resolved, boolean rebuild, boolean today,
+                       Counters counters) {
+        Map<EmployeeDay, List<AccessLog>> stored = accessRepository.getLogsByEmployeeDays(replayed.keySet(), true);
+
+        List<AccessLog> toInsert = new ArrayList<>();
+        List<AccessLog> retypes = new ArrayList<>();
+        for (Map.Entry<EmployeeDay, List<AccessLog>> entry : replayed.entrySet()) {
+            List<AccessLog> dayLogs = stored.getOrDefault(entry.getKey(), List.of());
+            if (rebuild) {
+                rebuildDay(dayLogs, entry.getValue(), toInsert, retypes, counters);
+            } else {
+                insertMissing(dayLogs, entry.getValue(), toInsert, counters);
+            }
+        }
+
+        accessRepository.updateTypes(retypes);
+        counters.retyped += retypes.size();
+        if (today) {
+            List<AccessLog> inserted = accessRepository.addLogs(toInsert);
+            counters.inserted += inserted.size();
+            publishChanges(inserted, retypes, resolved.employees());
+        } else {
+            counters.inserted += accessRepository.copyLogs(toInsert);
+            // No ids from COPY: dashboards reload instead
+            if (!toInsert.isEmpty() || !retypes.isEmpty())
+                publishResync(companies(replayed.keySet(), resolved.employees()));
+        }
+        summaryService.refresh(replayed.keySet());
+        anomalyService.refresh(replayed.keySet());
+
+        if (today) {
+            // Runs on commit, before the pipeline is released
+            replayed.keySet().stream()
+                    .map(EmployeeDay::employeeId)
+                    .distinct()
+                    .forEach(presenceRegistry::refreshAfterCommit);
+        }
+    }
+
+    /**
+     * Rebuilds the IN/OUT sequence of a day from the stored and the replayed logs
+     * @param stored logs of the day, deleted ones included
+     */
+    private void rebuildDay(List<AccessLog> stored, List<AccessLog> replayed, List<AccessLog> toInsert,
+                            List<AccessLog> retypes, Counters counters) {
+        Instant now = TimeZoneUtils.nowInstant();
+        List<AccessLog> merged = new ArrayList<>(stored);
+        Set<Instant> seen = merged.stream().map(AccessLog::timestamp).collect(Collectors.toCollection(HashSet::new));
+        for (AccessLog log : replayed) {
+            // Readers resend the whole buffer after a failed upload, HR may have deleted some swipes since
+            if (seen.add(log.timestamp())) {
+                merged.add(log);
+            } else {
+                counters.duplicates++;
+            }
+        }
+        merged.sort(LOG_ORDER);
+
+        AccessType type = AccessType.IN;
+        for (AccessLog log : merged) {
+            if (log.deleted())
+                continue;
+            if (log.id() == null) {
+                toInsert.add(new AccessLog(null, log.employeeId(), log.cardId(), log.timestamp(),
+                        type, false, null, false));
+            } else if (log.modified()) {
+                // Corrected by hand: keep it and go on from its type
+                type = log.type();
+            } else if (log.type() != type) {
+                retypes.add(new AccessLog(log.id(), log.employeeId(), log.cardId(), log.timestamp(),
+                        type, true, now, false));
+            }
+            type = type == AccessType.IN ? AccessType.OUT : AccessType.IN;
+        }
+    }
+
+    /**
+     * Adds the replayed logs of a day that are not stored yet, each with the type following
+     * the log before it. Stored logs are left as they are.
+     * @param stored logs of the day, deleted ones included
+     */
+    private void insertMissing(List<AccessLog> stored, List<AccessLog> replayed, List<AccessLog> toInsert,
+                               Counters counters) {
+        Set<CardTime> seen = new HashSet<>();
+        List<AccessLog> live = new ArrayList<>();
+        for (AccessLog log : stored) {
+            seen.add(new CardTime(log.cardId(), log.timestamp()));
+            if (!log.deleted())
+                live.add(log);
+        }
+        live.sort(LOG_ORDER);
+
+        List<AccessLog> ordered = new ArrayList<>(replayed);
+        ordered.sort(LOG_ORDER);
+        for (AccessLog log : ordered) {
+            if (!seen.add(new CardTime(log.cardId(), log.timestamp()))) {
+                counters.duplicates++;
+                continue;
+            }
+            int position = 0;
+            while (position < live.size() && !live.get(position).timestamp().isAfter(log.timestamp()))
+                position++;
+            AccessType type = position > 0 && live.get(position - 1).type() == AccessType.IN
+                    ? AccessType.OUT : AccessType.IN;
+            AccessLog created = new AccessLog(null, log.employeeId(), log.cardId(), log.timestamp(),
+                    type, false, null, false);
+            live.add(position, created);
+            toInsert.add(created);
+        }
+    }
+
+    /**
+     * Pushes new and retyped logs to the dashboards, or a resync to the companies with too many of them
+     */
+    private void publishChanges(List<AccessLog> inserted, List<AccessLog> retypes, Map<Long, Employee> employees) {
+        if (inserted.isEmpty() && retypes.isEmpty())
+            return;
+        Map<Long, Long> companyByEmployee = new HashMap<>();
+        employees.values().forEach(employee -> companyByEmployee.put(employee.id(), employee.companyId()));
+
+        Map<Long, Integer> changesByCompany = new HashMap<>();
+        for (AccessLog log : inserted)
+            changesByCompany.merge(companyByEmployee.get(log.employeeId()), 1, Integer::sum);
+        for (AccessLog log : retypes)
+            changesByCompany.merge(companyByEmployee.get(log.employeeId()), 1, Integer::sum);
+        Set<Long> resync = changesByCompany.entrySet().stream()
+                .filter(entry -> entry.getValue() > maxPublishedEvents)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+        publishResync(resync);
+
+        Set<Long> insertedIds = inserted.stream().map(AccessLog::id).collect(Collectors.toSet());
+        List<Long> ids = new ArrayList<>(insertedIds);
+        retypes.forEach(log -> ids.add(log.id()));
+        LocalDate today = TimeZoneUtils.todayCompanyDate();
+        for (DetailedAccessLog log : accessRepository.getDetailedLogsByIds(ids,
+                TimeZoneUtils.startOfDay(today), TimeZoneUtils.endOfDay(today))) {
+            Long companyId = companyByEmployee.get(log.employeeId());
+            if (resync.contains(companyId))
+                continue;
+            eventHub.publishAfterCommit(companyId, insertedIds.contains(log.id())
+                    ? AccessEventHub.EVENT_ACCESS : AccessEventHub.EVENT_ACCESS_UPDATED, log);
+        }
+    }
+
+    private void publishResync(Set<Long> companyIds) {
+        companyIds.forEach(companyId -> eventHub.publishAfterCommit(companyId, AccessEventHub.EVENT_RESYNC, Map.of()));
+    }
+
+    private static Set<Long> companies(Set<EmployeeDay> keys, Map<Long, Employee> employees) {
+        return keys.stream()
+                .map(key -> employees.get(key.employeeId()))
+                .filter(Objects::nonNull)
+                .map(Employee::companyId)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Assignment valid on the given day, the most recent one if a card changed owner that day
+     */
+    private CardAssignment ownerAt(List<CardAssignment> history, LocalDate day) {
+        CardAssignment owner = null;
+        for (CardAssignment assignment : history) {
+            if (assignment.startDate().isAfter(day))
+                break;
+            if (assignment.endDate() == null || !assignment.endDate().isBefore(day))
+                owner = assignment;
+        }
+        return owner;
+    }
+
+    private record CardTime(Long cardId, Instant timestamp) {}
+
+    /**
+     * Replayed logs by employee-day, with the owners of the cards
+     */
+    private record Resolved(Map<EmployeeDay, List<AccessLog>> logs, Map<Long, Employee> employees) {}
+
+    private static final class Counters {
+        private long inserted;
+        private int retyped;
+        private int duplicates;
+        private int unknownCards;
+        private int unassigned;
+        private int rejected;
+    }
+}
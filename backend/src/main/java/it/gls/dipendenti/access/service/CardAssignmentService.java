@@ -27,11 +27,14 @@ public class CardAssignmentService {
     private final CardAssignmentRepository assignmentRepository;
     private final EmployeeRepository employeeRepository;
     private final CardService cardService;
+    private final CardResolutionCache resolutionCache;
 
-    public CardAssignmentService(CardAssignmentRepository assignmentRepository, EmployeeRepository employeeRepository, CardService cardService) {
+    public CardAssignmentService(CardAssignmentRepository assignmentRepository, EmployeeRepository employeeRepository,
+                                 CardService cardService, CardResolutionCache resolutionCache) {
         this.assignmentRepository = assignmentRepository;
         this.employeeRepository = employeeRepository;
         this.cardService = cardService;
+        this.resolutionCache = resolutionCache;
     }
 
     /**
@@ -61,6 +64,7 @@ public class CardAssignmentService {
         // Checking if card is already assigned
         if (assignmentRepository.isAssigned(cardAssignment.cardId()))
             throw new CardAlreadyAssigned(cardAssignment.cardId());
+        resolutionCache.invalidateCardAfterCommit(cardAssignment.cardId());
         // Setting start date to the day of the assignment and end date to null
         return assignmentRepository.save(new CardAssignment(null, cardAssignment.employeeId(),
                 cardAssignment.cardId(), LocalDate.now(), null));
@@ -76,6 +80,7 @@ public class CardAssignmentService {
             throw new IllegalArgumentException("Card id is null");
         if (!assignmentRepository.revokeNow(assignmentId))
             throw new CardNotAssignedException();
+        resolutionCache.invalidateAssignmentAfterCommit(assignmentId);
     }
 
     /**
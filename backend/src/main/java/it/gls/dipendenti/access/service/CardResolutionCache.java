@@ -0,0 +1,113 @@
+package it.gls.dipendenti.access.service;
+
+import it.gls.dipendenti.access.model.CardResolution;
+import it.gls.dipendenti.util.TransactionUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Cache of card uid -> card, active assignment and employee for the badge hot path.
+ * Entries carry the owner's company, so a read is attributed without touching the db.
+ * Unknown, unassigned and deleted cards are cached too, with a shorter ttl.
+ * <p>
+ * Card and assignment writes invalidate the affected entries after commit. A generation
+ * counter prevents a load that raced with an invalidation from storing stale data.
+ */
+@Component
+public class CardResolutionCache {
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+
+    private final long ttlNanos;
+    private final long negativeTtlNanos;
+    private final int maxSize;
+
+    public CardResolutionCache(@Value("${access.card-cache.ttl-seconds:600}") long ttlSeconds,
+                               @Value("${access.card-cache.negative-ttl-seconds:60}") long negativeTtlSeconds,
+                               @Value("${access.card-cache.max-size:50000}") int maxSize) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.negativeTtlNanos = TimeUnit.SECONDS.toNanos(negativeTtlSeconds);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Current generation, to be read before loading from the db and passed to {@link #put}
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Cached resolution of a uid
+     * @return resolution, null if missing or expired
+     */
+    public CardResolution get(String uid) {
+        Entry entry = entries.get(uid);
+        if (entry == null)
+            return null;
+        if (entry.expiresAt() - System.nanoTime() <= 0) {
+            entries.remove(uid, entry);
+            return null;
+        }
+        return entry.resolution();
+    }
+
+    /**
+     * Stores a resolution loaded from the db
+     * @param loadedAt generation read before the load, the entry is dropped if something was invalidated since
+     */
+    public void put(String uid, CardResolution resolution, long loadedAt) {
+        boolean negative = resolution.status() != CardResolution.Status.ASSIGNED;
+        if (entries.size() >= maxSize) {
+            evictExpired();
+            // A reader spamming random uids must not push out the real cards
+            if (negative && entries.size() >= maxSize)
+                return;
+        }
+        Entry entry = new Entry(resolution, System.nanoTime() + (negative ? negativeTtlNanos : ttlNanos));
+        entries.put(uid, entry);
+        if (generation.get() != loadedAt)
+            entries.remove(uid, entry);
+    }
+
+    // ============= INVALIDATION =============
+
+    public void invalidateUidAfterCommit(String uid) {
+        TransactionUtils.afterCommit(() -> invalidate(uid));
+    }
+
+    public void invalidateCardAfterCommit(Long cardId) {
+        TransactionUtils.afterCommit(() -> invalidateWhere(r -> r.card() != null && cardId.equals(r.card().id())));
+    }
+
+    public void invalidateAssignmentAfterCommit(Long assignmentId) {
+        TransactionUtils.afterCommit(() -> invalidateWhere(r -> r.assignment() != null && assignmentId.equals(r.assignment().id())));
+    }
+
+    public void invalidateEmployeeAfterCommit(Long employeeId) {
+        TransactionUtils.afterCommit(() -> invalidateWhere(r -> r.employee() != null && employeeId.equals(r.employee().id())));
+    }
+
+    private void invalidate(String uid) {
+        generation.incrementAndGet();
+        entries.remove(uid);
+    }
+
+    private void invalidateWhere(Predicate<CardResolution> predicate) {
+        generation.incrementAndGet();
+        entries.values().removeIf(entry -> predicate.test(entry.resolution()));
+    }
+
+    private void evictExpired() {
+        long now = System.nanoTime();
+        entries.values().removeIf(entry -> entry.expiresAt() - now <= 0);
+    }
+
+    private record Entry(CardResolution resolution, long expiresAt) {}
+}
@@ -20,11 +20,14 @@ public class CardService {
     private final CardRepository cardRepository;
     private final CardAssignmentRepository assignmentRepository;
     private final EmployeeRepository employeeRepository;
+    private final CardResolutionCache resolutionCache;
 
-    public CardService(CardRepository cardRepository, CardAssignmentRepository assignmentRepository, EmployeeRepository employeeRepository) {
+    public CardService(CardRepository cardRepository, CardAssignmentRepository assignmentRepository,
+                       EmployeeRepository employeeRepository, CardResolutionCache resolutionCache) {
         this.cardRepository = cardRepository;
         this.employeeRepository = employeeRepository;
         this.assignmentRepository = assignmentRepository;
+        this.resolutionCache = resolutionCache;
     }
 
     public boolean cardExistsByUid(String uid) {
@@ -41,6 +44,8 @@ public class CardService {
             throw new IllegalArgumentException("Card uid cannot be null");
         if (cardExistsByUid(card.uid()))
             throw new CardAlreadyExistException(card.uid());
+        // Drops the negative entry of the uid if a reader already saw it
+        resolutionCache.invalidateUidAfterCommit(card.uid());
         return cardRepository.save(
                 // When adding a card it cannot be deleted
                 new Card(null, card.uid(), false)
@@ -73,6 +78,7 @@ public class CardService {
             throw new IllegalArgumentException("Card id is null");
         if(!cardRepository.deleteCard(cardId))
             throw new CardNotFoundException();
+        resolutionCache.invalidateCardAfterCommit(cardId);
     }
 
     public void restoreCard(Long cardId) {
@@ -80,6 +86,7 @@ public class CardService {
             throw new IllegalArgumentException("Card id is null");
         if(!cardRepository.restoreCard(cardId))
             throw new CardNotFoundException();
+        resolutionCache.invalidateCardAfterCommit(cardId);
     }
 
     public Long getCardCount() {
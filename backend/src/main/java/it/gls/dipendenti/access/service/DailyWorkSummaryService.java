@@ -0,0 +1,220 @@
+package it.gls.dipendenti.access.service;
+
+import it.gls.dipendenti.access.model.AccessLog;
+import it.gls.dipendenti.access.model.AccessLogColumns;
+import it.gls.dipendenti.access.model.AccessType;
+import it.gls.dipendenti.access.model.DailyWorkSummary;
+import it.gls.dipendenti.access.model.EmployeeDay;
+import it.gls.dipendenti.access.repository.AccessRepository;
+import it.gls.dipendenti.access.repository.DailyWorkSummaryRepository;
+import it.gls.dipendenti.util.TimeZoneUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps daily_work_summary in sync with access_logs.
+ * Every write on access_logs refreshes only the employee-days it touched, so monthly
+ * and yearly figures are sums over at most 31 or 366 rows.
+ */
+@Service
+public class DailyWorkSummaryService {
+
+    private static final Logger logger = LoggerFactory.getLogger(DailyWorkSummaryService.class);
+
+    private final AccessRepository accessRepository;
+    private final DailyWorkSummaryRepository summaryRepository;
+
+    public DailyWorkSummaryService(AccessRepository accessRepository, DailyWorkSummaryRepository summaryRepository) {
+        this.accessRepository = accessRepository;
+        this.summaryRepository = summaryRepository;
+    }
+
+    /**
+     * Recomputes the summaries of the given employee-days in the current transaction
+     * @param keys employee-days touched by a write
+     */
+    public void refresh(Set<EmployeeDay> keys) {
+        if (keys.isEmpty())
+            return;
+        Map<EmployeeDay, List<AccessLog>> logs = accessRepository.getLogsByEmployeeDays(keys);
+
+        List<DailyWorkSummary> summaries = new ArrayList<>(logs.size());
+        List<EmployeeDay> emptyDays = new ArrayList<>();
+        for (EmployeeDay key : keys) {
+            List<AccessLog> dayLogs = logs.get(key);
+            if (dayLogs == null) {
+                emptyDays.add(key);
+            } else {
+                summaries.add(summarize(key, dayLogs));
+            }
+        }
+        summaryRepository.upsertAll(summaries);
+        summaryRepository.deleteDays(emptyDays);
+    }
+
+    /**
+     * Recomputes the summaries of one employee-day for each given timestamp
+     * @param employeeId employee
+     * @param timestamps timestamps whose days have been touched, nulls are ignored
+     */
+    public void refresh(Long employeeId, Instant... timestamps) {
+        Set<EmployeeDay> keys = Arrays.stream(timestamps)
+                .filter(Objects::nonNull)
+                .map(ts -> new EmployeeDay(employeeId, TimeZoneUtils.toCompanyDate(ts)))
+                .collect(Collectors.toSet());
+        refresh(keys);
+    }
+
+    /**
+     * Rebuilds the summaries of a company from the raw logs, one month at a time
+     * @param companyId company
+     * @param startDate first day to rebuild
+     * @param endDate last day to rebuild
+     * @return number of day summaries written
+     */
+    @Transactional
+    public int rebuild(Long companyId, LocalDate startDate, LocalDate endDate) {
+        if (startDate == null || endDate == null)
+            throw new IllegalArgumentException("Start and end date are required");
+        if (endDate.isBefore(startDate))
+            throw new IllegalArgumentException("Start date cannot be after end date");
+
+        int written = 0;
+        LocalDate chunkStart = startDate;
+        while (!chunkStart.isAfter(endDate)) {
+            LocalDate monthEnd = YearMonth.from(chunkStart).atEndOfMonth();
+            LocalDate chunkEnd = monthEnd.isBefore(endDate) ? monthEnd : endDate;
+
+            AccessLogColumns logs = accessRepository.getLogColumns(companyId,
+                    TimeZoneUtils.startOfDay(chunkStart), TimeZoneUtils.endOfDay(chunkEnd));
+            List<DailyWorkSummary> summaries = summarize(logs, chunkStart, chunkEnd);
+
+            summaryRepository.deleteRange(companyId, chunkStart, chunkEnd);
+            summaryRepository.upsertAll(summaries);
+            written += summaries.size();
+
+            chunkStart = chunkEnd.plusDays(1);
+        }
+        logger.info("Rebuilt {} daily work summaries for company {} from {} to {}",
+                written, companyId, startDate, endDate);
+        return written;
+    }
+
+    /**
+     * Worked minutes of an employee in a date range
+     */
+    public int getWorkedMinutes(Long employeeId, LocalDate startDate, LocalDate endDate) {
+        return summaryRepository.sumWorkedMinutes(employeeId, startDate, endDate);
+    }
+
+    /**
+     * Days of the range in which the employee has at least one log
+     */
+    public List<LocalDate> getWorkedDays(Long employeeId, LocalDate startDate, LocalDate endDate) {
+        return summaryRepository.findWorkedDays(employeeId, startDate, endDate);
+    }
+
+    /**
+     * Summaries of all the employee-days in columns ordered by employee and timestamp.
+     * Same rules as {@link #summarize(EmployeeDay, List)}, walking the rows in place.
+     */
+    private static List<DailyWorkSummary> summarize(AccessLogColumns logs, LocalDate startDate, LocalDate endDate) {
+        int days = (int) ChronoUnit.DAYS.between(startDate, endDate) + 1;
+        long[] dayStarts = TimeZoneUtils.dayStartEpochSeconds(startDate, days);
+
+        List<DailyWorkSummary> summaries = new ArrayList<>();
+        int from = 0;
+        while (from < logs.size()) {
+            long employeeId = logs.employeeId(from);
+            int day = dayIndex(dayStarts, logs.epochSecond(from));
+            int to = from + 1;
+            while (to < logs.size() && logs.employeeId(to) == employeeId
+                    && dayIndex(dayStarts, logs.epochSecond(to)) == day)
+                to++;
+            summaries.add(summarize(logs, from, to, startDate.plusDays(day)));
+            from = to;
+        }
+        return summaries;
+    }
+
+    private static DailyWorkSummary summarize(AccessLogColumns logs, int from, int to, LocalDate day) {
+        int firstIn = -1;
+        int lastOut = -1;
+        for (int row = from; row < to; row++) {
+            if (logs.isIn(row) && firstIn < 0)
+                firstIn = row;
+            if (!logs.isIn(row))
+                lastOut = row;
+        }
+
+        int count = to - from;
+        int workedMinutes = 0;
+        int pairs = 0;
+        boolean anomaly = count % 2 != 0;
+        for (int row = from; row < to - 1; row += 2) {
+            if (logs.isIn(row) && !logs.isIn(row + 1)) {
+                workedMinutes += (int) logs.minutesBetween(row, row + 1);
+                pairs++;
+            } else {
+                anomaly = true;
+            }
+        }
+
+        return new DailyWorkSummary(logs.employeeId(from), day, workedMinutes,
+                firstIn >= 0 ? logs.timestamp(firstIn) : null,
+                lastOut >= 0 ? logs.timestamp(lastOut) : null,
+                pairs, count, anomaly);
+    }
+
+    private static int dayIndex(long[] dayStarts, long epochSecond) {
+        int index = Arrays.binarySearch(dayStarts, epochSecond);
+        if (index < 0)
+            index = -index - 2;
+        return Math.clamp(index, 0, dayStarts.length - 2);
+    }
+
+    /**
+     * Builds the summary of one day. Logs are paired in order, IN followed by OUT;
+     * any other pair or an odd number of logs marks the day as anomalous.
+     */
+    private static DailyWorkSummary summarize(EmployeeDay key, List<AccessLog> logs) {
+        List<AccessLog> sorted = logs.stream()
+                .sorted(Comparator.comparing(AccessLog::timestamp))
+                .toList();
+
+        Instant firstIn = null;
+        Instant lastOut = null;
+        for (AccessLog log : sorted) {
+            if (log.type() == AccessType.IN && firstIn == null)
+                firstIn = log.timestamp();
+            if (log.type() == AccessType.OUT)
+                lastOut = log.timestamp();
+        }
+
+        int workedMinutes = 0;
+        int pairs = 0;
+        boolean anomaly = sorted.size() % 2 != 0;
+        for (int i = 0; i < sorted.size() - 1; i += 2) {
+            AccessLog in = sorted.get(i);
+            AccessLog out = sorted.get(i + 1);
+            if (in.type() == AccessType.IN && out.type() == AccessType.OUT) {
+                workedMinutes += (int) ChronoUnit.MINUTES.between(in.timestamp(), out.timestamp());
+                pairs++;
+            } else {
+                anomaly = true;
+            }
+        }
+
+        return new DailyWorkSummary(key.employeeId(), key.day(), workedMinutes, firstIn, lastOut,
+                pairs, sorted.size(), anomaly);
+    }
+}
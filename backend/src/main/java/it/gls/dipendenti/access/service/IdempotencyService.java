@@ -0,0 +1,210 @@
+package it.gls.dipendenti.access.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.gls.dipendenti.access.repository.IdempotencyKeyRepository;
+import it.gls.dipendenti.util.TimeZoneUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Answers retried writes with the response of the first attempt.
+ * <p>
+ * Keys are supplied by the client and scoped by the caller (reader, user). The responses of
+ * the last {@code ttl-minutes} are kept in a bounded in-memory map, where a retry arriving
+ * while the first attempt is still running waits for it; the db table covers restarts.
+ * A failed attempt records nothing, so it can be retried.
+ */
+@Service
+public class IdempotencyService {
+
+    private static final Logger logger = LoggerFactory.getLogger(IdempotencyService.class);
+
+    private static final int MAX_KEY_LENGTH = 100;
+
+    private final IdempotencyKeyRepository repository;
+    private final ObjectMapper objectMapper;
+    private final TransactionTemplate transactionTemplate;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Duration ttl;
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final long waitMillis;
+
+    public IdempotencyService(IdempotencyKeyRepository repository,
+                              ObjectMapper objectMapper,
+                              PlatformTransactionManager transactionManager,
+                              @Value("${access.idempotency.ttl-minutes:1440}") long ttlMinutes,
+                              @Value("${access.idempotency.max-entries:50000}") int maxEntries,
+                              @Value("${access.idempotency.wait-ms:10000}") long waitMillis) {
+        this.repository = repository;
+        this.objectMapper = objectMapper;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.ttl = Duration.ofMinutes(ttlMinutes);
+        this.ttlNanos = ttl.toNanos();
+        this.maxEntries = maxEntries;
+        this.waitMillis = waitMillis;
+    }
+
+    /**
+     * Runs a write once per key. The db is only a fallback: if it cannot be reached
+     * the key is checked and recorded in memory only, the write itself is not blocked.
+     * Meant for writes that commit on their own, like badge reads.
+     * @param scope who the key belongs to, e.g. the reader
+     * @param key key sent by the client, null to run the action as is
+     * @param type type of the response, to read it back from the db
+     * @param action the write
+     * @return response of the first attempt with this key
+     */
+    public <T> T execute(String scope, String key, Class<T> type, Supplier<T> action) {
+        return run(scope, key, type, action, false);
+    }
+
+    /**
+     * Same as {@link #execute} with the write and the record of its key in one transaction,
+     * so a committed write always has its key
+     */
+    public <T> T executeInTransaction(String scope, String key, Class<T> type, Supplier<T> action) {
+        return run(scope, key, type, action, true);
+    }
+
+    private <T> T run(String scope, String key, Class<T> type, Supplier<T> action, boolean transactional) {
+        if (key == null || key.isBlank())
+            return action.get();
+        if (key.length() > MAX_KEY_LENGTH)
+            throw new IllegalArgumentException("Idempotency key too long, max is %d characters".formatted(MAX_KEY_LENGTH));
+        String scopeKey = scope + ":" + key;
+
+        while (true) {
+            long now = System.nanoTime();
+            Entry current = entries.get(scopeKey);
+            if (current != null && now - current.createdAt < ttlNanos)
+                return type.cast(await(current.result));
+
+            Entry mine = new Entry(now);
+            boolean claimed = current == null
+                    ? entries.putIfAbsent(scopeKey, mine) == null
+                    : entries.replace(scopeKey, current, mine);
+            if (!claimed)
+                continue;
+            if (entries.size() > maxEntries)
+                evictExpired();
+
+            try {
+                T result = transactional
+                        ? transactionTemplate.execute(status -> runOnce(scopeKey, type, action, true))
+                        : runOnce(scopeKey, type, action, false);
+                mine.result.complete(result);
+                if (entries.size() > maxEntries)
+                    entries.remove(scopeKey, mine);
+                return result;
+            } catch (RuntimeException e) {
+                entries.remove(scopeKey, mine);
+                mine.result.completeExceptionally(e);
+                throw e;
+            }
+        }
+    }
+
+    private <T> T runOnce(String scopeKey, Class<T> type, Supplier<T> action, boolean transactional) {
+        Optional<String> recorded = find(scopeKey, transactional);
+        if (recorded.isPresent())
+            return read(recorded.get(), type);
+
+        T result = action.get();
+        String response = write(result);
+        if (transactional) {
+            repository.save(scopeKey, response);
+        } else {
+            try {
+                repository.save(scopeKey, response);
+            } catch (DataAccessException e) {
+                logger.debug("Idempotency key {} kept in memory only: {}", scopeKey, e.getMessage());
+            }
+        }
+        return result;
+    }
+
+    private Optional<String> find(String scopeKey, boolean transactional) {
+        Instant notBefore = TimeZoneUtils.nowInstant().minus(ttl);
+        if (transactional)
+            return repository.findResponse(scopeKey, notBefore);
+        try {
+            return repository.findResponse(scopeKey, notBefore);
+        } catch (DataAccessException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Drops the expired keys, in memory and in the db
+     */
+    @Scheduled(fixedDelay = 3_600_000)
+    public void purgeExpired() {
+        evictExpired();
+        try {
+            int removed = repository.deleteOlderThan(TimeZoneUtils.nowInstant().minus(ttl));
+            if (removed > 0)
+                logger.info("Removed {} expired idempotency keys", removed);
+        } catch (DataAccessException e) {
+            logger.warn("Cannot purge idempotency keys: {}", e.getMessage());
+        }
+    }
+
+    private void evictExpired() {
+        long now = System.nanoTime();
+        entries.values().removeIf(entry -> now - entry.createdAt >= ttlNanos && entry.result.isDone());
+    }
+
+    private Object await(CompletableFuture<Object> result) {
+        try {
+            return result.get(waitMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException)
+                throw runtimeException;
+            throw new IllegalStateException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("A request with the same idempotency key is still running");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the same idempotency key");
+        }
+    }
+
+    private String write(Object response) {
+        try {
+            return objectMapper.writeValueAsString(response);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot serialize idempotent response", e);
+        }
+    }
+
+    private <T> T read(String response, Class<T> type) {
+        try {
+            return objectMapper.readValue(response, type);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot read idempotent response", e);
+        }
+    }
+
+    private static final class Entry {
+        private final long createdAt;
+        private final CompletableFuture<Object> result = new CompletableFuture<>();
+
+        Entry(long createdAt) {
+            this.createdAt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package it.gls.dipendenti.access.service;
+
+import it.gls.dipendenti.access.dto.PresenceChange;
+import it.gls.dipendenti.access.model.AccessLog;
+import it.gls.dipendenti.access.model.AccessType;
+import it.gls.dipendenti.access.model.EmployeePresence;
+import it.gls.dipendenti.access.repository.AccessRepository;
+import it.gls.dipendenti.hr.model.Employee;
+import it.gls.dipendenti.hr.repository.EmployeeRepository;
+import it.gls.dipendenti.hr.repository.GroupRepository;
+import it.gls.dipendenti.util.TimeZoneUtils;
+import it.gls.dipendenti.util.TransactionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.UnaryOperator;
+
+/**
+ * In-memory presence table: last log of the current company day for every employee.
+ * Warmed from today's logs at startup and kept up to date by every write on access_logs,
+ * so IN/OUT decisions and work status never need a query.
+ * <p>
+ * It also keeps how many employees are at work per company and per group. Counters move
+ * on every IN/OUT transition and are recounted from memory on day rollover and membership changes.
+ * Every change of a company total is pushed through the {@link AccessEventHub}.
+ */
+@Component
+public class PresenceRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(PresenceRegistry.class);
+
+    private final AccessRepository accessRepository;
+    private final EmployeeRepository employeeRepository;
+    private final GroupRepository groupRepository;
+    private final AccessEventHub eventHub;
+
+    private final ConcurrentHashMap<Long, EmployeePresence> presence = new ConcurrentHashMap<>();
+    // Logs recorded per employee: a refresh that read the db before one of them is dropped
+    private final ConcurrentHashMap<Long, Long> recorded = new ConcurrentHashMap<>();
+
+    // Employee directory used to attribute a transition to its counters
+    private final ConcurrentHashMap<Long, Long> companyByEmployee = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, List<Long>> groupsByEmployee = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Long, AtomicLong> atWorkByCompany = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, AtomicLong> atWorkByGroup = new ConcurrentHashMap<>();
+
+    // Transitions share the read lock, recounts take the write lock
+    private final ReadWriteLock countersLock = new ReentrantReadWriteLock();
+
+    private volatile boolean warm;
+    private volatile LocalDate trackedDay;
+
+    public PresenceRegistry(AccessRepository accessRepository,
+                            EmployeeRepository employeeRepository,
+                            GroupRepository groupRepository,
+                            AccessEventHub eventHub) {
+        this.accessRepository = accessRepository;
+        this.employeeRepository = employeeRepository;
+        this.groupRepository = groupRepository;
+        this.eventHub = eventHub;
+        this.trackedDay = TimeZoneUtils.todayCompanyDate();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUp() {
+        LocalDate today = TimeZoneUtils.todayCompanyDate();
+        companyByEmployee.putAll(employeeRepository.findAllCompanyIds());
+        groupRepository.findAllMemberships().forEach((employeeId, groups) -> {
+            if (companyByEmployee.containsKey(employeeId))
+                groupsByEmployee.put(employeeId, groups);
+        });
+        rollOver(today);
+        List<AccessLog> latest = accessRepository.getLatestLogsForDay(today);
+        latest.forEach(this::merge);
+        countersLock.writeLock().lock();
+        try {
+            recount();
+        } finally {
+            countersLock.writeLock().unlock();
+        }
+        warm = true;
+        logger.info("Presence registry warmed with {} employees for {}", latest.size(), today);
+    }
+
+    /**
+     * Moves the registry to the new company day at midnight, even if nobody badges
+     */
+    @Scheduled(cron = "0 0 0 * * *", zone = "Europe/Rome")
+    public void midnightRollOver() {
+        rollOver(TimeZoneUtils.todayCompanyDate());
+    }
+
+    /**
+     * True if the registry holds the state for the given day, otherwise the caller must query the db
+     */
+    public boolean covers(LocalDate companyDay) {
+        return warm && !companyDay.isBefore(trackedDay);
+    }
+
+    /**
+     * Last type of the employee on the given day
+     * @return last type, null if the employee has no log on that day
+     */
+    public AccessType lastType(Long employeeId, LocalDate companyDay) {
+        EmployeePresence state = presence.get(employeeId);
+        if (state == null || !state.companyDay().equals(companyDay))
+            return null;
+        return state.lastType();
+    }
+
+    /**
+     * Work status of an employee
+     * @return true if today's last log is an IN
+     */
+    public boolean isAtWork(Long employeeId) {
+        if (!warm) {
+            return accessRepository.getLastLogByEmployee(employeeId)
+                    .map(log -> log.type() == AccessType.IN)
+                    .orElse(false);
+        }
+        return lastType(employeeId, TimeZoneUtils.todayCompanyDate()) == AccessType.IN;
+    }
+
+    /**
+     * Number of employees of a company currently at work
+     * @param companyId company id
+     * @return employee count
+     */
+    public long countAtWork(Long companyId) {
+        if (!warm)
+            return accessRepository.getEmployeesAtWork(companyId);
+        rollOver(TimeZoneUtils.todayCompanyDate());
+        AtomicLong counter = atWorkByCompany.get(companyId);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Number of members of a group currently at work
+     * @param groupId group id
+     * @return employee count
+     */
+    public long countGroupAtWork(Long groupId) {
+        if (!warm) {
+            LocalDate today = TimeZoneUtils.todayCompanyDate();
+            return accessRepository.getLastTypes(groupRepository.findMemberIds(groupId), today).values().stream()
+                    .filter(type -> type == AccessType.IN)
+                    .count();
+        }
+        rollOver(TimeZoneUtils.todayCompanyDate());
+        AtomicLong counter = atWorkByGroup.get(groupId);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Records a committed log, older logs than the known state are ignored
+     */
+    public void record(AccessLog log) {
+        LocalDate day = TimeZoneUtils.toCompanyDate(log.timestamp());
+        if (day.isAfter(trackedDay))
+            rollOver(day);
+        if (day.isBefore(trackedDay))
+            return;
+        recorded.merge(log.employeeId(), 1L, Long::sum);
+        merge(log);
+    }
+
+    /**
+     * Reloads today's state of an employee once the current transaction commits.
+     * Used after edits, where the last log may change in any direction.
+     */
+    public void refreshAfterCommit(Long employeeId) {
+        TransactionUtils.afterCommit(() -> refresh(employeeId));
+    }
+
+    /**
+     * Reloads today's state of an employee. If a log is recorded while the db is read, the snapshot
+     * may miss it and is dropped: the recorded log is a live read, newer than the logs an edit changes.
+     */
+    public void refresh(Long employeeId) {
+        Long before = recorded.get(employeeId);
+        AccessLog last = accessRepository.getLastLogByEmployee(employeeId).orElse(null);
+        transition(employeeId, current -> {
+            if (!Objects.equals(recorded.get(employeeId), before))
+                return current;
+            return last == null ? null : toPresence(last);
+        });
+    }
+
+    /**
+     * Reloads company and groups of an employee once the current transaction commits
+     * @param employeeId employee whose company or memberships changed
+     */
+    public void reloadEmployeeAfterCommit(Long employeeId) {
+        TransactionUtils.afterCommit(() -> reloadEmployee(employeeId));
+    }
+
+    private void reloadEmployee(Long employeeId) {
+        // A deleted employee no longer counts, even if their last log is an IN
+        Long companyId = employeeRepository.findById(employeeId)
+                .filter(employee -> !employee.deleted())
+                .map(Employee::companyId)
+                .orElse(null);
+        List<Long> groups = companyId != null ? groupRepository.findGroupIds(employeeId) : List.of();
+        countersLock.writeLock().lock();
+        try {
+            if (companyId == null) {
+                companyByEmployee.remove(employeeId);
+            } else {
+                companyByEmployee.put(employeeId, companyId);
+            }
+            groupsByEmployee.put(employeeId, List.copyOf(groups));
+            recount();
+        } finally {
+            countersLock.writeLock().unlock();
+        }
+        publishCounts();
+    }
+
+    private void rollOver(LocalDate day) {
+        if (!day.isAfter(trackedDay))
+            return;
+        countersLock.writeLock().lock();
+        try {
+            if (!day.isAfter(trackedDay))
+                return;
+            logger.info("Presence registry rolling over from {} to {}", trackedDay, day);
+            trackedDay = day;
+            presence.values().removeIf(state -> state.companyDay().isBefore(day));
+            recount();
+        } finally {
+            countersLock.writeLock().unlock();
+        }
+        publishCounts();
+    }
+
+    private void merge(AccessLog log) {
+        EmployeePresence incoming = toPresence(log);
+        transition(log.employeeId(), current ->
+                current != null && incoming.lastTimestamp().isBefore(current.lastTimestamp()) ? current : incoming);
+    }
+
+    /**
+     * Applies a state change to an employee and moves their counters if they entered or left
+     */
+    private void transition(Long employeeId, UnaryOperator<EmployeePresence> update) {
+        ensureKnown(employeeId);
+        boolean[] moved = new boolean[2];
+        countersLock.readLock().lock();
+        try {
+            presence.compute(employeeId, (id, current) -> {
+                EmployeePresence next = update.apply(current);
+                boolean wasIn = counts(current);
+                boolean isIn = counts(next);
+                if (wasIn != isIn)
+                    adjust(id, isIn ? 1 : -1);
+                moved[0] = wasIn != isIn;
+                moved[1] = isIn;
+                return next;
+            });
+        } finally {
+            countersLock.readLock().unlock();
+        }
+        if (moved[0] && warm) {
+            Long companyId = companyByEmployee.get(employeeId);
+            eventHub.publish(companyId, AccessEventHub.EVENT_PRESENCE,
+                    new PresenceChange(employeeId, moved[1], companyCount(companyId)));
+        }
+    }
+
+    /**
+     * Rebuilds all counters from the presence table. Caller must hold the write lock.
+     */
+    private void recount() {
+        atWorkByCompany.clear();
+        atWorkByGroup.clear();
+        presence.forEach((employeeId, state) -> {
+            if (counts(state))
+                adjust(employeeId, 1);
+        });
+    }
+
+    private void adjust(Long employeeId, int delta) {
+        Long companyId = companyByEmployee.get(employeeId);
+        if (companyId != null)
+            atWorkByCompany.computeIfAbsent(companyId, id -> new AtomicLong()).addAndGet(delta);
+        for (Long groupId : groupsByEmployee.getOrDefault(employeeId, List.of()))
+            atWorkByGroup.computeIfAbsent(groupId, id -> new AtomicLong()).addAndGet(delta);
+    }
+
+    private long companyCount(Long companyId) {
+        AtomicLong counter = companyId != null ? atWorkByCompany.get(companyId) : null;
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Pushes the recounted totals of every company to the dashboards
+     */
+    private void publishCounts() {
+        if (!warm)
+            return;
+        companyByEmployee.values().stream().distinct().forEach(companyId ->
+                eventHub.publish(companyId, AccessEventHub.EVENT_PRESENCE,
+                        new PresenceChange(null, false, companyCount(companyId))));
+    }
+
+    private boolean counts(EmployeePresence state) {
+        return state != null && state.lastType() == AccessType.IN && state.companyDay().equals(trackedDay);
+    }
+
+    /**
+     * Employees created after warm up are loaded on their first log, deleted ones are never counted
+     */
+    private void ensureKnown(Long employeeId) {
+        if (companyByEmployee.containsKey(employeeId))
+            return;
+        employeeRepository.findById(employeeId)
+                .filter(employee -> !employee.deleted())
+                .ifPresent(employee -> {
+                    companyByEmployee.putIfAbsent(employeeId, employee.companyId());
+                    groupsByEmployee.putIfAbsent(employeeId, List.copyOf(groupRepository.findGroupIds(employeeId)));
+                });
+    }
+
+    private EmployeePresence toPresence(AccessLog log) {
+        return new EmployeePresence(log.employeeId(), log.type(), log.timestamp(),
+                TimeZoneUtils.toCompanyDate(log.timestamp()));
+    }
+}
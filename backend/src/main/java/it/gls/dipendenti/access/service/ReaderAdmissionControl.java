@@ -0,0 +1,152 @@
+package it.gls.dipendenti.access.service;
+
+import it.gls.dipendenti.access.dto.ReaderRateStats;
+import it.gls.dipendenti.access.exception.ReaderThrottledException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Per-reader token bucket on the badge read endpoint, so a reader stuck in a loop cannot
+ * take the request threads and db connections the other users need.
+ * <p>
+ * The bucket is kept as a single theoretical arrival time per reader (GCRA) updated with
+ * compare-and-set: no locks and no refill thread. A reader may send {@code burst} reads at once,
+ * enough for a queue at shift change, then {@code rate-per-second} on average.
+ * <p>
+ * Readers are told apart by their remote address. The X-Reader-Id header is not authenticated,
+ * so it only labels the bucket: a reader changing it on every request still drains the same one.
+ * At most {@code max-readers} addresses are tracked, new ones beyond that share a single bucket.
+ */
+@Component
+public class ReaderAdmissionControl {
+
+    private static final String OVERFLOW = "overflow";
+
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+    // Shared by the addresses seen while the table is full
+    private final Bucket overflow = new Bucket();
+    private final LongAdder throttled = new LongAdder();
+    private final boolean enabled;
+    private final long emissionNanos;
+    private final long toleranceNanos;
+    private final int burst;
+    private final long idleNanos;
+    private final int maxReaders;
+
+    public ReaderAdmissionControl(@Value("${access.admission.enabled:true}") boolean enabled,
+                                  @Value("${access.admission.rate-per-second:2}") double ratePerSecond,
+                                  @Value("${access.admission.burst:60}") int burst,
+                                  @Value("${access.admission.idle-minutes:60}") long idleMinutes,
+                                  @Value("${access.admission.max-readers:10000}") int maxReaders) {
+        if (ratePerSecond <= 0 || burst < 1 || maxReaders < 1)
+            throw new IllegalArgumentException("Admission rate, burst and max readers must be positive");
+        this.enabled = enabled;
+        this.emissionNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        this.toleranceNanos = emissionNanos * burst;
+        this.burst = burst;
+        this.idleNanos = TimeUnit.MINUTES.toNanos(idleMinutes);
+        this.maxReaders = maxReaders;
+    }
+
+    /**
+     * Takes a token from the bucket of a reader
+     * @param address remote address of the reader, the bucket key
+     * @param readerId id sent by the reader, only kept for the stats, may be null
+     * @throws ReaderThrottledException if the bucket is empty, with the time until the next token
+     */
+    public void admit(String address, String readerId) {
+        if (!enabled)
+            return;
+        Bucket bucket = bucket(address);
+        long now = System.nanoTime();
+        bucket.lastSeen = now;
+        if (readerId != null)
+            bucket.readerId = readerId;
+        while (true) {
+            long tat = bucket.tat.get();
+            long next = Math.max(tat, now) + emissionNanos;
+            long ahead = next - now - toleranceNanos;
+            if (ahead > 0) {
+                bucket.throttled.increment();
+                throttled.increment();
+                throw new ReaderThrottledException(address, TimeUnit.NANOSECONDS.toMillis(ahead) + 1);
+            }
+            if (bucket.tat.compareAndSet(tat, next)) {
+                bucket.admitted.increment();
+                return;
+            }
+        }
+    }
+
+    private Bucket bucket(String address) {
+        Bucket bucket = buckets.get(address);
+        if (bucket != null)
+            return bucket;
+        // The size check may let a few concurrent newcomers past the cap, never an unbounded number
+        if (buckets.size() >= maxReaders)
+            return overflow;
+        return buckets.computeIfAbsent(address, key -> new Bucket());
+    }
+
+    /**
+     * Reads refused since startup, all readers
+     */
+    public long throttledReads() {
+        return throttled.sum();
+    }
+
+    /**
+     * Counters of every reader seen recently, busiest first
+     */
+    public List<ReaderRateStats> readerStats() {
+        long now = System.nanoTime();
+        Instant wallNow = Instant.now();
+        Stream<Map.Entry<String, Bucket>> tracked = buckets.entrySet().stream();
+        if (overflow.admitted.sum() + overflow.throttled.sum() > 0)
+            tracked = Stream.concat(tracked, Stream.of(Map.entry(OVERFLOW, overflow)));
+        return tracked
+                .map(entry -> {
+                    Bucket bucket = entry.getValue();
+                    long used = Math.max(0, bucket.tat.get() - now);
+                    int available = (int) Math.max(0, (toleranceNanos - used) / emissionNanos);
+                    return new ReaderRateStats(entry.getKey(),
+                            bucket.readerId,
+                            bucket.admitted.sum(),
+                            bucket.throttled.sum(),
+                            Math.min(available, burst),
+                            wallNow.minusNanos(now - bucket.lastSeen));
+                })
+                .sorted(Comparator.comparingLong(ReaderRateStats::admitted).reversed())
+                .toList();
+    }
+
+    /**
+     * Forgets the readers idle for a while, a full bucket needs no state
+     */
+    @Scheduled(fixedDelay = 300_000)
+    public void evictIdle() {
+        long now = System.nanoTime();
+        buckets.values().removeIf(bucket -> now - bucket.lastSeen > idleNanos && bucket.tat.get() < now);
+    }
+
+    private static final class Bucket {
+        // Theoretical arrival time of the next read, in System.nanoTime()
+        private final AtomicLong tat = new AtomicLong(Long.MIN_VALUE / 2);
+        private final LongAdder admitted = new LongAdder();
+        private final LongAdder throttled = new LongAdder();
+        private volatile long lastSeen;
+        // Last X-Reader-Id sent from this address
+        private volatile String readerId;
+    }
+}
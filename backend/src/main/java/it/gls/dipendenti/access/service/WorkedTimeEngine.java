@@ -0,0 +1,157 @@
+package it.gls.dipendenti.access.service;
+
+import it.gls.dipendenti.access.model.AccessLogColumns;
+import it.gls.dipendenti.access.model.WorkedTimeTable;
+import it.gls.dipendenti.access.repository.AccessRepository;
+import it.gls.dipendenti.util.TimeZoneUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+
+/**
+ * Single-pass worked time computation for a whole company.
+ * Logs are read once in columns ordered by employee and timestamp and folded into
+ * primitive arrays, one slot per employee: nothing is grouped or allocated per log.
+ * Days are paired like the daily summaries: logs of a company day in stride of two,
+ * an IN followed by an OUT counts its minutes, a day with an odd number of logs has an open interval.
+ */
+@Component
+public class WorkedTimeEngine {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final AccessRepository accessRepository;
+
+    public WorkedTimeEngine(AccessRepository accessRepository) {
+        this.accessRepository = accessRepository;
+    }
+
+    /**
+     * Worked time of every employee of a company with logs in a date range
+     * @param companyId company
+     * @param startDate first day
+     * @param endDate last day
+     */
+    @Transactional(readOnly = true)
+    public WorkedTimeTable compute(Long companyId, LocalDate startDate, LocalDate endDate) {
+        validate(startDate, endDate);
+        AccessLogColumns logs = accessRepository.getLogColumns(companyId,
+                TimeZoneUtils.startOfDay(startDate), TimeZoneUtils.endOfDay(endDate));
+        return compute(logs, startDate, endDate);
+    }
+
+    /**
+     * Worked time from logs already loaded, e.g. by a report that also needs them for something else
+     * @param logs logs of the range, ordered by employee and timestamp
+     */
+    public WorkedTimeTable compute(AccessLogColumns logs, LocalDate startDate, LocalDate endDate) {
+        validate(startDate, endDate);
+        Walker walker = new Walker(startDate, endDate);
+        for (int row = 0; row < logs.size(); row++)
+            walker.accept(logs, row);
+        return walker.finish();
+    }
+
+    private static void validate(LocalDate startDate, LocalDate endDate) {
+        if (startDate == null || endDate == null)
+            throw new IllegalArgumentException("Start and end date are required");
+        if (endDate.isBefore(startDate))
+            throw new IllegalArgumentException("Start date cannot be after end date");
+    }
+
+    /**
+     * Folds the logs of one company, employee by employee and day by day
+     */
+    private static final class Walker {
+        private final LocalDate startDate;
+        private final int days;
+        private final int words;
+        // Epoch second at which each day starts, plus the start of the day after the range
+        private final long[] dayStarts;
+
+        private int size;
+        private long[] employeeIds = new long[INITIAL_CAPACITY];
+        private int[] workedMinutes = new int[INITIAL_CAPACITY];
+        private int[] pairs = new int[INITIAL_CAPACITY];
+        private int[] openIntervals = new int[INITIAL_CAPACITY];
+        private long[] workedDayBits;
+        private long[] openDayBits;
+
+        // Current employee slot and day, -1 before the first log
+        private int slot = -1;
+        private int day = -1;
+        private int dayLogs;
+        // First log of the pair being read
+        private int pendingRow = -1;
+
+        Walker(LocalDate startDate, LocalDate endDate) {
+            this.startDate = startDate;
+            this.days = (int) ChronoUnit.DAYS.between(startDate, endDate) + 1;
+            this.words = WorkedTimeTable.wordsPerEmployee(days);
+            this.workedDayBits = new long[INITIAL_CAPACITY * words];
+            this.openDayBits = new long[INITIAL_CAPACITY * words];
+            this.dayStarts = TimeZoneUtils.dayStartEpochSeconds(startDate, days);
+        }
+
+        void accept(AccessLogColumns logs, int row) {
+            long employeeId = logs.employeeId(row);
+            if (slot < 0 || employeeIds[slot] != employeeId) {
+                closeDay();
+                openSlot(employeeId);
+                day = -1;
+            }
+
+            long second = logs.epochSecond(row);
+            if (day < 0 || second >= dayStarts[day + 1]) {
+                closeDay();
+                // Logs are in timestamp order, the day index only moves forward
+                int next = Math.max(day, 0);
+                while (next < days - 1 && second >= dayStarts[next + 1])
+                    next++;
+                day = next;
+                workedDayBits[slot * words + (day >>> 6)] |= 1L << (day & 63);
+            }
+
+            if ((dayLogs & 1) == 0) {
+                pendingRow = row;
+            } else if (logs.isIn(pendingRow) && !logs.isIn(row)) {
+                workedMinutes[slot] += (int) logs.minutesBetween(pendingRow, row);
+                pairs[slot]++;
+            }
+            dayLogs++;
+        }
+
+        WorkedTimeTable finish() {
+            closeDay();
+            return new WorkedTimeTable(startDate, days, size, employeeIds, workedMinutes, pairs,
+                    openIntervals, workedDayBits, openDayBits);
+        }
+
+        private void closeDay() {
+            if (slot >= 0 && (dayLogs & 1) != 0) {
+                openIntervals[slot]++;
+                openDayBits[slot * words + (day >>> 6)] |= 1L << (day & 63);
+            }
+            dayLogs = 0;
+            pendingRow = -1;
+        }
+
+        private void openSlot(long employeeId) {
+            if (size == employeeIds.length) {
+                int capacity = size * 2;
+                employeeIds = Arrays.copyOf(employeeIds, capacity);
+                workedMinutes = Arrays.copyOf(workedMinutes, capacity);
+                pairs = Arrays.copyOf(pairs, capacity);
+                openIntervals = Arrays.copyOf(openIntervals, capacity);
+                workedDayBits = Arrays.copyOf(workedDayBits, capacity * words);
+                openDayBits = Arrays.copyOf(openDayBits, capacity * words);
+            }
+            // Logs are ordered by employee id, so the ids stay sorted
+            slot = size++;
+            employeeIds[slot] = employeeId;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package it.gls.dipendenti.config;
 
+import jakarta.servlet.DispatcherType;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.security.authentication.AuthenticationManager;
@@ -16,6 +17,10 @@ import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.web.SecurityFilterChain;
 import org.springframework.security.web.authentication.UsernamePasswordAuthenticationFilter;
+import org.springframework.security.web.servlet.util.matcher.PathPatternRequestMatcher;
+import org.springframework.security.web.util.matcher.AndRequestMatcher;
+import org.springframework.security.web.util.matcher.DispatcherTypeRequestMatcher;
+import org.springframework.security.web.util.matcher.OrRequestMatcher;
 
 @Configuration
 @EnableWebSecurity
@@ -63,8 +68,17 @@ public class SecurityConfig {
                 .exceptionHandling(exception ->
                         exception.authenticationEntryPoint(jwtAuthenticationEntryPoint))  // AGGIUNGI QUESTA RIGA
                 .authorizeHttpRequests(auth -> auth
+                        // The event stream and the export are authorized on the first dispatch,
+                        // the async one that completes them carries no authentication
+                        .requestMatchers(new AndRequestMatcher(
+                                new DispatcherTypeRequestMatcher(DispatcherType.ASYNC),
+                                new OrRequestMatcher(
+                                        PathPatternRequestMatcher.withDefaults().matcher("/api/access-logs/stream"),
+                                        PathPatternRequestMatcher.withDefaults().matcher("/api/access-logs/export")))).permitAll()
                         .requestMatchers("/api/auth/**").permitAll()
                         .requestMatchers("/api/access-logs/read").permitAll()
+                        // Backdated imports can rewrite stored logs, unlike /read which stamps the server time
+                        .requestMatchers("/api/access-logs/replay").hasAnyRole("ADMIN", "HR")
                         .requestMatchers("/api/users/**").hasRole("ADMIN")
                         .requestMatchers("/api/roles/**").hasRole("ADMIN")
                         .anyRequest().authenticated()
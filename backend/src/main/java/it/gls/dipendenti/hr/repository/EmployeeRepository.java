@@ -9,7 +9,10 @@ import org.springframework.stereotype.Repository;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.time.LocalDate;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 @Repository
@@ -77,6 +80,33 @@ public class EmployeeRepository {
         return jdbcTemplate.query(sql, rowMapper, id).stream().findFirst();
     }
 
+    /**
+     * Returns the employees with the given ids, deleted ones included
+     * @param ids ids of the searched employees
+     * @return list of employees found
+     */
+    public List<Employee> findByIds(Collection<Long> ids) {
+        if (ids.isEmpty())
+            return List.of();
+        String sql = "SELECT * FROM employees WHERE id = ANY(?)";
+        return jdbcTemplate.query(sql,
+                ps -> ps.setArray(1, ps.getConnection().createArrayOf("bigint", ids.toArray())),
+                rowMapper);
+    }
+
+    /**
+     * Returns the company of every employee that is not deleted
+     * @return map employee id -> company id
+     */
+    public Map<Long, Long> findAllCompanyIds() {
+        String sql = "SELECT id, company_id FROM employees WHERE deleted = false";
+        Map<Long, Long> companies = new HashMap<>();
+        jdbcTemplate.query(sql, rs -> {
+            companies.put(rs.getLong("id"), rs.getLong("company_id"));
+        });
+        return companies;
+    }
+
     /**
      * Getting all employees that are not deleted
      * @return list of employees not deleted
@@ -86,6 +116,15 @@ public class EmployeeRepository {
         return jdbcTemplate.query(sql, rowMapper, companyId);
     }
 
+    /**
+     * Getting all employees of a company, deleted ones included
+     * @return list of employees ordered by name
+     */
+    public List<Employee> findAllIncludingDeleted(Long companyId) {
+        String sql = "SELECT * FROM employees WHERE company_id = ? ORDER BY name";
+        return jdbcTemplate.query(sql, rowMapper, companyId);
+    }
+
     /**
      * Getting all employees that are not deleted with pagination
      * @param page page number (0-based)
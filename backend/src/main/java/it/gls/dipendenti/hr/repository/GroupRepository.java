@@ -8,7 +8,10 @@ import org.springframework.stereotype.Repository;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 @Repository
@@ -132,6 +135,20 @@ public class GroupRepository {
         return jdbcTemplate.query(sql, (rs, rowNum) -> rs.getLong("group_id"), employeeId);
     }
 
+    /**
+     * Returns the groups of every employee in one query
+     * @return map employee id -> group ids
+     */
+    public Map<Long, List<Long>> findAllMemberships() {
+        String sql = "SELECT employee_id, group_id FROM group_members";
+        Map<Long, List<Long>> memberships = new HashMap<>();
+        jdbcTemplate.query(sql, rs -> {
+            memberships.computeIfAbsent(rs.getLong("employee_id"), id -> new ArrayList<>())
+                    .add(rs.getLong("group_id"));
+        });
+        return memberships;
+    }
+
     /**
      * Mapping database table attributes to a new Group
      */
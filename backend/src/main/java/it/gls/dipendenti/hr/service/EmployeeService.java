@@ -1,6 +1,8 @@
 package it.gls.dipendenti.hr.service;
 
 import it.gls.dipendenti.access.service.CardAssignmentService;
+import it.gls.dipendenti.access.service.CardResolutionCache;
+import it.gls.dipendenti.access.service.PresenceRegistry;
 import it.gls.dipendenti.auth.model.CustomUserDetails;
 import it.gls.dipendenti.auth.model.User;
 import it.gls.dipendenti.hr.exception.DuplicateEmployeeFound;
@@ -21,13 +23,19 @@ public class EmployeeService {
     private final EmployeeRepository employeeRepository;
     private final ContractService contractService;
     private final CardAssignmentService assignmentService;
+    private final PresenceRegistry presenceRegistry;
+    private final CardResolutionCache resolutionCache;
 
     public EmployeeService(EmployeeRepository employeeRepository,
                            ContractService contractService,
-                           CardAssignmentService assignmentService) {
+                           CardAssignmentService assignmentService,
+                           PresenceRegistry presenceRegistry,
+                           CardResolutionCache resolutionCache) {
         this.employeeRepository = employeeRepository;
         this.contractService = contractService;
         this.assignmentService = assignmentService;
+        this.presenceRegistry = presenceRegistry;
+        this.resolutionCache = resolutionCache;
     }
 
     /**
@@ -84,6 +92,8 @@ public class EmployeeService {
         assignmentService.getEmployeeAssignments(employeeId)
                 .forEach(ass -> assignmentService.revokeAssignment(ass.id()));
 
+        // A deleted employee still at work leaves the company and group counters
+        presenceRegistry.reloadEmployeeAfterCommit(employeeId);
     }
 
     /**
@@ -106,6 +116,10 @@ public class EmployeeService {
 
         if (!employeeRepository.update(employee))
             throw new EmployeeNotFoundException();
+
+        // Company may have changed, counters and cached card owners must follow
+        presenceRegistry.reloadEmployeeAfterCommit(employee.id());
+        resolutionCache.invalidateEmployeeAfterCommit(employee.id());
     }
 
     /**
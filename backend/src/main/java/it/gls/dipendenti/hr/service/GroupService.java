@@ -1,5 +1,6 @@
 package it.gls.dipendenti.hr.service;
 
+import it.gls.dipendenti.access.service.PresenceRegistry;
 import it.gls.dipendenti.hr.exception.DuplicateGroupException;
 import it.gls.dipendenti.hr.exception.EmployeeNotFoundException;
 import it.gls.dipendenti.hr.exception.GroupNotFoundException;
@@ -19,10 +20,14 @@ public class GroupService {
 
     private final GroupRepository groupRepository;
     private final EmployeeRepository employeeRepository;
+    private final PresenceRegistry presenceRegistry;
 
-    public GroupService(GroupRepository groupRepository, EmployeeRepository employeeRepository) {
+    public GroupService(GroupRepository groupRepository,
+                        EmployeeRepository employeeRepository,
+                        PresenceRegistry presenceRegistry) {
         this.groupRepository = groupRepository;
         this.employeeRepository = employeeRepository;
+        this.presenceRegistry = presenceRegistry;
     }
 
     /**
@@ -88,7 +93,10 @@ public class GroupService {
 
         // Removing all employees from Group
         groupRepository.findMemberIds(groupId)
-                .forEach(id -> groupRepository.removeMember(id, groupId));
+                .forEach(id -> {
+                    groupRepository.removeMember(id, groupId);
+                    presenceRegistry.reloadEmployeeAfterCommit(id);
+                });
 
     }
 
@@ -125,6 +133,7 @@ public class GroupService {
         }
 
         groupRepository.addMember(employeeId, groupId);
+        presenceRegistry.reloadEmployeeAfterCommit(employeeId);
     }
 
     /**
@@ -145,6 +154,7 @@ public class GroupService {
         if (!groupRepository.removeMember(employeeId, groupId)) {
             throw new IllegalArgumentException("Failed to remove employee from group");
         }
+        presenceRegistry.reloadEmployeeAfterCommit(employeeId);
     }
 
     /**
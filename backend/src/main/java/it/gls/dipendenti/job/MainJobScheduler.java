@@ -1,6 +1,8 @@
 package it.gls.dipendenti.job;
 
 import it.gls.dipendenti.absence.service.AbsenceService;
+import it.gls.dipendenti.access.service.AccessAnomalyService;
+import it.gls.dipendenti.access.service.AccessPartitionService;
 import it.gls.dipendenti.hr.model.Company;
 import it.gls.dipendenti.hr.model.EmployeeDeadline;
 import it.gls.dipendenti.hr.repository.CompanyRepository;
@@ -30,6 +32,8 @@ public class MainJobScheduler {
     private static final String JOB_MONTHLY_ACCRUAL = "monthly_accrual";
     private static final String JOB_SHIFT_GENERATION = "shift_generation";
     private static final String JOB_DEADLINE_NOTIFICATION = "deadline_notification";
+    private static final String JOB_ACCESS_PARTITIONS = "access_logs_partitions";
+    private static final String JOB_ACCESS_ANOMALIES = "access_anomalies";
 
     private final JobOrchestratorService orchestrator;
     private final AbsenceService absenceService;
@@ -37,19 +41,25 @@ public class MainJobScheduler {
     private final EmployeeDeadlineService deadlineService;
     private final EmailService emailService;
     private final CompanyRepository companyRepository;
+    private final AccessPartitionService partitionService;
+    private final AccessAnomalyService anomalyService;
 
     public MainJobScheduler(JobOrchestratorService orchestrator,
                             AbsenceService absenceService,
                             ShiftAssignmentService shiftAssignmentService,
                             EmployeeDeadlineService deadlineService,
                             EmailService emailService,
-                            CompanyRepository companyRepository) {
+                            CompanyRepository companyRepository,
+                            AccessPartitionService partitionService,
+                            AccessAnomalyService anomalyService) {
         this.orchestrator = orchestrator;
         this.absenceService = absenceService;
         this.shiftAssignmentService = shiftAssignmentService;
         this.deadlineService = deadlineService;
         this.emailService = emailService;
         this.companyRepository = companyRepository;
+        this.partitionService = partitionService;
+        this.anomalyService = anomalyService;
     }
 
     // ===================================================================
@@ -114,6 +124,24 @@ public class MainJobScheduler {
         runMonthlyAccrualJob();
     }
 
+    /**
+     * Monthly creation of access_logs partitions at 0:30 AM on the 1st of each month
+     */
+    @Scheduled(cron = "0 30 0 1 * *")
+    public void scheduledAccessPartitions() {
+        logger.info("Scheduled access_logs partition creation triggered");
+        runAccessPartitionsJob();
+    }
+
+    /**
+     * Daily anomaly index update at 0:15 AM, once the previous day is closed
+     */
+    @Scheduled(cron = "0 15 0 * * *")
+    public void scheduledAccessAnomalies() {
+        logger.info("Scheduled access anomalies indexing triggered");
+        runAccessAnomaliesJob();
+    }
+
     // ===================================================================
     // CORE JOB RECOVERY LOGIC
     // ===================================================================
@@ -138,6 +166,8 @@ public class MainJobScheduler {
                 case JOB_MONTHLY_ACCRUAL -> runMonthlyAccrualWithCatchup(job);
                 case JOB_SHIFT_GENERATION -> runShiftGenerationJob();
                 case JOB_DEADLINE_NOTIFICATION -> runDeadlineNotificationJob();
+                case JOB_ACCESS_PARTITIONS -> runAccessPartitionsJob();
+                case JOB_ACCESS_ANOMALIES -> runAccessAnomaliesJob();
                 default -> logger.warn("Unknown job type: {}", job.jobName());
             }
         }
@@ -339,6 +369,65 @@ public class MainJobScheduler {
         });
     }
 
+    // ===================================================================
+    // JOB 4: ACCESS LOGS PARTITIONS
+    // ===================================================================
+
+    private void runAccessPartitionsJob() {
+        orchestrator.executeJob(JOB_ACCESS_PARTITIONS, () -> {
+            try {
+                int created = partitionService.ensureFuturePartitions();
+                Instant nextRun = orchestrator.calculateNextMonthlyRun(Instant.now());
+                return JobExecutionResult.success(
+                        String.format("Created %d access_logs partition(s)", created),
+                        created,
+                        nextRun
+                );
+            } catch (Exception e) {
+                logger.error("Error in access_logs partition job", e);
+                return JobExecutionResult.failed(e.getMessage());
+            }
+        });
+    }
+
+    // ===================================================================
+    // JOB 5: ACCESS ANOMALIES INDEX
+    // ===================================================================
+
+    private void runAccessAnomaliesJob() {
+        orchestrator.executeJob(JOB_ACCESS_ANOMALIES, () -> {
+            try {
+                List<Company> companies = companyRepository.findAll();
+                int totalAnomalies = 0;
+                int failedCompanies = 0;
+
+                for (Company company : companies) {
+                    try {
+                        totalAnomalies += anomalyService.rebuildRecent(company.id());
+                    } catch (Exception e) {
+                        failedCompanies++;
+                        logger.error("Error indexing anomalies for company: {} (ID: {})",
+                                company.name(), company.id(), e);
+                    }
+                }
+
+                Instant nextRun = orchestrator.calculateNextDailyRun(Instant.now());
+                String message = String.format(
+                        "Indexed %d anomalies. Companies processed: %d successful, %d failed out of %d total",
+                        totalAnomalies, companies.size() - failedCompanies, failedCompanies, companies.size()
+                );
+
+                if (failedCompanies > 0 && failedCompanies == companies.size()) {
+                    return JobExecutionResult.failed(message);
+                }
+                return JobExecutionResult.success(message, totalAnomalies, nextRun);
+            } catch (Exception e) {
+                logger.error("Critical error in access anomalies job", e);
+                return JobExecutionResult.failed("Critical error: " + e.getMessage());
+            }
+        });
+    }
+
     // ===================================================================
     // MANUAL TRIGGER METHODS (for testing/admin)
     // ===================================================================
@@ -357,4 +446,14 @@ public class MainJobScheduler {
         logger.info("Manual trigger: Deadline Notifications");
         runDeadlineNotificationJob();
     }
+
+    public void manualTriggerAccessPartitions() {
+        logger.info("Manual trigger: Access Logs Partitions");
+        runAccessPartitionsJob();
+    }
+
+    public void manualTriggerAccessAnomalies() {
+        logger.info("Manual trigger: Access Anomalies");
+        runAccessAnomaliesJob();
+    }
 }
\ No newline at end of file
@@ -118,6 +118,46 @@ public class JobManagementController {
         }
     }
 
+    /**
+     * Manually trigger access_logs partition creation job
+     * POST /api/jobs/access-partitions/trigger
+     */
+    @PostMapping("/access-partitions/trigger")
+    public ResponseEntity<Map<String, String>> triggerAccessPartitions() {
+        Map<String, String> response = new HashMap<>();
+
+        try {
+            scheduler.manualTriggerAccessPartitions();
+            response.put("status", "success");
+            response.put("message", "Access logs partition job triggered successfully");
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            response.put("status", "error");
+            response.put("message", "Error triggering job: " + e.getMessage());
+            return ResponseEntity.internalServerError().body(response);
+        }
+    }
+
+    /**
+     * Manually trigger access anomalies indexing job
+     * POST /api/jobs/access-anomalies/trigger
+     */
+    @PostMapping("/access-anomalies/trigger")
+    public ResponseEntity<Map<String, String>> triggerAccessAnomalies() {
+        Map<String, String> response = new HashMap<>();
+
+        try {
+            scheduler.manualTriggerAccessAnomalies();
+            response.put("status", "success");
+            response.put("message", "Access anomalies job triggered successfully");
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            response.put("status", "error");
+            response.put("message", "Error triggering job: " + e.getMessage());
+            return ResponseEntity.internalServerError().body(response);
+        }
+    }
+
     /**
      * Enable a disabled job
      * PUT /api/jobs/{jobName}/enable
@@ -1,16 +1,31 @@
 package it.gls.dipendenti.report.controller;
 
+import it.gls.dipendenti.report.exception.ReportJobNotFoundException;
+import it.gls.dipendenti.report.exception.ReportJobRejectedException;
+import it.gls.dipendenti.report.exception.ReportNotReadyException;
+import it.gls.dipendenti.report.model.ReportJobStatus;
 import it.gls.dipendenti.report.service.MonthlyReportService;
+import it.gls.dipendenti.report.service.ReportCache;
+import it.gls.dipendenti.report.service.ReportJobService;
 import it.gls.dipendenti.util.ErrorResponse;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.ContentDisposition;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
 import java.time.YearMonth;
 
 /**
@@ -22,61 +37,68 @@ public class ReportController {
 
     private static final Logger logger = LoggerFactory.getLogger(ReportController.class);
 
+    // Attributi con cui Tomcat invia un file con sendfile, senza passare i dati dalla JVM
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
     private final MonthlyReportService reportService;
+    private final ReportJobService jobService;
+    private final ReportCache reportCache;
 
-    public ReportController(MonthlyReportService reportService) {
+    public ReportController(MonthlyReportService reportService, ReportJobService jobService, ReportCache reportCache) {
         this.reportService = reportService;
+        this.jobService = jobService;
+        this.reportCache = reportCache;
     }
 
     /**
      * Genera e scarica il report mensile in formato Excel
      * GET /api/reports/monthly/2025/01
+     * Se i dati del mese non sono cambiati dall'ultima richiesta il file arriva dalla cache,
+     * senza rigenerarlo; a cache disabilitata è scritto direttamente sulla risposta.
      *
      * @param year Anno del report (es. 2025)
      * @param month Mese del report (1-12)
-     * @return File Excel con il report
+     * @param response Risposta su cui scrivere il file Excel
      */
     @GetMapping("/monthly/{year}/{month}")
-    public ResponseEntity<byte[]> downloadMonthlyReport(
+    public void downloadMonthlyReport(
             @PathVariable int year,
-            @PathVariable int month) {
+            @PathVariable int month,
+            HttpServletRequest request,
+            HttpServletResponse response) {
 
         try {
             logger.info("Richiesta generazione report per {}/{}", year, month);
 
-            // Validazione input
-            if (year < 2000 || year > 2100) {
-                throw new IllegalArgumentException("Anno non valido: " + year);
-            }
-            if (month < 1 || month > 12) {
-                throw new IllegalArgumentException("Mese non valido: " + month);
-            }
-
-            YearMonth yearMonth = YearMonth.of(year, month);
+            YearMonth yearMonth = toYearMonth(year, month);
 
-            // Genera il report
-            byte[] excelData = reportService.generateMonthlyReport(yearMonth);
+            if (reportCache.isEnabled()) {
+                // La cache può eliminare il file durante l'invio: niente sendfile
+                sendFile(reportCache.openMonthlyReport(yearMonth), null, MonthlyReportService.fileName(yearMonth),
+                        request, response);
+                return;
+            }
 
-            // Prepara gli headers per il download
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
-            headers.setContentDispositionFormData(
-                    "attachment",
-                    String.format("report_dipendenti_%d_%02d.xlsx", year, month)
-            );
-            headers.setContentLength(excelData.length);
+            // Headers per il download: la lunghezza non è nota prima della fine, la risposta va a blocchi
+            setAttachmentHeaders(response, MonthlyReportService.fileName(yearMonth));
 
-            logger.info("Report generato con successo ({} bytes)", excelData.length);
+            // Genera il report sullo stream della risposta
+            reportService.generateMonthlyReport(yearMonth, response.getOutputStream());
 
-            return ResponseEntity.ok()
-                    .headers(headers)
-                    .body(excelData);
+            logger.info("Report generato con successo");
 
         } catch (IllegalArgumentException e) {
             logger.error("Parametri non validi: {}", e.getMessage());
             throw e;
         } catch (Exception e) {
             logger.error("Errore durante la generazione del report", e);
+            // Se non è ancora partito nulla, toglie gli headers del file per rispondere con l'errore
+            if (!response.isCommitted()) {
+                response.reset();
+            }
             throw new RuntimeException("Impossibile generare il report", e);
         }
     }
@@ -86,13 +108,118 @@ public class ReportController {
      * GET /api/reports/monthly/current
      */
     @GetMapping("/monthly/current")
-    public ResponseEntity<byte[]> downloadCurrentMonthReport() {
+    public void downloadCurrentMonthReport(HttpServletRequest request, HttpServletResponse response) {
         YearMonth currentMonth = YearMonth.now();
-        return downloadMonthlyReport(currentMonth.getYear(), currentMonth.getMonthValue());
+        downloadMonthlyReport(currentMonth.getYear(), currentMonth.getMonthValue(), request, response);
+    }
+
+    // ============= REPORT IN BACKGROUND =============
+
+    /**
+     * Avvia la generazione del report mensile in background
+     * POST /api/reports/monthly/2025/01/jobs
+     *
+     * @return Stato del job, con l'id per seguirne l'avanzamento e scaricarlo
+     */
+    @PostMapping("/monthly/{year}/{month}/jobs")
+    public ResponseEntity<ReportJobStatus> submitMonthlyReport(@PathVariable int year, @PathVariable int month) {
+        ReportJobStatus status = jobService.submit(toYearMonth(year, month));
+        return ResponseEntity.status(HttpStatus.ACCEPTED)
+                .location(URI.create("/api/reports/jobs/" + status.jobId()))
+                .body(status);
+    }
+
+    /**
+     * Stato e avanzamento di un report in background
+     * GET /api/reports/jobs/{jobId}
+     */
+    @GetMapping("/jobs/{jobId}")
+    public ResponseEntity<ReportJobStatus> getJobStatus(@PathVariable String jobId) {
+        return ResponseEntity.ok(jobService.getStatus(jobId));
+    }
+
+    /**
+     * Scarica il file di un report in background completato
+     * GET /api/reports/jobs/{jobId}/download
+     */
+    @GetMapping("/jobs/{jobId}/download")
+    public void downloadJobReport(@PathVariable String jobId,
+                                  HttpServletRequest request,
+                                  HttpServletResponse response) throws IOException {
+        ReportJobService.ReportFile report = jobService.openReportFile(jobId);
+        sendFile(report.channel(), report.cached() ? null : report.path(), report.fileName(), request, response);
+    }
+
+    // ============= UTILITY METHODS =============
+
+    /**
+     * Invia un file già aperto: con sendfile se il connettore Tomcat lo supporta e il file
+     * resta al suo posto dopo la risposta, altrimenti con FileChannel.transferTo dal canale
+     * @param sendfilePath file da far riaprire a Tomcat, null se può essere eliminato durante l'invio
+     */
+    private static void sendFile(FileChannel file, Path sendfilePath, String fileName,
+                                 HttpServletRequest request, HttpServletResponse response) throws IOException {
+        try (FileChannel channel = file) {
+            long size = channel.size();
+            setAttachmentHeaders(response, fileName);
+            response.setContentLengthLong(size);
+
+            if (sendfilePath != null && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+                request.setAttribute(SENDFILE_FILENAME, sendfilePath.toRealPath().toString());
+                request.setAttribute(SENDFILE_START, 0L);
+                request.setAttribute(SENDFILE_END, size);
+                return;
+            }
+
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = 0;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, out);
+            }
+        }
+    }
+
+    private static YearMonth toYearMonth(int year, int month) {
+        // Validazione input
+        if (year < 2000 || year > 2100) {
+            throw new IllegalArgumentException("Anno non valido: " + year);
+        }
+        if (month < 1 || month > 12) {
+            throw new IllegalArgumentException("Mese non valido: " + month);
+        }
+        return YearMonth.of(year, month);
+    }
+
+    private static void setAttachmentHeaders(HttpServletResponse response, String fileName) {
+        response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+                .filename(fileName)
+                .build()
+                .toString());
     }
 
     // ============= EXCEPTION HANDLERS =============
 
+    @ExceptionHandler(ReportJobNotFoundException.class)
+    public ResponseEntity<ErrorResponse> handleJobNotFound(ReportJobNotFoundException ex) {
+        ErrorResponse error = new ErrorResponse(ex.getMessage(), HttpStatus.NOT_FOUND.value());
+        return ResponseEntity.status(HttpStatus.NOT_FOUND).body(error);
+    }
+
+    @ExceptionHandler(ReportNotReadyException.class)
+    public ResponseEntity<ErrorResponse> handleNotReady(ReportNotReadyException ex) {
+        ErrorResponse error = new ErrorResponse(ex.getMessage(), HttpStatus.CONFLICT.value());
+        return ResponseEntity.status(HttpStatus.CONFLICT).body(error);
+    }
+
+    @ExceptionHandler(ReportJobRejectedException.class)
+    public ResponseEntity<ErrorResponse> handleJobRejected(ReportJobRejectedException ex) {
+        ErrorResponse error = new ErrorResponse(ex.getMessage(), HttpStatus.SERVICE_UNAVAILABLE.value());
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, "30")
+                .body(error);
+    }
+
     @ExceptionHandler(IllegalArgumentException.class)
     public ResponseEntity<ErrorResponse> handleIllegalArgument(IllegalArgumentException ex) {
         ErrorResponse error = new ErrorResponse(ex.getMessage(), HttpStatus.BAD_REQUEST.value());
@@ -0,0 +1,7 @@
+package it.gls.dipendenti.report.exception;
+
+public class ReportJobNotFoundException extends RuntimeException {
+    public ReportJobNotFoundException(String jobId) {
+        super("Report %s non trovato o scaduto".formatted(jobId));
+    }
+}
@@ -0,0 +1,7 @@
+package it.gls.dipendenti.report.exception;
+
+public class ReportJobRejectedException extends RuntimeException {
+    public ReportJobRejectedException() {
+        super("Troppi report in coda, riprovare più tardi");
+    }
+}
@@ -0,0 +1,9 @@
+package it.gls.dipendenti.report.exception;
+
+import it.gls.dipendenti.report.model.ReportJobStatus;
+
+public class ReportNotReadyException extends RuntimeException {
+    public ReportNotReadyException(String jobId, ReportJobStatus.State state) {
+        super("Il report %s non è disponibile, stato %s".formatted(jobId, state));
+    }
+}
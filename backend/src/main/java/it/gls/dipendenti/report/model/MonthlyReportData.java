@@ -0,0 +1,62 @@
+package it.gls.dipendenti.report.model;
+
+import it.gls.dipendenti.absence.model.Absence;
+import it.gls.dipendenti.absence.model.EmployeeLeaveBalance;
+import it.gls.dipendenti.access.model.WorkedTimeTable;
+import it.gls.dipendenti.hr.model.Employee;
+import it.gls.dipendenti.shift.model.ShiftAssignment;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Dati di un report mensile caricati tutti insieme e indicizzati per dipendente,
+ * così i fogli non fanno query riga per riga
+ *
+ * @param companyId azienda del report
+ * @param employees dipendenti attivi, ordinati per nome
+ * @param employeesById tutti i dipendenti dell'azienda, anche eliminati, per i nomi nelle assenze
+ * @param workedTime ore, giorni lavorati e giornate aperte dalle timbrature
+ * @param shiftsByEmployee turni del periodo per dipendente, in ordine di data
+ * @param absences assenze del periodo in qualsiasi stato, dalla più recente
+ * @param approvedAbsencesByEmployee assenze approvate del periodo per dipendente, dalla più recente
+ * @param balancesByEmployee saldi ferie/ROL per dipendente
+ * @param holidays giorni festivi del periodo
+ */
+public record MonthlyReportData(
+        Long companyId,
+        LocalDate startDate,
+        LocalDate endDate,
+        List<Employee> employees,
+        Map<Long, Employee> employeesById,
+        WorkedTimeTable workedTime,
+        Map<Long, List<ShiftAssignment>> shiftsByEmployee,
+        List<Absence> absences,
+        Map<Long, List<Absence>> approvedAbsencesByEmployee,
+        Map<Long, EmployeeLeaveBalance> balancesByEmployee,
+        Set<LocalDate> holidays
+) {
+
+    public Optional<Employee> employee(Long employeeId) {
+        return Optional.ofNullable(employeesById.get(employeeId));
+    }
+
+    public List<ShiftAssignment> shifts(Long employeeId) {
+        return shiftsByEmployee.getOrDefault(employeeId, List.of());
+    }
+
+    public List<Absence> approvedAbsences(Long employeeId) {
+        return approvedAbsencesByEmployee.getOrDefault(employeeId, List.of());
+    }
+
+    public Optional<EmployeeLeaveBalance> balance(Long employeeId) {
+        return Optional.ofNullable(balancesByEmployee.get(employeeId));
+    }
+
+    public boolean isHoliday(LocalDate date) {
+        return holidays.contains(date);
+    }
+}
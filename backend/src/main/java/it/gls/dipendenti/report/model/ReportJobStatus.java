@@ -0,0 +1,30 @@
+package it.gls.dipendenti.report.model;
+
+import java.time.Instant;
+
+/**
+ * Stato di un report generato in background
+ *
+ * @param processedEmployees dipendenti già calcolati
+ * @param totalEmployees dipendenti del report, 0 finché i dati non sono caricati
+ * @param expiresAt quando il file viene eliminato, solo per i report completati
+ */
+public record ReportJobStatus(
+        String jobId,
+        String period,
+        State state,
+        int processedEmployees,
+        int totalEmployees,
+        Instant submittedAt,
+        Instant completedAt,
+        Instant expiresAt,
+        String fileName,
+        String errorMessage
+) {
+    public enum State {
+        QUEUED,
+        RUNNING,
+        COMPLETED,
+        FAILED
+    }
+}
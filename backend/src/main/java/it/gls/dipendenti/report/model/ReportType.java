@@ -0,0 +1,8 @@
+package it.gls.dipendenti.report.model;
+
+/**
+ * Tipi di report generati, parte della chiave della cache
+ */
+public enum ReportType {
+    MONTHLY
+}
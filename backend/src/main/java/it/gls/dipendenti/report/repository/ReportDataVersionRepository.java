@@ -0,0 +1,46 @@
+package it.gls.dipendenti.report.repository;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.time.YearMonth;
+
+@Repository
+public class ReportDataVersionRepository {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public ReportDataVersionRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Versione dei dati del report di un mese: somma dei contatori del mese, dell'azienda
+     * e dei festivi, incrementati dai trigger, più le modifiche delle timbrature non ancora compattate.
+     * Cresce ad ogni scrittura che cambia il report
+     * @param companyId azienda
+     * @param yearMonth mese del report
+     * @return versione, 0 se nessun dato è mai cambiato
+     */
+    public long getVersion(Long companyId, YearMonth yearMonth) {
+        String sql = """
+                SELECT (SELECT COALESCE(SUM(version), 0) FROM report_data_version
+                        WHERE (company_id = ? AND month IN (?, DATE '1970-01-01'))
+                        OR (company_id = 0 AND month = DATE '1970-01-01'))
+                     + (SELECT COUNT(*) FROM access_logs_report_changes WHERE company_id = ? AND month = ?)
+                """;
+        Long version = jdbcTemplate.queryForObject(sql, Long.class,
+                companyId, yearMonth.atDay(1), companyId, yearMonth.atDay(1));
+        return version != null ? version : 0;
+    }
+
+    /**
+     * Somma in report_data_version le modifiche delle timbrature registrate dai trigger,
+     * senza cambiare la versione di nessun mese
+     * @return righe compattate
+     */
+    public long compactAccessLogChanges() {
+        Long removed = jdbcTemplate.queryForObject("SELECT compact_access_logs_report_changes()", Long.class);
+        return removed != null ? removed : 0;
+    }
+}
@@ -0,0 +1,133 @@
+package it.gls.dipendenti.report.service;
+
+import it.gls.dipendenti.absence.model.Absence;
+import it.gls.dipendenti.absence.model.AbsenceStatus;
+import it.gls.dipendenti.absence.model.EmployeeLeaveBalance;
+import it.gls.dipendenti.absence.model.Holiday;
+import it.gls.dipendenti.absence.repository.AbsenceRepository;
+import it.gls.dipendenti.absence.repository.EmployeeLeaveBalanceRepository;
+import it.gls.dipendenti.absence.repository.HolidayRepository;
+import it.gls.dipendenti.access.model.WorkedTimeTable;
+import it.gls.dipendenti.access.service.AccessService;
+import it.gls.dipendenti.hr.model.Employee;
+import it.gls.dipendenti.hr.repository.EmployeeRepository;
+import it.gls.dipendenti.report.model.MonthlyReportData;
+import it.gls.dipendenti.shift.model.ShiftAssignment;
+import it.gls.dipendenti.shift.repository.ShiftAssignmentRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Isolation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDate;
+import java.time.MonthDay;
+import java.util.*;
+
+/**
+ * Carica i dati del report mensile di un'azienda con un numero fisso di query,
+ * indipendente dal numero di dipendenti: dipendenti, timbrature, turni, assenze, saldi e festivi
+ */
+@Component
+public class MonthlyReportDataLoader {
+
+    private static final Logger logger = LoggerFactory.getLogger(MonthlyReportDataLoader.class);
+
+    private final EmployeeRepository employeeRepository;
+    private final AccessService accessService;
+    private final ShiftAssignmentRepository shiftAssignmentRepository;
+    private final AbsenceRepository absenceRepository;
+    private final EmployeeLeaveBalanceRepository balanceRepository;
+    private final HolidayRepository holidayRepository;
+
+    public MonthlyReportDataLoader(EmployeeRepository employeeRepository,
+                                   AccessService accessService,
+                                   ShiftAssignmentRepository shiftAssignmentRepository,
+                                   AbsenceRepository absenceRepository,
+                                   EmployeeLeaveBalanceRepository balanceRepository,
+                                   HolidayRepository holidayRepository) {
+        this.employeeRepository = employeeRepository;
+        this.accessService = accessService;
+        this.shiftAssignmentRepository = shiftAssignmentRepository;
+        this.absenceRepository = absenceRepository;
+        this.balanceRepository = balanceRepository;
+        this.holidayRepository = holidayRepository;
+    }
+
+    /**
+     * Legge tutti i dati del periodo in un'unica transazione, così i fogli vedono la stessa fotografia
+     * @param companyId azienda
+     * @param startDate primo giorno
+     * @param endDate ultimo giorno
+     */
+    @Transactional(readOnly = true, isolation = Isolation.REPEATABLE_READ)
+    public MonthlyReportData load(Long companyId, LocalDate startDate, LocalDate endDate) {
+        if (companyId == null)
+            throw new IllegalArgumentException("Company id is null");
+
+        // 1. Dipendenti, anche eliminati per i nomi delle vecchie assenze
+        List<Employee> allEmployees = employeeRepository.findAllIncludingDeleted(companyId);
+        Map<Long, Employee> employeesById = new HashMap<>(allEmployees.size() * 2);
+        List<Employee> employees = new ArrayList<>(allEmployees.size());
+        for (Employee employee : allEmployees) {
+            employeesById.put(employee.id(), employee);
+            if (!employee.deleted())
+                employees.add(employee);
+        }
+
+        // 2. Timbrature, lette una volta in colonne
+        WorkedTimeTable workedTime = accessService.getCompanyWorkedTime(companyId, startDate, endDate);
+
+        // 3. Turni
+        Map<Long, List<ShiftAssignment>> shiftsByEmployee = new HashMap<>();
+        for (ShiftAssignment shift : shiftAssignmentRepository.findByDateRange(startDate, endDate, companyId))
+            shiftsByEmployee.computeIfAbsent(shift.employeeId(), k -> new ArrayList<>()).add(shift);
+
+        // 4. Assenze
+        List<Absence> absences = absenceRepository.findByDateRange(startDate, endDate, companyId);
+        Map<Long, List<Absence>> approvedAbsencesByEmployee = new HashMap<>();
+        for (Absence absence : absences) {
+            if (absence.status() == AbsenceStatus.APPROVED)
+                approvedAbsencesByEmployee.computeIfAbsent(absence.employeeId(), k -> new ArrayList<>()).add(absence);
+        }
+
+        // 5. Saldi ferie/ROL
+        Map<Long, EmployeeLeaveBalance> balancesByEmployee = new HashMap<>();
+        for (EmployeeLeaveBalance balance : balanceRepository.findByCompanyId(companyId))
+            balancesByEmployee.put(balance.employeeId(), balance);
+
+        // 6. Festivi
+        Set<LocalDate> holidays = holidayDates(holidayRepository.findByDateRange(startDate, endDate), startDate, endDate);
+
+        logger.info("Dati report caricati: {} dipendenti, {} turni, {} assenze, {} festivi",
+                employees.size(), shiftsByEmployee.values().stream().mapToInt(List::size).sum(),
+                absences.size(), holidays.size());
+
+        return new MonthlyReportData(companyId, startDate, endDate, employees, employeesById, workedTime,
+                shiftsByEmployee, absences, approvedAbsencesByEmployee, balancesByEmployee, holidays);
+    }
+
+    /**
+     * Date dei festivi nel periodo: i ricorrenti valgono per ogni anno del periodo
+     */
+    private static Set<LocalDate> holidayDates(List<Holiday> holidays, LocalDate startDate, LocalDate endDate) {
+        Set<LocalDate> dates = new HashSet<>();
+        for (Holiday holiday : holidays) {
+            if (holiday.recurring()) {
+                MonthDay monthDay = MonthDay.of(holiday.month(), holiday.day());
+                for (int year = startDate.getYear(); year <= endDate.getYear(); year++) {
+                    if (monthDay.isValidYear(year))
+                        addIfInRange(dates, monthDay.atYear(year), startDate, endDate);
+                }
+            } else {
+                addIfInRange(dates, LocalDate.of(holiday.year(), holiday.month(), holiday.day()), startDate, endDate);
+            }
+        }
+        return dates;
+    }
+
+    private static void addIfInRange(Set<LocalDate> dates, LocalDate date, LocalDate startDate, LocalDate endDate) {
+        if (!date.isBefore(startDate) && !date.isAfter(endDate))
+            dates.add(date);
+    }
+}
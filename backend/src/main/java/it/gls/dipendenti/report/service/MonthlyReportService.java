@@ -1,39 +1,37 @@
 package it.gls.dipendenti.report.service;
 
 import it.gls.dipendenti.absence.model.Absence;
-import it.gls.dipendenti.absence.model.AbsenceStatus;
 import it.gls.dipendenti.absence.model.AbsenceType;
 import it.gls.dipendenti.absence.model.EmployeeLeaveBalance;
-import it.gls.dipendenti.absence.repository.AbsenceRepository;
-import it.gls.dipendenti.absence.repository.EmployeeLeaveBalanceRepository;
-import it.gls.dipendenti.absence.repository.HolidayRepository;
-import it.gls.dipendenti.access.model.AccessLog;
-import it.gls.dipendenti.access.repository.AccessRepository;
-import it.gls.dipendenti.access.service.AccessService;
+import it.gls.dipendenti.access.model.WorkedTimeTable;
 import it.gls.dipendenti.auth.model.CustomUserDetails;
-import it.gls.dipendenti.hr.model.Contract;
 import it.gls.dipendenti.util.ExcelStyles;
 import it.gls.dipendenti.hr.model.Employee;
-import it.gls.dipendenti.hr.repository.ContractRepository;
-import it.gls.dipendenti.hr.repository.EmployeeRepository;
+import it.gls.dipendenti.report.model.MonthlyReportData;
 import it.gls.dipendenti.shift.model.ShiftAssignment;
-import it.gls.dipendenti.shift.repository.ShiftAssignmentRepository;
 import it.gls.dipendenti.util.TimeZoneUtils;
 import org.apache.poi.ss.usermodel.*;
 import org.apache.poi.ss.util.CellRangeAddress;
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.time.LocalDate;
 import java.time.YearMonth;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 @Service
@@ -41,80 +39,111 @@ public class MonthlyReportService {
 
     private static final Logger logger = LoggerFactory.getLogger(MonthlyReportService.class);
     private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("dd/MM/yyyy");
+    // Righe tenute in memoria per foglio prima di essere scaricate su disco
+    private static final int ROW_WINDOW = 100;
+
+    private final MonthlyReportDataLoader dataLoader;
+    // Calcolo delle metriche per dipendente, in parallelo su thread virtuali
+    private final ExecutorService metricsExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private final int parallelism;
+
+    public MonthlyReportService(MonthlyReportDataLoader dataLoader,
+                                @Value("${report.metrics.parallelism:8}") int parallelism) {
+        this.dataLoader = dataLoader;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        metricsExecutor.shutdown();
+    }
+
+    /**
+     * Nome del file Excel del report di un mese
+     */
+    public static String fileName(YearMonth yearMonth) {
+        return String.format("report_dipendenti_%d_%02d.xlsx", yearMonth.getYear(), yearMonth.getMonthValue());
+    }
 
-    private final EmployeeRepository employeeRepository;
-    private final AccessRepository accessRepository;
-    private final AccessService accessService;
-    private final AbsenceRepository absenceRepository;
-    private final EmployeeLeaveBalanceRepository balanceRepository;
-    private final ShiftAssignmentRepository shiftAssignmentRepository;
-    private final ContractRepository contractRepository;
-    private final HolidayRepository holidayRepository;
-
-    public MonthlyReportService(
-            EmployeeRepository employeeRepository,
-            AccessRepository accessRepository,
-            AccessService accessService,
-            AbsenceRepository absenceRepository,
-            EmployeeLeaveBalanceRepository balanceRepository,
-            ShiftAssignmentRepository shiftAssignmentRepository,
-            ContractRepository contractRepository,
-            HolidayRepository holidayRepository) {
-        this.employeeRepository = employeeRepository;
-        this.accessRepository = accessRepository;
-        this.accessService = accessService;
-        this.absenceRepository = absenceRepository;
-        this.balanceRepository = balanceRepository;
-        this.shiftAssignmentRepository = shiftAssignmentRepository;
-        this.contractRepository = contractRepository;
-        this.holidayRepository = holidayRepository;
+    /**
+     * Genera il report mensile in formato Excel e lo scrive sullo stream indicato.
+     * Il workbook è in streaming: in memoria restano solo le ultime {@value #ROW_WINDOW} righe
+     * di ogni foglio, le altre vanno su file temporanei compressi eliminati alla fine.
+     * Lo stream non viene chiuso.
+     */
+    public void generateMonthlyReport(YearMonth yearMonth, OutputStream outputStream) {
+        generateMonthlyReport(getCurrentUserCompanyId(), yearMonth, outputStream);
+    }
+
+    /**
+     * Come {@link #generateMonthlyReport(YearMonth, OutputStream)} per un'azienda esplicita:
+     * non legge il contesto di sicurezza, si può chiamare anche fuori dal thread della richiesta
+     */
+    public void generateMonthlyReport(Long companyId, YearMonth yearMonth, OutputStream outputStream) {
+        generateMonthlyReport(companyId, yearMonth, outputStream, ProgressListener.NONE);
     }
 
     /**
-     * Genera il report mensile in formato Excel
+     * Come {@link #generateMonthlyReport(Long, YearMonth, OutputStream)} notificando l'avanzamento
+     * per dipendente, usato dai report generati in background
      */
-    public byte[] generateMonthlyReport(YearMonth yearMonth) {
+    public void generateMonthlyReport(Long companyId, YearMonth yearMonth, OutputStream outputStream,
+                                      ProgressListener progress) {
         LocalDate startDate = yearMonth.atDay(1);
         LocalDate endDate = yearMonth.atEndOfMonth();
 
         logger.info("Generazione report per il periodo: {} - {}", startDate, endDate);
 
-        Workbook workbook = new XSSFWorkbook();
+        SXSSFWorkbook workbook = new SXSSFWorkbook(ROW_WINDOW);
+        workbook.setCompressTempFiles(true);
         ExcelStyles styles = new ExcelStyles();
 
         try {
+            // Tutti i dati del periodo in poche query, indicizzati per dipendente
+            MonthlyReportData data = dataLoader.load(companyId, startDate, endDate);
+
+            // Metriche di tutti i dipendenti calcolate in parallelo, poi scritte in ordine da questo thread
+            progress.started(data.employees().size());
+            List<EmployeeMetrics> metrics = computeMetrics(data, progress);
+
             // Sheet 1: Riepilogo Generale
-            createSummarySheet(workbook, styles, startDate, endDate);
+            createSummarySheet(workbook, styles, data, metrics);
 
             // Sheet 2: Dettaglio Giornaliero
-            // createDailyDetailSheet(workbook, styles, startDate, endDate);
+            // createDailyDetailSheet(workbook, styles, data);
 
             // Sheet 3: Assenze
-            createAbsencesSheet(workbook, styles, startDate, endDate);
+            createAbsencesSheet(workbook, styles, data);
 
             // Sheet 4: Anomalie
-            createAnomaliesSheet(workbook, styles, startDate, endDate);
+            createAnomaliesSheet(workbook, styles, data);
 
             // Sheet 5: Saldi Ferie/ROL
-            createBalanceSheet(workbook, styles, startDate, endDate);
+            createBalanceSheet(workbook, styles, data);
 
-            // Converti in byte array
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            // Scrive direttamente sullo stream, senza copie intermedie in memoria
             workbook.write(outputStream);
-            workbook.close();
+            outputStream.flush();
 
             logger.info("Report generato con successo");
-            return outputStream.toByteArray();
 
         } catch (Exception e) {
             logger.error("Errore durante la generazione del report", e);
             throw new RuntimeException("Impossibile generare il report", e);
+        } finally {
+            // Elimina anche i file temporanei delle righe già scritte
+            try {
+                workbook.close();
+            } catch (IOException e) {
+                logger.warn("Impossibile chiudere il workbook del report", e);
+            }
         }
     }
 
     // ============= SHEET 1: RIEPILOGO GENERALE =============
 
-    private void createSummarySheet(Workbook workbook, ExcelStyles styles, LocalDate startDate, LocalDate endDate) {
+    private void createSummarySheet(Workbook workbook, ExcelStyles styles, MonthlyReportData data,
+                                    List<EmployeeMetrics> metrics) {
         Sheet sheet = workbook.createSheet("Riepilogo");
 
         // Larghezza colonne
@@ -124,7 +153,7 @@ public class MonthlyReportService {
         }
 
         // Header del report
-        createReportHeader(workbook, sheet, styles, startDate, endDate);
+        createReportHeader(workbook, sheet, styles, data.startDate(), data.endDate());
 
         // Header della tabella
         int currentRow = 2;
@@ -132,10 +161,13 @@ public class MonthlyReportService {
 
         // Dati dipendenti
         currentRow = 3;
-        List<Employee> employees = employeeRepository.findAll(getCurrentUserCompanyId());
+        List<Employee> employees = data.employees();
 
-        for (Employee employee : employees) {
-            createEmployeeSummaryRow(workbook, sheet, styles, currentRow++, employee, startDate, endDate);
+        // Un solo drawing per foglio, condiviso dai commenti di tutte le righe
+        Drawing<?> drawing = sheet.createDrawingPatriarch();
+
+        for (int i = 0; i < employees.size(); i++) {
+            createEmployeeSummaryRow(workbook, sheet, drawing, styles, currentRow++, employees.get(i), metrics.get(i));
         }
 
         logger.info("Sheet 'Riepilogo' creato con {} dipendenti", employees.size());
@@ -177,18 +209,13 @@ public class MonthlyReportService {
         }
     }
 
-    private void createEmployeeSummaryRow(Workbook workbook, Sheet sheet, ExcelStyles styles,
-                                          int rowIndex, Employee employee,
-                                          LocalDate startDate, LocalDate endDate) {
+    private void createEmployeeSummaryRow(Workbook workbook, Sheet sheet, Drawing<?> drawing, ExcelStyles styles,
+                                          int rowIndex, Employee employee, EmployeeMetrics metrics) {
         Row row = sheet.createRow(rowIndex);
         CreationHelper factory = workbook.getCreationHelper();
-        Drawing<?> drawing = sheet.createDrawingPatriarch();
 
         int col = 0;
 
-        // Calcola le metriche
-        EmployeeMetrics metrics = calculateEmployeeMetrics(employee.id(), startDate, endDate);
-
         // Column 0: Nome Dipendente
         Cell nameCell = row.createCell(col++);
         nameCell.setCellValue(employee.surname() + " " + employee.name());
@@ -199,10 +226,12 @@ public class MonthlyReportService {
         workDaysCell.setCellStyle(styles.getCenterStyle(workbook));
         workDaysCell.setCellValue(metrics.workedDays().size());
 
-        addTooltip(factory, drawing, workDaysCell, row,
-                "Giorni lavorati:\n" + metrics.workedDays().stream()
-                        .map(d -> d.format(DATE_FORMATTER))
-                        .collect(Collectors.joining("\n")));
+        // I commenti restano in memoria fino alla fine anche con SXSSF: solo dove c'è qualcosa da elencare
+        if (!metrics.workedDays().isEmpty())
+            addTooltip(factory, drawing, workDaysCell, row,
+                    "Giorni lavorati:\n" + metrics.workedDays().stream()
+                            .map(d -> d.format(DATE_FORMATTER))
+                            .collect(Collectors.joining("\n")));
 
         // Column 2: Ore Lavorate
         Cell workedHoursCell = row.createCell(col++);
@@ -232,36 +261,40 @@ public class MonthlyReportService {
         vacationCell.setCellStyle(styles.getDecimalStyle(workbook));
         vacationCell.setCellValue(metrics.vacationHours());
 
-        addTooltip(factory, drawing, vacationCell, row,
-                buildAbsenceTooltip("Ferie", metrics.vacationDetails()));
+        if (!metrics.vacationDetails().isEmpty())
+            addTooltip(factory, drawing, vacationCell, row,
+                    buildAbsenceTooltip("Ferie", metrics.vacationDetails()));
 
         // Column 7: Ore ROL (con tooltip)
         Cell rolCell = row.createCell(col++);
         rolCell.setCellStyle(styles.getDecimalStyle(workbook));
         rolCell.setCellValue(metrics.rolHours());
 
-        addTooltip(factory, drawing, rolCell, row,
-                buildAbsenceTooltip("ROL", metrics.rolDetails()));
+        if (!metrics.rolDetails().isEmpty())
+            addTooltip(factory, drawing, rolCell, row,
+                    buildAbsenceTooltip("ROL", metrics.rolDetails()));
 
         // Column 8: Giorni Malattia (con tooltip)
         Cell sickCell = row.createCell(col++);
         sickCell.setCellStyle(styles.getCenterStyle(workbook));
         sickCell.setCellValue(metrics.sickDays().size());
 
-        addTooltip(factory, drawing, sickCell, row,
-                "Giorni di malattia:\n" + metrics.sickDays().stream()
-                        .map(d -> d.format(DATE_FORMATTER))
-                        .collect(Collectors.joining("\n")));
+        if (!metrics.sickDays().isEmpty())
+            addTooltip(factory, drawing, sickCell, row,
+                    "Giorni di malattia:\n" + metrics.sickDays().stream()
+                            .map(d -> d.format(DATE_FORMATTER))
+                            .collect(Collectors.joining("\n")));
 
         // Column 9: Giorni Permesso (con tooltip)
         Cell permitCell = row.createCell(col++);
         permitCell.setCellStyle(styles.getCenterStyle(workbook));
         permitCell.setCellValue(metrics.permitDays().size());
 
-        addTooltip(factory, drawing, permitCell, row,
-                "Giorni di permesso:\n" + metrics.permitDays().stream()
-                        .map(d -> d.format(DATE_FORMATTER))
-                        .collect(Collectors.joining("\n")));
+        if (!metrics.permitDays().isEmpty())
+            addTooltip(factory, drawing, permitCell, row,
+                    "Giorni di permesso:\n" + metrics.permitDays().stream()
+                            .map(d -> d.format(DATE_FORMATTER))
+                            .collect(Collectors.joining("\n")));
 
         // Column 10: Ferie Residue
         Cell remainingVacationCell = row.createCell(col++);
@@ -276,8 +309,7 @@ public class MonthlyReportService {
 
     // ============= SHEET 2: DETTAGLIO GIORNALIERO =============
 
-    private void createDailyDetailSheet(Workbook workbook, ExcelStyles styles,
-                                        LocalDate startDate, LocalDate endDate) {
+    private void createDailyDetailSheet(Workbook workbook, ExcelStyles styles, MonthlyReportData data) {
         Sheet sheet = workbook.createSheet("Dettaglio Giornaliero");
 
         // Larghezza colonne
@@ -305,10 +337,10 @@ public class MonthlyReportService {
         }
 
         // Dati giornalieri
-        List<Employee> employees = employeeRepository.findAll(getCurrentUserCompanyId());
-        LocalDate currentDate = startDate;
+        List<Employee> employees = data.employees();
+        LocalDate currentDate = data.startDate();
 
-        while (!currentDate.isAfter(endDate)) {
+        while (!currentDate.isAfter(data.endDate())) {
             for (Employee employee : employees) {
                 createDailyDetailRow(sheet, styles, workbook, currentRow++,
                         employee, currentDate);
@@ -325,8 +357,7 @@ public class MonthlyReportService {
 
     // ============= SHEET 3: ASSENZE =============
 
-    private void createAbsencesSheet(Workbook workbook, ExcelStyles styles,
-                                     LocalDate startDate, LocalDate endDate) {
+    private void createAbsencesSheet(Workbook workbook, ExcelStyles styles, MonthlyReportData data) {
         Sheet sheet = workbook.createSheet("Assenze");
 
         // Larghezza colonne
@@ -350,13 +381,13 @@ public class MonthlyReportService {
         }
 
         // Dati assenze
-        List<Absence> absences = absenceRepository.findByDateRange(startDate, endDate, getCurrentUserCompanyId());
+        List<Absence> absences = data.absences();
 
         for (Absence absence : absences) {
             Row row = sheet.createRow(currentRow++);
             int col = 0;
 
-            Employee employee = employeeRepository.findById(absence.employeeId()).orElse(null);
+            Employee employee = data.employee(absence.employeeId()).orElse(null);
             String employeeName = employee != null ?
                     employee.surname() + " " + employee.name() : "SCONOSCIUTO";
 
@@ -374,8 +405,7 @@ public class MonthlyReportService {
 
     // ============= SHEET 4: ANOMALIE =============
 
-    private void createAnomaliesSheet(Workbook workbook, ExcelStyles styles,
-                                      LocalDate startDate, LocalDate endDate) {
+    private void createAnomaliesSheet(Workbook workbook, ExcelStyles styles, MonthlyReportData data) {
         Sheet sheet = workbook.createSheet("Anomalie");
 
         // Larghezza colonne
@@ -396,28 +426,17 @@ public class MonthlyReportService {
         }
 
         // Trova anomalie per tutti i dipendenti
-        List<Employee> employees = employeeRepository.findAll(getCurrentUserCompanyId());
+        WorkedTimeTable workedTime = data.workedTime();
+        List<Employee> employees = data.employees();
 
         for (Employee employee : employees) {
-            LocalDate currentDate = startDate;
-
-            while (!currentDate.isAfter(endDate)) {
-                List<AccessLog> logs = accessRepository
-                        .getLogsByEmployeeAndDate(employee.id(), currentDate);
-
-                // Verifica anomalie
-                if (!logs.isEmpty()) {
-                    if (logs.size() % 2 != 0) {
-                        // Numero dispari di timbrature
-                        Row row = sheet.createRow(currentRow++);
-                        row.createCell(0).setCellValue(currentDate.format(DATE_FORMATTER));
-                        row.createCell(1).setCellValue(employee.surname() + " " + employee.name());
-                        row.createCell(2).setCellValue("TIMBRATURA MANCANTE");
-                        row.createCell(3).setCellValue("Numero dispari di timbrature");
-                    }
-                }
-
-                currentDate = currentDate.plusDays(1);
+            // Giornate chiuse con un numero dispari di timbrature
+            for (LocalDate day : workedTime.openDays(employee.id())) {
+                Row row = sheet.createRow(currentRow++);
+                row.createCell(0).setCellValue(day.format(DATE_FORMATTER));
+                row.createCell(1).setCellValue(employee.surname() + " " + employee.name());
+                row.createCell(2).setCellValue("TIMBRATURA MANCANTE");
+                row.createCell(3).setCellValue("Numero dispari di timbrature");
             }
         }
 
@@ -426,8 +445,7 @@ public class MonthlyReportService {
 
     // ============= SHEET 5: SALDI FERIE/ROL =============
 
-    private void createBalanceSheet(Workbook workbook, ExcelStyles styles,
-                                    LocalDate startDate, LocalDate endDate) {
+    private void createBalanceSheet(Workbook workbook, ExcelStyles styles, MonthlyReportData data) {
         Sheet sheet = workbook.createSheet("Saldi Ferie-ROL");
 
         // Larghezza colonne
@@ -450,25 +468,19 @@ public class MonthlyReportService {
         }
 
         // Dati saldi
-        List<Employee> employees = employeeRepository.findAll(getCurrentUserCompanyId());
+        List<Employee> employees = data.employees();
 
         for (Employee employee : employees) {
             Row row = sheet.createRow(currentRow++);
             int col = 0;
 
-            EmployeeLeaveBalance balance = balanceRepository
-                    .findByEmployeeId(employee.id())
-                    .orElse(null);
+            EmployeeLeaveBalance balance = data.balance(employee.id()).orElse(null);
 
             row.createCell(col++).setCellValue(employee.surname() + " " + employee.name());
 
             if (balance != null) {
                 // Calcola ore godute nel periodo
-                List<Absence> absences = absenceRepository
-                        .findByEmployeeIdAndDateRange(employee.id(), startDate, endDate)
-                        .stream()
-                        .filter(a -> a.status() == AbsenceStatus.APPROVED)
-                        .toList();
+                List<Absence> absences = data.approvedAbsences(employee.id());
 
                 int vacationUsed = absences.stream()
                         .filter(a -> a.type() == AbsenceType.VACATION)
@@ -520,10 +532,6 @@ public class MonthlyReportService {
     }
 
     private String buildAbsenceTooltip(String type, Map<LocalDate, Integer> details) {
-        if (details.isEmpty()) {
-            return String.format("Nessun giorno di %s", type);
-        }
-
         StringBuilder sb = new StringBuilder(String.format("%s:\n", type));
         for (Map.Entry<LocalDate, Integer> entry : details.entrySet()) {
             sb.append(String.format("- %s: %d ore\n",
@@ -533,25 +541,67 @@ public class MonthlyReportService {
         return sb.toString();
     }
 
-    private EmployeeMetrics calculateEmployeeMetrics(Long employeeId,
-                                                     LocalDate startDate,
-                                                     LocalDate endDate) {
+    /**
+     * Calcola le metriche di tutti i dipendenti del report, nello stesso ordine di {@code data.employees()}.
+     * I dipendenti sono divisi in al più {@code report.metrics.parallelism} blocchi contigui,
+     * uno per thread virtuale; i calcoli leggono solo {@code data}, mai il contesto di sicurezza.
+     */
+    private List<EmployeeMetrics> computeMetrics(MonthlyReportData data, ProgressListener progress) {
+        List<Employee> employees = data.employees();
+        int size = employees.size();
+        EmployeeMetrics[] metrics = new EmployeeMetrics[size];
+        int tasks = Math.min(parallelism, size);
+
+        if (tasks <= 1) {
+            for (int i = 0; i < size; i++) {
+                metrics[i] = calculateEmployeeMetrics(employees.get(i).id(), data);
+                progress.employeeProcessed();
+            }
+            return Arrays.asList(metrics);
+        }
+
+        List<Future<?>> futures = new ArrayList<>(tasks);
+        for (int t = 0; t < tasks; t++) {
+            int from = (int) ((long) t * size / tasks);
+            int to = (int) ((long) (t + 1) * size / tasks);
+            futures.add(metricsExecutor.submit(() -> {
+                for (int i = from; i < to; i++) {
+                    metrics[i] = calculateEmployeeMetrics(employees.get(i).id(), data);
+                    progress.employeeProcessed();
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+            if (e.getCause() instanceof RuntimeException runtimeException)
+                throw runtimeException;
+            throw new IllegalStateException("Calcolo delle metriche fallito", e.getCause());
+        } catch (InterruptedException e) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Calcolo delle metriche interrotto", e);
+        }
+        return Arrays.asList(metrics);
+    }
+
+    private EmployeeMetrics calculateEmployeeMetrics(Long employeeId, MonthlyReportData data) {
+        WorkedTimeTable workedTime = data.workedTime();
+
         // Giorni lavorati (con almeno un accesso)
-        List<LocalDate> workedDays = accessRepository
-                .getDistinctLogDates(employeeId, startDate, endDate);
+        List<LocalDate> workedDays = workedTime.workedDays(employeeId);
 
-        // Ore lavorate totali
-        YearMonth yearMonth = YearMonth.from(startDate);
-        int workedMinutes = accessService.calculateMonthlyWorkingHours(employeeId, yearMonth) * 60;
-        double workedHours = workedMinutes / 60.0;
+        // Ore lavorate totali, al minuto
+        double workedHours = workedTime.workedHours(employeeId);
 
         // Ore previste dai turni
-        List<ShiftAssignment> shifts = shiftAssignmentRepository
-                .findByEmployeeIdAndDateRange(employeeId, startDate, endDate);
+        List<ShiftAssignment> shifts = data.shifts(employeeId);
 
         int expectedMinutes = 0;
         for (ShiftAssignment shift : shifts) {
-            if (!holidayRepository.isHoliday(shift.date())) {
+            if (!data.isHoliday(shift.date())) {
                 expectedMinutes += (int) ChronoUnit.MINUTES.between(
                         shift.startTime(), shift.endTime());
             }
@@ -559,11 +609,7 @@ public class MonthlyReportService {
         double expectedHours = expectedMinutes / 60.0;
 
         // Assenze
-        List<Absence> absences = absenceRepository
-                .findByEmployeeIdAndDateRange(employeeId, startDate, endDate)
-                .stream()
-                .filter(a -> a.status() == AbsenceStatus.APPROVED)
-                .toList();
+        List<Absence> absences = data.approvedAbsences(employeeId);
 
         Map<LocalDate, Integer> vacationDetails = new HashMap<>();
         Map<LocalDate, Integer> rolDetails = new HashMap<>();
@@ -597,9 +643,7 @@ public class MonthlyReportService {
                 .mapToInt(Integer::intValue).sum();
 
         // Saldi residui
-        EmployeeLeaveBalance balance = balanceRepository
-                .findByEmployeeId(employeeId)
-                .orElse(null);
+        EmployeeLeaveBalance balance = data.balance(employeeId).orElse(null);
 
         double remainingVacation = balance != null ?
                 balance.vacationAvailable().doubleValue() : 0;
@@ -629,6 +673,26 @@ public class MonthlyReportService {
 
     // ============= INNER CLASSES =============
 
+    /**
+     * Avanzamento della generazione di un report. {@link #employeeProcessed()} è chiamato
+     * dai thread di calcolo, anche in parallelo
+     */
+    public interface ProgressListener {
+        ProgressListener NONE = new ProgressListener() {
+            @Override
+            public void started(int totalEmployees) {
+            }
+
+            @Override
+            public void employeeProcessed() {
+            }
+        };
+
+        void started(int totalEmployees);
+
+        void employeeProcessed();
+    }
+
     private record EmployeeMetrics(
             List<LocalDate> workedDays,
             double workedHours,
@@ -0,0 +1,319 @@
+package it.gls.dipendenti.report.service;
+
+import it.gls.dipendenti.auth.model.CustomUserDetails;
+import it.gls.dipendenti.report.model.ReportType;
+import it.gls.dipendenti.report.repository.ReportDataVersionRepository;
+import it.gls.dipendenti.util.TimeZoneUtils;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache su disco dei report generati, per (azienda, mese, tipo, versione dei dati).
+ * <p>
+ * La versione è letta prima di caricare i dati, quindi un file in cache non è mai più vecchio
+ * della sua versione: finché nessuna scrittura sui dati del mese la incrementa, lo stesso
+ * report è servito senza ricalcolarlo. Richieste uguali in contemporanea aspettano la stessa
+ * generazione. I file sono eliminati quando superano {@code report.cache.max-age-minutes}
+ * o, dai meno usati, quando il totale supera {@code report.cache.max-bytes}.
+ * <p>
+ * Un file può essere eliminato in ogni momento, anche mentre viene scaricato: va letto da un
+ * canale aperto con {@link #open}, che resta valido dopo l'eliminazione. Per lo stesso motivo
+ * non va inviato con sendfile, che riaprirebbe il file per nome dopo la risposta del controller.
+ */
+@Component
+public class ReportCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReportCache.class);
+    // Tentativi se il file è eliminato tra la generazione e l'apertura
+    private static final int OPEN_ATTEMPTS = 3;
+
+    private final MonthlyReportService reportService;
+    private final ReportDataVersionRepository versionRepository;
+    private final boolean enabled;
+    private final Path directory;
+    private final long maxBytes;
+    private final Duration maxAge;
+    private final ConcurrentHashMap<CacheKey, CachedReport> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<CacheKey, CompletableFuture<CachedReport>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    public ReportCache(MonthlyReportService reportService,
+                       ReportDataVersionRepository versionRepository,
+                       @Value("${report.cache.enabled:true}") boolean enabled,
+                       @Value("${report.cache.directory:./data/report-cache}") String directory,
+                       @Value("${report.cache.max-bytes:536870912}") long maxBytes,
+                       @Value("${report.cache.max-age-minutes:1440}") long maxAgeMinutes) {
+        this.reportService = reportService;
+        this.versionRepository = versionRepository;
+        this.enabled = enabled;
+        this.directory = Path.of(directory);
+        this.maxBytes = maxBytes;
+        this.maxAge = Duration.ofMinutes(maxAgeMinutes);
+    }
+
+    /**
+     * Crea la cartella della cache ed elimina i file di un avvio precedente, non più indicizzati
+     */
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled)
+            return;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.{xlsx,part}")) {
+            for (Path file : files)
+                Files.deleteIfExists(file);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Report mensile dell'azienda dell'utente corrente, dalla cache se i dati non sono cambiati
+     * @return canale aperto sul file in cache, da chiudere dopo l'invio
+     */
+    public FileChannel openMonthlyReport(YearMonth yearMonth) {
+        Long companyId = getCurrentUserCompanyId();
+        for (int attempt = 0; attempt < OPEN_ATTEMPTS; attempt++) {
+            Path file = getOrGenerate(companyId, yearMonth, ReportType.MONTHLY, MonthlyReportService.ProgressListener.NONE);
+            Optional<FileChannel> channel = open(file);
+            if (channel.isPresent())
+                return channel.get();
+        }
+        throw new IllegalStateException("Report eliminato dalla cache prima dell'invio");
+    }
+
+    /**
+     * Apre in lettura un file della cache, senza che possa essere eliminato nel frattempo
+     * @param file file restituito da {@link #getOrGenerate}
+     * @return canale da chiudere dopo l'invio, vuoto se il file è già stato eliminato
+     */
+    public Optional<FileChannel> open(Path file) {
+        for (CachedReport entry : entries.values()) {
+            if (!entry.path.equals(file))
+                continue;
+            synchronized (entry) {
+                if (entry.removed)
+                    return Optional.empty();
+                entry.lastAccess = System.nanoTime();
+                try {
+                    return Optional.of(FileChannel.open(file, StandardOpenOption.READ));
+                } catch (NoSuchFileException e) {
+                    return Optional.empty();
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Impossibile leggere il report in cache", e);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * File del report, dalla cache se i dati non sono cambiati dall'ultima generazione
+     * @param companyId azienda, letta dal chiamante
+     * @param yearMonth mese del report
+     * @param type tipo di report
+     * @param progress avanzamento, notificato solo se il report va generato
+     * @return file in cache, da non modificare né eliminare; va letto con {@link #open}
+     */
+    public Path getOrGenerate(Long companyId, YearMonth yearMonth, ReportType type,
+                              MonthlyReportService.ProgressListener progress) {
+        if (!enabled)
+            throw new IllegalStateException("Cache dei report disabilitata");
+
+        CacheKey key = new CacheKey(companyId, yearMonth, type, versionRepository.getVersion(companyId, yearMonth));
+        Optional<Path> cached = lookup(key);
+        if (cached.isPresent()) {
+            logger.debug("Report {} servito dalla cache", key);
+            return cached.get();
+        }
+
+        CompletableFuture<CachedReport> mine = new CompletableFuture<>();
+        CompletableFuture<CachedReport> running = inFlight.putIfAbsent(key, mine);
+        if (running != null)
+            return await(running).path;
+
+        try {
+            CachedReport entry = generate(key, progress);
+            entries.put(key, entry);
+            totalBytes.addAndGet(entry.size);
+            removeOlderVersions(key);
+            evictOverSize(key);
+            mine.complete(entry);
+            return entry.path;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * Elimina i report in cache da più di {@code report.cache.max-age-minutes}
+     */
+    @Scheduled(fixedDelayString = "${report.cache.cleanup-interval-ms:300000}")
+    public void evictExpired() {
+        Instant threshold = TimeZoneUtils.nowInstant().minus(maxAge);
+        int removed = 0;
+        for (var mapEntry : entries.entrySet()) {
+            if (mapEntry.getValue().createdAt.isBefore(threshold) && remove(mapEntry.getKey(), mapEntry.getValue()))
+                removed++;
+        }
+        if (removed > 0)
+            logger.info("Eliminati {} report scaduti dalla cache", removed);
+    }
+
+    /**
+     * Compatta le modifiche delle timbrature lette da {@link ReportDataVersionRepository#getVersion},
+     * così il loro conteggio resta piccolo
+     */
+    @Scheduled(fixedDelayString = "${report.cache.cleanup-interval-ms:300000}")
+    public void compactVersions() {
+        long removed = versionRepository.compactAccessLogChanges();
+        if (removed > 0)
+            logger.debug("Compattate {} modifiche delle timbrature", removed);
+    }
+
+    private Optional<Path> lookup(CacheKey key) {
+        CachedReport entry = entries.get(key);
+        if (entry == null)
+            return Optional.empty();
+        if (entry.createdAt.isBefore(TimeZoneUtils.nowInstant().minus(maxAge)) || !Files.exists(entry.path)) {
+            remove(key, entry);
+            return Optional.empty();
+        }
+        entry.lastAccess = System.nanoTime();
+        return Optional.of(entry.path);
+    }
+
+    private CachedReport generate(CacheKey key, MonthlyReportService.ProgressListener progress) {
+        String name = UUID.randomUUID().toString();
+        Path partial = directory.resolve(name + ".part");
+        Path file = directory.resolve(name + ".xlsx");
+        try {
+            try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(partial))) {
+                switch (key.type()) {
+                    case MONTHLY -> reportService.generateMonthlyReport(key.companyId(), key.yearMonth(), outputStream, progress);
+                }
+            }
+            Files.move(partial, file, StandardCopyOption.ATOMIC_MOVE);
+            return new CachedReport(file, Files.size(file), TimeZoneUtils.nowInstant());
+        } catch (IOException e) {
+            deleteQuietly(partial);
+            throw new UncheckedIOException("Impossibile salvare il report in cache", e);
+        } catch (RuntimeException e) {
+            deleteQuietly(partial);
+            throw e;
+        }
+    }
+
+    /**
+     * Le versioni precedenti dello stesso report non possono più essere richieste
+     */
+    private void removeOlderVersions(CacheKey key) {
+        entries.forEach((other, entry) -> {
+            if (other.version() < key.version() && other.companyId().equals(key.companyId())
+                    && other.yearMonth().equals(key.yearMonth()) && other.type() == key.type())
+                remove(other, entry);
+        });
+    }
+
+    /**
+     * Elimina i report usati meno di recente finché il totale non rientra nel limite,
+     * tranne quello appena generato
+     */
+    private void evictOverSize(CacheKey keep) {
+        while (totalBytes.get() > maxBytes) {
+            Optional<Map.Entry<CacheKey, CachedReport>> oldest = entries.entrySet().stream()
+                    .filter(mapEntry -> !mapEntry.getKey().equals(keep))
+                    .min(Comparator.comparingLong(mapEntry -> mapEntry.getValue().lastAccess));
+            if (oldest.isEmpty())
+                return;
+            remove(oldest.get().getKey(), oldest.get().getValue());
+        }
+    }
+
+    private boolean remove(CacheKey key, CachedReport entry) {
+        if (!entries.remove(key, entry))
+            return false;
+        totalBytes.addAndGet(-entry.size);
+        // Chi ha già aperto il file continua a leggerlo dal suo canale
+        synchronized (entry) {
+            entry.removed = true;
+            deleteQuietly(entry.path);
+        }
+        return true;
+    }
+
+    private static CachedReport await(CompletableFuture<CachedReport> running) {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException)
+                throw runtimeException;
+            throw e;
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Impossibile eliminare il report {}", file, e);
+        }
+    }
+
+    private Long getCurrentUserCompanyId() {
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        CustomUserDetails userDetails = (CustomUserDetails) auth.getPrincipal();
+        return userDetails.getCompanyId();
+    }
+
+    private record CacheKey(Long companyId, YearMonth yearMonth, ReportType type, long version) {}
+
+    private static final class CachedReport {
+        private final Path path;
+        private final long size;
+        private final Instant createdAt;
+        private volatile long lastAccess = System.nanoTime();
+        // Protetto dal lock dell'entry, come l'eliminazione del file
+        private boolean removed;
+
+        CachedReport(Path path, long size, Instant createdAt) {
+            this.path = path;
+            this.size = size;
+            this.createdAt = createdAt;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package it.gls.dipendenti.report.service;
+
+import it.gls.dipendenti.auth.model.CustomUserDetails;
+import it.gls.dipendenti.report.exception.ReportJobNotFoundException;
+import it.gls.dipendenti.report.exception.ReportJobRejectedException;
+import it.gls.dipendenti.report.exception.ReportNotReadyException;
+import it.gls.dipendenti.report.model.ReportJobStatus;
+import it.gls.dipendenti.report.model.ReportJobStatus.State;
+import it.gls.dipendenti.report.model.ReportType;
+import it.gls.dipendenti.util.TimeZoneUtils;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Report mensili generati in background.
+ * <p>
+ * La richiesta riceve subito l'id del job; un pool limitato di thread scrive il file su disco
+ * e lo stato riporta i dipendenti calcolati sul totale. Una seconda richiesta per lo stesso
+ * mese mentre il primo job è in coda o in corso riceve quello, senza rigenerare.
+ * I job sono tenuti in memoria: i file finiti restano scaricabili per {@code report.jobs.ttl-minutes},
+ * poi vengono eliminati insieme al job.
+ */
+@Service
+public class ReportJobService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReportJobService.class);
+
+    private final MonthlyReportService reportService;
+    private final ReportCache reportCache;
+    private final Path directory;
+    private final Duration ttl;
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentHashMap<String, ReportJob> jobs = new ConcurrentHashMap<>();
+    // Job in coda o in corso per azienda e mese
+    private final ConcurrentHashMap<String, ReportJob> inFlight = new ConcurrentHashMap<>();
+
+    public ReportJobService(MonthlyReportService reportService,
+                            ReportCache reportCache,
+                            @Value("${report.jobs.directory:./data/reports}") String directory,
+                            @Value("${report.jobs.threads:2}") int threads,
+                            @Value("${report.jobs.queue-size:20}") int queueSize,
+                            @Value("${report.jobs.ttl-minutes:60}") long ttlMinutes) {
+        this.reportService = reportService;
+        this.reportCache = reportCache;
+        this.directory = Path.of(directory);
+        this.ttl = Duration.ofMinutes(ttlMinutes);
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                Thread.ofPlatform().name("report-job-", 0).daemon(true).factory(),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Crea la cartella dei report ed elimina i file rimasti da un avvio precedente,
+     * i cui job non esistono più
+     */
+    @PostConstruct
+    public void init() throws IOException {
+        Files.createDirectories(directory);
+        int removed = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.{xlsx,part}")) {
+            for (Path file : files) {
+                if (Files.deleteIfExists(file))
+                    removed++;
+            }
+        }
+        if (removed > 0)
+            logger.info("Eliminati {} report di un avvio precedente", removed);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Accoda la generazione del report di un mese per l'azienda dell'utente corrente
+     * @return stato del job, quello già in corso se il report di quel mese è in generazione
+     * @throws ReportJobRejectedException se la coda è piena
+     */
+    public ReportJobStatus submit(YearMonth yearMonth) {
+        Long companyId = getCurrentUserCompanyId();
+        String reportKey = companyId + ":" + yearMonth;
+
+        ReportJob[] created = new ReportJob[1];
+        ReportJob job = inFlight.computeIfAbsent(reportKey, key -> {
+            created[0] = new ReportJob(UUID.randomUUID().toString(), reportKey, companyId, yearMonth,
+                    TimeZoneUtils.nowInstant());
+            return created[0];
+        });
+        if (created[0] == null) {
+            logger.info("[REPORT JOB REUSED] {} - Report {} già in generazione", job.id, yearMonth);
+            return job.status(ttl);
+        }
+
+        jobs.put(job.id, job);
+        try {
+            executor.execute(() -> run(job));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id);
+            inFlight.remove(reportKey, job);
+            logger.warn("[REPORT JOB REJECTED] {} - Coda piena", job.id);
+            throw new ReportJobRejectedException();
+        }
+        logger.info("[REPORT JOB QUEUED] {} - Report {} azienda {}", job.id, yearMonth, companyId);
+        return job.status(ttl);
+    }
+
+    /**
+     * Stato di un job dell'azienda dell'utente corrente
+     * @throws ReportJobNotFoundException se non esiste, è scaduto o è di un'altra azienda
+     */
+    public ReportJobStatus getStatus(String jobId) {
+        return findJob(jobId).status(ttl);
+    }
+
+    /**
+     * Apre il file di un job completato
+     * @return file con il canale aperto, da chiudere dopo l'invio
+     * @throws ReportNotReadyException se il job è ancora in corso o è fallito
+     */
+    public ReportFile openReportFile(String jobId) {
+        ReportJob job = findJob(jobId);
+        if (job.state != State.COMPLETED)
+            throw new ReportNotReadyException(jobId, job.state);
+        String fileName = MonthlyReportService.fileName(job.yearMonth);
+        if (!job.ownsFile) {
+            // Un file della cache può essere già stato eliminato per far posto ad altri
+            FileChannel channel = reportCache.open(job.file).orElseThrow(() -> new ReportJobNotFoundException(jobId));
+            return new ReportFile(job.file, channel, fileName, true);
+        }
+        try {
+            return new ReportFile(job.file, FileChannel.open(job.file, StandardOpenOption.READ), fileName, false);
+        } catch (NoSuchFileException e) {
+            throw new ReportJobNotFoundException(jobId);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Impossibile leggere il report " + jobId, e);
+        }
+    }
+
+    /**
+     * Elimina i job finiti da più di {@code report.jobs.ttl-minutes} e i loro file
+     */
+    @Scheduled(fixedDelayString = "${report.jobs.cleanup-interval-ms:300000}")
+    public void cleanupExpired() {
+        Instant threshold = TimeZoneUtils.nowInstant().minus(ttl);
+        int removed = 0;
+        for (ReportJob job : jobs.values()) {
+            Instant completedAt = job.completedAt;
+            if (completedAt == null || completedAt.isAfter(threshold))
+                continue;
+            if (!jobs.remove(job.id, job))
+                continue;
+            if (job.ownsFile)
+                deleteQuietly(job.file);
+            removed++;
+        }
+        if (removed > 0)
+            logger.info("Eliminati {} report scaduti", removed);
+    }
+
+    private void run(ReportJob job) {
+        Instant startTime = Instant.now();
+        job.state = State.RUNNING;
+        logger.info("[REPORT JOB START] {} - Report {} azienda {}", job.id, job.yearMonth, job.companyId);
+
+        Path partial = directory.resolve(job.id + ".part");
+        Path file = directory.resolve(job.id + ".xlsx");
+        try {
+            if (reportCache.isEnabled()) {
+                // Il file resta della cache, che lo riusa finché i dati del mese non cambiano
+                job.file = reportCache.getOrGenerate(job.companyId, job.yearMonth, ReportType.MONTHLY, job);
+            } else {
+                try (OutputStream outputStream = new BufferedOutputStream(Files.newOutputStream(partial))) {
+                    reportService.generateMonthlyReport(job.companyId, job.yearMonth, outputStream, job);
+                }
+                // Visibile come .xlsx solo quando è completo
+                Files.move(partial, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                job.file = file;
+                job.ownsFile = true;
+            }
+            job.completedAt = TimeZoneUtils.nowInstant();
+            job.state = State.COMPLETED;
+            logger.info("[REPORT JOB SUCCESS] {} - Completed in {}ms, processed {} employees",
+                    job.id, Duration.between(startTime, Instant.now()).toMillis(), job.processed.get());
+        } catch (Exception e) {
+            logger.error("[REPORT JOB FAILED] {} - Report {} azienda {}", job.id, job.yearMonth, job.companyId, e);
+            deleteQuietly(partial);
+            job.errorMessage = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+            job.completedAt = TimeZoneUtils.nowInstant();
+            job.state = State.FAILED;
+        } finally {
+            inFlight.remove(job.reportKey, job);
+        }
+    }
+
+    private ReportJob findJob(String jobId) {
+        ReportJob job = jobId != null ? jobs.get(jobId) : null;
+        if (job == null || !job.companyId.equals(getCurrentUserCompanyId()))
+            throw new ReportJobNotFoundException(jobId);
+        return job;
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Impossibile eliminare il report {}", file, e);
+        }
+    }
+
+    private Long getCurrentUserCompanyId() {
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        CustomUserDetails userDetails = (CustomUserDetails) auth.getPrincipal();
+        return userDetails.getCompanyId();
+    }
+
+    /**
+     * File di un report pronto da scaricare
+     * @param path file su disco
+     * @param channel canale aperto sul file, da chiudere dopo l'invio
+     * @param fileName nome del file scaricato
+     * @param cached se il file è della cache, che può eliminarlo durante l'invio
+     */
+    public record ReportFile(Path path, FileChannel channel, String fileName, boolean cached) {}
+
+    /**
+     * Job di generazione, aggiornato dal thread che lo esegue e letto dalle richieste di stato
+     */
+    private static final class ReportJob implements MonthlyReportService.ProgressListener {
+        private final String id;
+        private final String reportKey;
+        private final Long companyId;
+        private final YearMonth yearMonth;
+        private final Instant submittedAt;
+        private final AtomicInteger processed = new AtomicInteger();
+        private volatile int total;
+        private volatile State state = State.QUEUED;
+        private volatile Path file;
+        // false se il file è della cache dei report
+        private volatile boolean ownsFile;
+        private volatile String errorMessage;
+        private volatile Instant completedAt;
+
+        ReportJob(String id, String reportKey, Long companyId, YearMonth yearMonth, Instant submittedAt) {
+            this.id = id;
+            this.reportKey = reportKey;
+            this.companyId = companyId;
+            this.yearMonth = yearMonth;
+            this.submittedAt = submittedAt;
+        }
+
+        @Override
+        public void started(int totalEmployees) {
+            total = totalEmployees;
+        }
+
+        @Override
+        public void employeeProcessed() {
+            processed.incrementAndGet();
+        }
+
+        ReportJobStatus status(Duration ttl) {
+            State current = state;
+            Instant finishedAt = completedAt;
+            return new ReportJobStatus(
+                    id,
+                    yearMonth.toString(),
+                    current,
+                    processed.get(),
+                    total,
+                    submittedAt,
+                    finishedAt,
+                    current == State.COMPLETED && finishedAt != null ? finishedAt.plus(ttl) : null,
+                    MonthlyReportService.fileName(yearMonth),
+                    errorMessage
+            );
+        }
+    }
+}
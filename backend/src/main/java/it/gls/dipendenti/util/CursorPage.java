@@ -0,0 +1,21 @@
+package it.gls.dipendenti.util;
+
+import java.util.List;
+
+/**
+ * Page of a keyset paginated query. There is no total: counting would cost as much
+ * as reading the whole range, the client follows nextCursor until it is null.
+ */
+public record CursorPage<T>(
+        List<T> content,
+        int pageSize,
+        String nextCursor
+) {
+    public boolean hasNext() {
+        return nextCursor != null;
+    }
+
+    public boolean isEmpty() {
+        return content.isEmpty();
+    }
+}
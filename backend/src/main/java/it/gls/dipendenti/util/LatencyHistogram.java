@@ -0,0 +1,72 @@
+package it.gls.dipendenti.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram in microseconds, cumulative since startup.
+ * Buckets are powers of two split in 8 linear sub-buckets, so a percentile is
+ * reported with an error below 12.5% whatever the magnitude.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BITS = 3;
+    private static final int BUCKETS = SUB_BUCKETS * 62;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void recordNanos(long nanos) {
+        record(Math.max(0, nanos / 1000));
+    }
+
+    public void record(long micros) {
+        counts.incrementAndGet(indexOf(Math.max(0, micros)));
+    }
+
+    public long count() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += counts.get(i);
+        return total;
+    }
+
+    /**
+     * Value below which the given fraction of the samples falls, 0 without samples
+     * @param quantile between 0 and 1, e.g. 0.99
+     */
+    public long percentile(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0)
+            return 0;
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return upperBound(i);
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) ((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+}
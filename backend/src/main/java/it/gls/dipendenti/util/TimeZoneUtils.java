@@ -111,6 +111,20 @@ public final class TimeZoneUtils {
         return date.plusDays(1).atStartOfDay(COMPANY_ZONE).minusNanos(1).toInstant();
     }
 
+    /**
+     * Epoch second di inizio di ogni giorno aziendale di un intervallo, più l'inizio del giorno
+     * successivo all'ultimo: per trovare il giorno di un timestamp senza creare oggetti
+     * @param startDate primo giorno
+     * @param days numero di giorni
+     * @return array di days + 1 elementi crescenti
+     */
+    public static long[] dayStartEpochSeconds(LocalDate startDate, int days) {
+        long[] starts = new long[days + 1];
+        for (int d = 0; d <= days; d++)
+            starts[d] = startOfDay(startDate.plusDays(d)).getEpochSecond();
+        return starts;
+    }
+
     /**
      * Combina data e ora nel fuso aziendale
      */
@@ -0,0 +1,31 @@
+package it.gls.dipendenti.util;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Utility per azioni legate al ciclo di vita della transazione corrente
+ */
+public final class TransactionUtils {
+
+    private TransactionUtils() {
+        throw new AssertionError("Utility class");
+    }
+
+    /**
+     * Esegue l'azione dopo il commit della transazione corrente,
+     * subito se non c'è una transazione attiva
+     */
+    public static void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package it.gls.dipendenti.access.service;
+
+import it.gls.dipendenti.access.dto.BadgeReplayEvent;
+import it.gls.dipendenti.access.dto.BadgeReplayResult;
+import it.gls.dipendenti.access.exception.BadgeReadRejectedException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class BadgeJournalTest {
+
+    private static final int RECORD_SIZE = 96;
+    private static final int SEGMENT_RECORDS = 4;
+
+    @TempDir
+    Path directory;
+
+    private final BadgeReadPipeline pipeline = mock(BadgeReadPipeline.class);
+    private final BadgeReplayService replayService = mock(BadgeReplayService.class);
+    private final List<BadgeJournal> opened = new ArrayList<>();
+
+    @AfterEach
+    void closeJournals() throws InterruptedException {
+        for (BadgeJournal journal : opened)
+            journal.close();
+    }
+
+    @Test
+    void recoversUndrainedReadsAfterRestart() throws IOException {
+        rejectAllReads();
+        BadgeJournal journal = open();
+        journal.read("CARD-1");
+        journal.read("CARD-2");
+        journal.read("CARD-3");
+
+        BadgeJournal restarted = open();
+        assertEquals(3, restarted.pendingCount());
+
+        stubDrain();
+        restarted.drain();
+        assertEquals(List.of("CARD-1", "CARD-2", "CARD-3"), drainedUids());
+        assertEquals(0, restarted.pendingCount());
+        assertEquals("3", Files.readString(directory.resolve("checkpoint")));
+    }
+
+    @Test
+    void discardsTornTailAndAppendsOverIt() throws IOException {
+        rejectAllReads();
+        BadgeJournal journal = open();
+        journal.read("CARD-1");
+        journal.read("CARD-2");
+        journal.read("CARD-3");
+        // Half-written third record: the crc no longer matches
+        corrupt(segments().getFirst(), 2);
+
+        BadgeJournal restarted = open();
+        assertEquals(2, restarted.pendingCount());
+        restarted.read("CARD-4");
+
+        BadgeJournal again = open();
+        assertEquals(3, again.pendingCount());
+        stubDrain();
+        again.drain();
+        assertEquals(List.of("CARD-1", "CARD-2", "CARD-4"), drainedUids());
+    }
+
+    @Test
+    void deletesDrainedSegmentsAndSkipsThemOnRecovery() throws IOException {
+        rejectAllReads();
+        BadgeJournal journal = open();
+        for (int i = 1; i <= 10; i++)
+            journal.read("CARD-" + i);
+        assertEquals(3, segments().size());
+
+        stubDrain();
+        journal.drain();
+        assertEquals("10", Files.readString(directory.resolve("checkpoint")));
+        // The segment still being written is kept
+        assertEquals(List.of("journal-00000000000000000009.log"),
+                segments().stream().map(path -> path.getFileName().toString()).toList());
+
+        BadgeJournal restarted = open();
+        assertEquals(0, restarted.pendingCount());
+        restarted.read("CARD-11");
+        restarted.drain();
+        assertEquals("11", Files.readString(directory.resolve("checkpoint")));
+    }
+
+    @Test
+    void keepsReadsWhenTheDrainFails() throws IOException {
+        rejectAllReads();
+        BadgeJournal journal = open();
+        journal.read("CARD-1");
+        journal.read("CARD-2");
+
+        when(replayService.recordMissing(anyList())).thenThrow(new IllegalStateException("db down"));
+        journal.drain();
+        assertEquals(2, journal.pendingCount());
+        assertFalse(Files.exists(directory.resolve("checkpoint")));
+
+        reset(replayService);
+        stubDrain();
+        journal.drain();
+        assertEquals(0, journal.pendingCount());
+        assertEquals("2", Files.readString(directory.resolve("checkpoint")));
+    }
+
+    @Test
+    void doesNotRecordReadsCommittedByThePipeline() throws IOException {
+        when(pipeline.submit(anyString(), any(Instant.class))).thenReturn(CompletableFuture.completedFuture(null));
+        BadgeJournal journal = open();
+        assertNull(journal.read("CARD-1"));
+
+        journal.drain();
+        verify(replayService, never()).recordMissing(anyList());
+        assertEquals(0, journal.pendingCount());
+        assertEquals("1", Files.readString(directory.resolve("checkpoint")));
+    }
+
+    @Test
+    void recordsReadsThePipelineNeverAnswers() throws IOException {
+        when(pipeline.submit(anyString(), any(Instant.class))).thenReturn(new CompletableFuture<>());
+        BadgeJournal journal = open(0);
+        assertTrue(journal.read("CARD-1").isJournaled());
+
+        stubDrain();
+        journal.drain();
+        assertEquals(List.of("CARD-1"), drainedUids());
+        assertEquals(0, journal.pendingCount());
+        assertEquals("1", Files.readString(directory.resolve("checkpoint")));
+    }
+
+    private BadgeJournal open() throws IOException {
+        return open(60_000);
+    }
+
+    private BadgeJournal open(long drainTimeoutMillis) throws IOException {
+        // Drained by hand: the drainer thread would only run after a minute
+        BadgeJournal journal = new BadgeJournal(pipeline, replayService, true, directory.toString(),
+                SEGMENT_RECORDS, true, 100, 60_000, 500, drainTimeoutMillis);
+        journal.open();
+        opened.add(journal);
+        return journal;
+    }
+
+    private void rejectAllReads() {
+        when(pipeline.submit(anyString(), any(Instant.class))).thenThrow(new BadgeReadRejectedException("Queue full"));
+    }
+
+    private void stubDrain() {
+        when(replayService.recordMissing(anyList()))
+                .thenAnswer(invocation -> new BadgeReplayResult(invocation.<List<?>>getArgument(0).size(),
+                        0, 0, 0, 0, 0, 0));
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> drainedUids() {
+        ArgumentCaptor<List<BadgeReplayEvent>> captor = ArgumentCaptor.forClass(List.class);
+        verify(replayService, atLeastOnce()).recordMissing(captor.capture());
+        return captor.getAllValues().stream()
+                .flatMap(List::stream)
+                .map(BadgeReplayEvent::cardUid)
+                .toList();
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> path.getFileName().toString().startsWith("journal-"))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static void corrupt(Path segment, int record) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0x7f}), (long) record * RECORD_SIZE + 40);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package it.gls.dipendenti.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import it.gls.dipendenti.access.repository.AccessRepository;
+import it.gls.dipendenti.access.service.AccessExportService;
+import it.gls.dipendenti.access.service.AccessExportService.ExportFormat;
+import it.gls.dipendenti.util.TimeZoneUtils;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+
+import javax.sql.DataSource;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.time.LocalDate;
+
+/**
+ * Rows per second and peak heap of {@link AccessExportService} streaming a large range from PostgreSQL.
+ * Seeds a company with {@code rows} logs spread over a year, then exports them as NDJSON and CSV
+ * into a stream that only counts bytes and lines. Needs a db, see {@link BenchDatabase}:
+ * <pre>
+ * java -Xms512m -Xmx512m -XX:+UseG1GC -Dbench.password=... \
+ *     -cp target/classes:target/test-classes:$(cat cp.txt) \
+ *     it.gls.dipendenti.bench.AccessExportBenchmark [rows] [employees]
+ * </pre>
+ * With a fixed small heap, a run that completes shows the export does not hold the rows.
+ */
+public final class AccessExportBenchmark {
+
+    private static final LocalDate START = LocalDate.of(2025, 1, 1);
+    private static final LocalDate END = LocalDate.of(2025, 12, 31);
+
+    private AccessExportBenchmark() {}
+
+    public static void main(String[] args) throws Exception {
+        long rows = args.length > 0 ? Long.parseLong(args[0]) : 10_000_000L;
+        int employees = args.length > 1 ? Integer.parseInt(args[1]) : 5_000;
+
+        DataSource dataSource = BenchDatabase.dataSource();
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        BenchDatabase.Seed seed = BenchDatabase.seed(jdbcTemplate, employees, START);
+
+        long perEmployee = Math.ceilDiv(rows, employees);
+        long started = System.nanoTime();
+        // Logs of every employee evenly spaced over the year, alternating IN and OUT
+        jdbcTemplate.update("""
+                INSERT INTO access_logs (employee_id, card_id, timestamp, type)
+                SELECT ca.employee_id, ca.card_id,
+                       ?::timestamptz + (n * interval '1 second' * ?),
+                       CASE WHEN n % 2 = 0 THEN 'IN' ELSE 'OUT' END
+                FROM card_assignments ca
+                JOIN employees e ON e.id = ca.employee_id
+                CROSS JOIN generate_series(0, ? - 1) n
+                WHERE e.company_id = ?
+                """, java.sql.Timestamp.from(TimeZoneUtils.startOfDay(START)),
+                (double) 365 * 86_400 / perEmployee, perEmployee, seed.companyId());
+        jdbcTemplate.execute("ANALYZE access_logs");
+        System.out.printf("Seeded %,d logs of company %d in %,d ms%n", perEmployee * employees, seed.companyId(),
+                (System.nanoTime() - started) / 1_000_000);
+
+        ObjectMapper objectMapper = new ObjectMapper()
+                .registerModule(new JavaTimeModule())
+                .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+        AccessExportService exportService = new AccessExportService(new AccessRepository(jdbcTemplate),
+                new DataSourceTransactionManager(dataSource), objectMapper);
+
+        Instant startTime = TimeZoneUtils.startOfDay(START);
+        Instant endTime = TimeZoneUtils.endOfDay(END);
+        for (ExportFormat format : ExportFormat.values()) {
+            CountingOutputStream out = new CountingOutputStream();
+            HeapProbe probe = HeapProbe.start();
+            exportService.export(seed.companyId(), null, startTime, endTime, false, format).writeTo(out);
+            HeapProbe.Result result = probe.stop(null);
+            System.out.printf("%-6s %,d lines  %,.0f rows/s  %,.1f MB  %s%n", format, out.lines,
+                    out.lines * 1000.0 / Math.max(1, result.millis()), out.bytes / (1024.0 * 1024.0), result);
+        }
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        private long bytes;
+        private long lines;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+            if (b == '\n')
+                lines++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == '\n')
+                    lines++;
+            }
+        }
+    }
+}
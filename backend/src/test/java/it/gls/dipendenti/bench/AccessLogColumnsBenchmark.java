@@ -0,0 +1,143 @@
+package it.gls.dipendenti.bench;
+
+import it.gls.dipendenti.access.model.AccessLog;
+import it.gls.dipendenti.access.model.AccessLogColumns;
+import it.gls.dipendenti.access.model.AccessType;
+import it.gls.dipendenti.access.model.EmployeeDay;
+import it.gls.dipendenti.access.model.WorkedTimeTable;
+import it.gls.dipendenti.access.service.WorkedTimeEngine;
+import it.gls.dipendenti.util.TimeZoneUtils;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.YearMonth;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+
+/**
+ * Memory and GC of a month of access logs kept as {@link AccessLogColumns} against a {@code List<AccessLog>},
+ * and of computing the worked minutes from each: the engine walking the columns against grouping the
+ * records by employee-day as the daily summaries did.
+ * <p>
+ * Rows are generated in memory in the order of the repository query, no db is needed:
+ * <pre>
+ * java -Xms4g -Xmx4g -XX:+UseG1GC -cp target/classes:target/test-classes:$(cat cp.txt) \
+ *     it.gls.dipendenti.bench.AccessLogColumnsBenchmark [rows] [iterations]
+ * </pre>
+ */
+public final class AccessLogColumnsBenchmark {
+
+    private static final YearMonth MONTH = YearMonth.of(2026, 10);
+    private static final int LOGS_PER_DAY = 4;
+
+    private AccessLogColumnsBenchmark() {}
+
+    public static void main(String[] args) throws InterruptedException {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        LocalDate startDate = MONTH.atDay(1);
+        LocalDate endDate = MONTH.atEndOfMonth();
+        System.out.printf("%,d rows, %s, %s%n", rows, MONTH, Runtime.version());
+
+        HeapProbe probe = HeapProbe.start();
+        List<AccessLog> records = records(rows);
+        System.out.println("load  List<AccessLog>   " + probe.stop(records));
+
+        probe = HeapProbe.start();
+        AccessLogColumns columns = columns(rows);
+        System.out.println("load  AccessLogColumns  " + probe.stop(columns));
+
+        WorkedTimeEngine engine = new WorkedTimeEngine(null);
+        long expected = totalMinutes(engine.compute(columns, startDate, endDate));
+        for (int i = 0; i < iterations; i++) {
+            probe = HeapProbe.start();
+            long minutes = groupedMinutes(records);
+            System.out.println("walk  List<AccessLog>   " + probe.stop(null));
+            check(expected, minutes);
+
+            probe = HeapProbe.start();
+            minutes = totalMinutes(engine.compute(columns, startDate, endDate));
+            System.out.println("walk  AccessLogColumns  " + probe.stop(null));
+            check(expected, minutes);
+        }
+    }
+
+    /**
+     * Rows as the repository returns them: by employee, then timestamp
+     */
+    private static List<AccessLog> records(int rows) {
+        List<AccessLog> logs = new ArrayList<>();
+        generate(rows, (id, employeeId, timestamp, type) ->
+                logs.add(new AccessLog(id, employeeId, employeeId, timestamp, type, false, null, false)));
+        return logs;
+    }
+
+    private static AccessLogColumns columns(int rows) {
+        AccessLogColumns logs = new AccessLogColumns();
+        generate(rows, (id, employeeId, timestamp, type) ->
+                logs.add(id, employeeId, ChronoUnit.MICROS.between(Instant.EPOCH, timestamp), type, false));
+        return logs;
+    }
+
+    /**
+     * Four logs a day for every day of the month, employee after employee, with a few minutes of jitter
+     */
+    private static void generate(int rows, RowSink sink) {
+        Random random = new Random(42);
+        long id = 0;
+        long employeeId = 0;
+        while (id < rows) {
+            employeeId++;
+            for (int day = 1; day <= MONTH.lengthOfMonth() && id < rows; day++) {
+                LocalDate date = MONTH.atDay(day);
+                LocalTime[] times = {
+                        LocalTime.of(8, random.nextInt(30)),
+                        LocalTime.of(12, 30 + random.nextInt(15)),
+                        LocalTime.of(13, 30 + random.nextInt(15)),
+                        LocalTime.of(17, random.nextInt(60))
+                };
+                for (int i = 0; i < LOGS_PER_DAY && id < rows; i++)
+                    sink.accept(++id, employeeId, TimeZoneUtils.combine(date, times[i]),
+                            i % 2 == 0 ? AccessType.IN : AccessType.OUT);
+            }
+        }
+    }
+
+    /**
+     * The record-list path: group by employee-day, sort each day, pair IN/OUT
+     */
+    private static long groupedMinutes(List<AccessLog> logs) {
+        Map<EmployeeDay, List<AccessLog>> byDay = new HashMap<>();
+        for (AccessLog log : logs)
+            byDay.computeIfAbsent(new EmployeeDay(log.employeeId(), TimeZoneUtils.toCompanyDate(log.timestamp())),
+                    key -> new ArrayList<>()).add(log);
+
+        long minutes = 0;
+        for (List<AccessLog> day : byDay.values()) {
+            List<AccessLog> sorted = day.stream().sorted(Comparator.comparing(AccessLog::timestamp)).toList();
+            for (int i = 0; i + 1 < sorted.size(); i += 2) {
+                if (sorted.get(i).type() == AccessType.IN && sorted.get(i + 1).type() == AccessType.OUT)
+                    minutes += ChronoUnit.MINUTES.between(sorted.get(i).timestamp(), sorted.get(i + 1).timestamp());
+            }
+        }
+        return minutes;
+    }
+
+    private static long totalMinutes(WorkedTimeTable table) {
+        long minutes = 0;
+        for (long employeeId = 1; table.contains(employeeId); employeeId++)
+            minutes += table.workedMinutes(employeeId);
+        return minutes;
+    }
+
+    private static void check(long expected, long actual) {
+        if (expected != actual)
+            throw new IllegalStateException("Worked minutes differ: %d against %d".formatted(expected, actual));
+    }
+
+    @FunctionalInterface
+    private interface RowSink {
+        void accept(long id, long employeeId, Instant timestamp, AccessType type);
+    }
+}
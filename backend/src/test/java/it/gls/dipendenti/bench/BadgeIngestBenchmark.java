@@ -0,0 +1,137 @@
+package it.gls.dipendenti.bench;
+
+import it.gls.dipendenti.Application;
+import it.gls.dipendenti.access.service.BadgeReadPipeline;
+import it.gls.dipendenti.util.LatencyHistogram;
+import it.gls.dipendenti.util.TimeZoneUtils;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Throughput and latency of badge reads through the {@link BadgeReadPipeline} group commit against
+ * one transaction per read, the path readCard had before: card by uid, active assignment, employee,
+ * last type of the day and the insert, five round trips each.
+ * <p>
+ * Boots the application against a db (see {@link BenchDatabase}) with journal, debounce and admission
+ * control off, seeds a company, then has {@code threads} readers swipe random cards for
+ * {@code seconds} with each path:
+ * <pre>
+ * java -Dbench.password=... -cp target/classes:target/test-classes:$(cat cp.txt) \
+ *     it.gls.dipendenti.bench.BadgeIngestBenchmark [threads] [seconds] [cards]
+ * </pre>
+ */
+public final class BadgeIngestBenchmark {
+
+    private BadgeIngestBenchmark() {}
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int cards = args.length > 2 ? Integer.parseInt(args[2]) : 2_000;
+
+        try (ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class)
+                .properties(
+                        "server.port=0",
+                        "spring.datasource.url=" + BenchDatabase.URL,
+                        "spring.datasource.username=" + BenchDatabase.USER,
+                        "spring.datasource.password=" + BenchDatabase.PASSWORD,
+                        "spring.datasource.hikari.maximum-pool-size=" + Math.max(10, threads + 2),
+                        "access.journal.enabled=false",
+                        "access.ingest.debounce-seconds=0",
+                        "access.admission.enabled=false",
+                        "logging.level.root=WARN")
+                .run()) {
+            JdbcTemplate jdbcTemplate = context.getBean(JdbcTemplate.class);
+            TransactionTemplate transaction = new TransactionTemplate(context.getBean(PlatformTransactionManager.class));
+            BadgeReadPipeline pipeline = context.getBean(BadgeReadPipeline.class);
+            List<String> cardUids = BenchDatabase.seed(jdbcTemplate, cards, LocalDate.now().minusDays(1)).cardUids();
+
+            System.out.printf("%d readers, %d s, %,d cards, %s%n", threads, seconds, cards, Runtime.version());
+            // Short warm-up of both paths, then the measured runs
+            run("per-read", threads, 3, cardUids, uid -> readInOwnTransaction(jdbcTemplate, transaction, uid));
+            run("pipeline", threads, 3, cardUids, pipeline::read);
+            System.out.println(run("per-read", threads, seconds, cardUids,
+                    uid -> readInOwnTransaction(jdbcTemplate, transaction, uid)));
+            System.out.println(run("pipeline", threads, seconds, cardUids, pipeline::read));
+        }
+    }
+
+    private static String run(String name, int threads, int seconds, List<String> cardUids,
+                              Consumer<String> read) throws InterruptedException {
+        AtomicBoolean running = new AtomicBoolean(true);
+        LatencyHistogram latency = new LatencyHistogram();
+        LongAdder failures = new LongAdder();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            readers.add(Thread.ofPlatform().name("reader-" + t).start(() -> {
+                while (running.get()) {
+                    String uid = cardUids.get(ThreadLocalRandom.current().nextInt(cardUids.size()));
+                    long started = System.nanoTime();
+                    try {
+                        read.accept(uid);
+                        latency.recordNanos(System.nanoTime() - started);
+                    } catch (RuntimeException e) {
+                        failures.increment();
+                    }
+                }
+            }));
+        }
+        Thread.sleep(seconds * 1000L);
+        running.set(false);
+        for (Thread reader : readers)
+            reader.join();
+
+        long total = latency.count();
+        return "%-8s %,9d reads  %,8.0f reads/s  p50 %6.1f ms  p99 %6.1f ms  failed %d".formatted(
+                name, total, total / (double) seconds, latency.percentile(0.50) / 1e3,
+                latency.percentile(0.99) / 1e3, failures.sum());
+    }
+
+    /**
+     * The read as it was before the pipeline, with the same queries
+     */
+    private static void readInOwnTransaction(JdbcTemplate jdbcTemplate, TransactionTemplate transaction, String uid) {
+        transaction.executeWithoutResult(status -> {
+            Long cardId = jdbcTemplate.queryForObject("SELECT id FROM cards WHERE uid = ?", Long.class, uid);
+            Long employeeId = jdbcTemplate.queryForObject(
+                    "SELECT employee_id FROM card_assignments WHERE card_id = ? AND end_date IS NULL LIMIT 1",
+                    Long.class, cardId);
+            jdbcTemplate.queryForMap("SELECT * FROM employees WHERE id = ?", employeeId);
+
+            Instant now = TimeZoneUtils.nowInstant();
+            LocalDate today = TimeZoneUtils.toCompanyDate(now);
+            String type;
+            try {
+                String lastType = jdbcTemplate.queryForObject("""
+                        SELECT type FROM access_logs
+                        WHERE employee_id = ? AND timestamp >= ? AND timestamp <= ? AND deleted = FALSE
+                        ORDER BY timestamp DESC
+                        LIMIT 1
+                        """, String.class, employeeId,
+                        TimeZoneUtils.toTimestamp(TimeZoneUtils.startOfDay(today)),
+                        TimeZoneUtils.toTimestamp(TimeZoneUtils.endOfDay(today)));
+                type = "IN".equals(lastType) ? "OUT" : "IN";
+            } catch (EmptyResultDataAccessException e) {
+                type = "IN";
+            }
+            jdbcTemplate.queryForObject("""
+                    INSERT INTO access_logs (employee_id, card_id, timestamp, type, modified, modified_at, deleted)
+                    VALUES (?, ?, ?, ?, FALSE, NULL, FALSE) RETURNING id
+                    """, Long.class, employeeId, cardId, Timestamp.from(now), type);
+        });
+    }
+}
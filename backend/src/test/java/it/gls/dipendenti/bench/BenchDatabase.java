@@ -0,0 +1,61 @@
+package it.gls.dipendenti.bench;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import javax.sql.DataSource;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * PostgreSQL of the benchmarks that need one, with the schema of {@code db-init/init.sql}
+ * (e.g. the docker-compose service). Connection from system properties:
+ * {@code -Dbench.url}, {@code -Dbench.user}, {@code -Dbench.password}.
+ * <p>
+ * Every run seeds its own company, so it can be repeated on the same db.
+ */
+final class BenchDatabase {
+
+    static final String URL = System.getProperty("bench.url", "jdbc:postgresql://localhost:5432/dipendenti");
+    static final String USER = System.getProperty("bench.user", "admin");
+    static final String PASSWORD = System.getProperty("bench.password", "");
+
+    private BenchDatabase() {}
+
+    static DataSource dataSource() {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(URL, USER, PASSWORD);
+        dataSource.setDriverClassName("org.postgresql.Driver");
+        return dataSource;
+    }
+
+    /**
+     * A company with employees, each with a card assigned since {@code since}
+     * @return the company id and the card uids, in employee order
+     */
+    static Seed seed(JdbcTemplate jdbcTemplate, int employees, LocalDate since) {
+        // Short enough for tax_code VARCHAR(20) with the employee number
+        String tag = "b" + Long.toString(System.currentTimeMillis(), 36);
+        Long companyId = jdbcTemplate.queryForObject(
+                "INSERT INTO companies (name) VALUES (?) RETURNING id", Long.class, tag);
+        jdbcTemplate.update("""
+                INSERT INTO employees (company_id, name, surname, tax_code)
+                SELECT ?, 'Nome' || n, 'Cognome' || n, ? || '-' || n FROM generate_series(1, ?) n
+                """, companyId, tag, employees);
+        jdbcTemplate.update("""
+                INSERT INTO cards (uid)
+                SELECT ? || '-' || n FROM generate_series(1, ?) n
+                """, tag, employees);
+        // n-th card to the n-th employee
+        jdbcTemplate.update("""
+                INSERT INTO card_assignments (employee_id, card_id, start_date)
+                SELECT e.id, c.id, ?
+                FROM (SELECT id, row_number() OVER (ORDER BY id) AS n FROM employees WHERE company_id = ?) e
+                JOIN (SELECT id, row_number() OVER (ORDER BY id) AS n FROM cards WHERE uid LIKE ?) c ON c.n = e.n
+                """, since, companyId, tag + "-%");
+        List<String> cardUids = IntStream.rangeClosed(1, employees).mapToObj(n -> tag + "-" + n).toList();
+        return new Seed(companyId, cardUids);
+    }
+
+    record Seed(Long companyId, List<String> cardUids) {}
+}
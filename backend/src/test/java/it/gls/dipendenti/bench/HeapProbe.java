@@ -0,0 +1,112 @@
+package it.gls.dipendenti.bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.List;
+
+/**
+ * Heap and GC figures of a benchmark step: peak heap sampled every millisecond,
+ * bytes allocated by the calling thread, collections and their time.
+ * Not a replacement for a profiler, but stable enough to compare two implementations in the same JVM.
+ */
+final class HeapProbe {
+
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+    private static final List<GarbageCollectorMXBean> COLLECTORS = ManagementFactory.getGarbageCollectorMXBeans();
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final long startNanos;
+    private final long startAllocated;
+    private final long startGcCount;
+    private final long startGcMillis;
+    private final long baseline;
+    private final Thread sampler;
+    private volatile boolean running = true;
+    private volatile long peak;
+
+    private HeapProbe() {
+        baseline = settledHeap();
+        peak = baseline;
+        startGcCount = gcCount();
+        startGcMillis = gcMillis();
+        startAllocated = THREADS.getCurrentThreadAllocatedBytes();
+        sampler = Thread.ofPlatform().name("heap-probe").daemon().start(() -> {
+            while (running) {
+                peak = Math.max(peak, MEMORY.getHeapMemoryUsage().getUsed());
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Collects, then starts measuring from the settled heap
+     */
+    static HeapProbe start() {
+        return new HeapProbe();
+    }
+
+    /**
+     * Stops measuring
+     * @param retained what the step keeps reachable, measured after a collection; null if nothing
+     */
+    Result stop(Object retained) throws InterruptedException {
+        long elapsed = System.nanoTime() - startNanos;
+        long allocated = THREADS.getCurrentThreadAllocatedBytes() - startAllocated;
+        running = false;
+        sampler.join();
+        long gcCount = gcCount() - startGcCount;
+        long gcMillis = gcMillis() - startGcMillis;
+        long retainedBytes = settledHeap() - baseline;
+        java.lang.ref.Reference.reachabilityFence(retained);
+        return new Result(elapsed / 1_000_000, allocated, peak - baseline, retained != null ? retainedBytes : 0,
+                gcCount, gcMillis);
+    }
+
+    static long settledHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return MEMORY.getHeapMemoryUsage().getUsed();
+    }
+
+    private static long gcCount() {
+        return COLLECTORS.stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+    }
+
+    private static long gcMillis() {
+        return COLLECTORS.stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+    }
+
+    /**
+     * @param millis wall time of the step
+     * @param allocatedBytes bytes allocated by the measuring thread
+     * @param peakBytes peak heap above the settled heap at the start
+     * @param retainedBytes heap still reachable at the end, above the start
+     * @param gcCount collections during the step, the final ones excluded
+     * @param gcMillis time spent in those collections
+     */
+    record Result(long millis, long allocatedBytes, long peakBytes, long retainedBytes, long gcCount, long gcMillis) {
+
+        @Override
+        public String toString() {
+            return "%,8d ms  alloc %,8.1f MB  peak %,8.1f MB  retained %,8.1f MB  gc %d (%d ms)".formatted(
+                    millis, mb(allocatedBytes), mb(peakBytes), mb(retainedBytes), gcCount, gcMillis);
+        }
+
+        private static double mb(long bytes) {
+            return bytes / (1024.0 * 1024.0);
+        }
+    }
+}
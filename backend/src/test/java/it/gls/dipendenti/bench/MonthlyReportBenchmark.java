@@ -0,0 +1,138 @@
+package it.gls.dipendenti.bench;
+
+import it.gls.dipendenti.absence.model.Absence;
+import it.gls.dipendenti.absence.model.AbsenceStatus;
+import it.gls.dipendenti.absence.model.AbsenceType;
+import it.gls.dipendenti.absence.model.EmployeeLeaveBalance;
+import it.gls.dipendenti.access.model.AccessLogColumns;
+import it.gls.dipendenti.access.model.AccessType;
+import it.gls.dipendenti.access.service.WorkedTimeEngine;
+import it.gls.dipendenti.hr.model.Employee;
+import it.gls.dipendenti.report.model.MonthlyReportData;
+import it.gls.dipendenti.report.service.MonthlyReportDataLoader;
+import it.gls.dipendenti.report.service.MonthlyReportService;
+import it.gls.dipendenti.shift.model.ShiftAssignment;
+import it.gls.dipendenti.util.TimeZoneUtils;
+
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.YearMonth;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Time and heap of {@link MonthlyReportService#generateMonthlyReport} for companies of growing size.
+ * The data loader is mocked with a month of synthetic employees, logs, shifts, absences and balances,
+ * so only the metrics and the streaming workbook are measured, and the file goes to a counting stream.
+ * <pre>
+ * java -Xms2g -Xmx2g -XX:+UseG1GC -cp target/classes:target/test-classes:$(cat cp.txt) \
+ *     it.gls.dipendenti.bench.MonthlyReportBenchmark [employees...]
+ * </pre>
+ */
+public final class MonthlyReportBenchmark {
+
+    private static final YearMonth MONTH = YearMonth.of(2026, 10);
+    private static final long COMPANY_ID = 1L;
+
+    private MonthlyReportBenchmark() {}
+
+    public static void main(String[] args) throws InterruptedException {
+        int[] sizes = args.length > 0
+                ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+                : new int[]{500, 5_000, 20_000};
+        System.out.printf("%s, %s, max heap %d MB%n", MONTH, Runtime.version(),
+                Runtime.getRuntime().maxMemory() >> 20);
+
+        for (int employees : sizes) {
+            MonthlyReportDataLoader loader = mock(MonthlyReportDataLoader.class);
+            when(loader.load(anyLong(), any(), any())).thenReturn(data(employees));
+            // One thread: the probe counts the allocations of the calling thread only
+            MonthlyReportService service = new MonthlyReportService(loader, 1);
+
+            // Warm-up on the same data, then the measured run
+            service.generateMonthlyReport(COMPANY_ID, MONTH, OutputStream.nullOutputStream());
+            CountingOutputStream out = new CountingOutputStream();
+            HeapProbe probe = HeapProbe.start();
+            service.generateMonthlyReport(COMPANY_ID, MONTH, out);
+            HeapProbe.Result result = probe.stop(null);
+            System.out.printf("%,7d employees  %s  file %,.1f MB%n", employees, result, out.count / (1024.0 * 1024.0));
+            service.shutdown();
+        }
+    }
+
+    private static MonthlyReportData data(int size) {
+        LocalDate startDate = MONTH.atDay(1);
+        LocalDate endDate = MONTH.atEndOfMonth();
+        Random random = new Random(42);
+
+        List<Employee> employees = new ArrayList<>(size);
+        Map<Long, Employee> employeesById = new HashMap<>();
+        Map<Long, List<ShiftAssignment>> shifts = new HashMap<>();
+        List<Absence> absences = new ArrayList<>();
+        Map<Long, List<Absence>> approved = new HashMap<>();
+        Map<Long, EmployeeLeaveBalance> balances = new HashMap<>();
+        AccessLogColumns logs = new AccessLogColumns(size * 100);
+
+        for (long id = 1; id <= size; id++) {
+            Employee employee = new Employee(id, COMPANY_ID, "Nome" + id, "Cognome" + id, "TAX" + id,
+                    LocalDate.of(1980, 1, 1), null, null, null, null, null, false);
+            employees.add(employee);
+            employeesById.put(id, employee);
+            balances.put(id, new EmployeeLeaveBalance(id, id, BigDecimal.valueOf(80), BigDecimal.valueOf(32)));
+
+            List<ShiftAssignment> employeeShifts = new ArrayList<>();
+            for (LocalDate day = startDate; !day.isAfter(endDate); day = day.plusDays(1)) {
+                if (day.getDayOfWeek() == DayOfWeek.SATURDAY || day.getDayOfWeek() == DayOfWeek.SUNDAY)
+                    continue;
+                employeeShifts.add(new ShiftAssignment(null, id, day, LocalTime.of(8, 0), LocalTime.of(17, 0),
+                        true, null, null));
+                LocalTime[] times = {
+                        LocalTime.of(8, random.nextInt(30)),
+                        LocalTime.of(12, 30 + random.nextInt(15)),
+                        LocalTime.of(13, 30 + random.nextInt(15)),
+                        LocalTime.of(17, random.nextInt(60))
+                };
+                for (int i = 0; i < times.length; i++) {
+                    Instant timestamp = TimeZoneUtils.combine(day, times[i]);
+                    logs.add(0, id, ChronoUnit.MICROS.between(Instant.EPOCH, timestamp),
+                            i % 2 == 0 ? AccessType.IN : AccessType.OUT, false);
+                }
+            }
+            shifts.put(id, employeeShifts);
+
+            if (id % 10 == 0) {
+                Absence absence = new Absence(id, id, AbsenceType.VACATION, startDate.plusDays(12),
+                        startDate.plusDays(14), null, null, 24, AbsenceStatus.APPROVED, null, Instant.EPOCH, false);
+                absences.add(absence);
+                approved.put(id, List.of(absence));
+            }
+        }
+
+        return new MonthlyReportData(COMPANY_ID, startDate, endDate, employees, employeesById,
+                new WorkedTimeEngine(null).compute(logs, startDate, endDate), shifts, absences, approved,
+                balances, Set.of());
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}